@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSetParameters;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how hard {@link AdvertiserService} should advertise: fast and loud while someone is
+ * looking, slow and quiet when no one has been for a while.
+ *
+ * <p>The level rises to {@link #LEVEL_HIGH} for a short while after a scanner connects to this
+ * device, stays at {@link #LEVEL_MEDIUM} for the first minutes after advertising starts, when
+ * the user is most likely waiting to be found, and then steps down to {@link #LEVEL_LOW} and
+ * eventually {@link #LEVEL_IDLE}. A low battery caps the level, and a critically low one stops
+ * advertising; while charging the level never drops below {@link #LEVEL_LOW}.
+ */
+public class AdvertiseController {
+
+    /**
+     * Advertising should stop.
+     */
+    public static final int LEVEL_OFF = -1;
+
+    public static final int LEVEL_IDLE = 0;
+
+    public static final int LEVEL_LOW = 1;
+
+    public static final int LEVEL_MEDIUM = 2;
+
+    public static final int LEVEL_HIGH = 3;
+
+    /**
+     * How long a connection keeps the level at LEVEL_HIGH.
+     */
+    private static final long INTERACTION_HOLD = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * How long after starting the level stays at LEVEL_MEDIUM.
+     */
+    private static final long STARTUP_PERIOD = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * Time without any interaction after which the level drops to LEVEL_IDLE.
+     */
+    private static final long IDLE_AFTER = TimeUnit.MINUTES.toMillis(15);
+
+    /**
+     * Battery percentages at or below which the level is capped at LEVEL_LOW, or advertising
+     * stops, unless charging.
+     */
+    private static final int LOW_BATTERY = 20;
+
+    private static final int CRITICAL_BATTERY = 5;
+
+    private long mStartTime;
+
+    private long mLastInteraction = -1;
+
+    /**
+     * Starts counting time since start from now, and forgets past interactions.
+     */
+    public void start(long nowMillis) {
+        mStartTime = nowMillis;
+        mLastInteraction = -1;
+    }
+
+    /**
+     * Records that a scanner connected to this device.
+     */
+    public void onInteraction(long nowMillis) {
+        mLastInteraction = nowMillis;
+    }
+
+    /**
+     * Returns the level to advertise at.
+     *
+     * @param battery Battery level in percent, or a negative value if unknown.
+     */
+    public int getLevel(long nowMillis, int battery, boolean charging) {
+        boolean batteryLow = !charging && battery >= 0;
+        if (batteryLow && battery <= CRITICAL_BATTERY) {
+            return LEVEL_OFF;
+        }
+
+        long sinceStart = nowMillis - mStartTime;
+        long sinceInteraction = mLastInteraction >= 0
+                ? nowMillis - mLastInteraction : Long.MAX_VALUE;
+
+        int level;
+        if (sinceInteraction < INTERACTION_HOLD) {
+            level = LEVEL_HIGH;
+        } else if (sinceStart < STARTUP_PERIOD) {
+            level = LEVEL_MEDIUM;
+        } else if (sinceStart < IDLE_AFTER || sinceInteraction < IDLE_AFTER) {
+            level = LEVEL_LOW;
+        } else {
+            level = LEVEL_IDLE;
+        }
+
+        if (batteryLow && battery <= LOW_BATTERY) {
+            level = Math.min(level, LEVEL_LOW);
+        }
+        if (charging) {
+            level = Math.max(level, LEVEL_LOW);
+        }
+        return level;
+    }
+
+    /**
+     * Returns the {@link AdvertiseSettings} advertise mode for a level.
+     */
+    public static int getAdvertiseMode(int level) {
+        switch (level) {
+            case LEVEL_HIGH:
+                return AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY;
+            case LEVEL_MEDIUM:
+                return AdvertiseSettings.ADVERTISE_MODE_BALANCED;
+            default:
+                return AdvertiseSettings.ADVERTISE_MODE_LOW_POWER;
+        }
+    }
+
+    /**
+     * Returns the {@link AdvertiseSettings} TX power level for a level.
+     */
+    public static int getTxPowerLevel(int level) {
+        switch (level) {
+            case LEVEL_HIGH:
+                return AdvertiseSettings.ADVERTISE_TX_POWER_HIGH;
+            case LEVEL_MEDIUM:
+                return AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM;
+            case LEVEL_LOW:
+                return AdvertiseSettings.ADVERTISE_TX_POWER_LOW;
+            default:
+                return AdvertiseSettings.ADVERTISE_TX_POWER_ULTRA_LOW;
+        }
+    }
+
+    /**
+     * Returns the {@link AdvertisingSetParameters} interval for a level.
+     */
+    public static int getInterval(int level) {
+        switch (level) {
+            case LEVEL_HIGH:
+                return AdvertisingSetParameters.INTERVAL_LOW;
+            case LEVEL_MEDIUM:
+                return AdvertisingSetParameters.INTERVAL_MEDIUM;
+            default:
+                return AdvertisingSetParameters.INTERVAL_HIGH;
+        }
+    }
+
+    /**
+     * Returns the {@link AdvertisingSetParameters} TX power for a level.
+     */
+    public static int getSetTxPower(int level) {
+        switch (level) {
+            case LEVEL_HIGH:
+                return AdvertisingSetParameters.TX_POWER_HIGH;
+            case LEVEL_MEDIUM:
+                return AdvertisingSetParameters.TX_POWER_MEDIUM;
+            case LEVEL_LOW:
+                return AdvertisingSetParameters.TX_POWER_LOW;
+            default:
+                return AdvertisingSetParameters.TX_POWER_ULTRA_LOW;
+        }
+    }
+}
@@ -80,8 +80,8 @@ public class AdvertiserFragment extends Fragment implements View.OnClickListener
                     case AdvertiseCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS:
                         errorMessage += " " + getString(R.string.start_error_too_many);
                         break;
-                    case AdvertiserService.ADVERTISING_TIMED_OUT:
-                        errorMessage = " " + getString(R.string.advertising_timedout);
+                    case AdvertiserService.ADVERTISING_BATTERY_LOW:
+                        errorMessage = " " + getString(R.string.advertising_battery_low);
                         break;
                     default:
                         errorMessage += " " + getString(R.string.start_error_unknown);
@@ -1,18 +1,28 @@
 package com.example.android.bluetoothadvertisements;
 
+import android.annotation.TargetApi;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.bluetooth.le.PeriodicAdvertisingParameters;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -42,27 +52,102 @@ public class AdvertiserService extends Service {
 
     public static final String ADVERTISING_FAILED_EXTRA_CODE = "failureCode";
 
-    public static final int ADVERTISING_TIMED_OUT = 6;
+    public static final int ADVERTISING_BATTERY_LOW = 6;
+
+    /**
+     * Names of the extended advertising sets: a legacy-compatible one that older scanners can
+     * see, and an extended one carrying the status record.
+     */
+    private static final String SET_BEACON = "beacon";
+
+    private static final String SET_STATUS = "status";
+
+    /**
+     * Periodic advertising interval, in units of 1.25 ms. (1 second)
+     */
+    private static final int PERIODIC_INTERVAL = 800;
+
+    /**
+     * How often the advertising level is reevaluated and the status record rebuilt.
+     */
+    private static final long CONTROL_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * How often legacy advertising is restarted to carry a fresh status record. Restarting
+     * briefly takes the device off the air, so it is not done every CONTROL_INTERVAL.
+     */
+    private static final long LEGACY_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private BluetoothAdapter mBluetoothAdapter;
 
     private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
 
     private AdvertiseCallback mAdvertiseCallback;
 
-    private Handler mHandler;
+    private ExtendedAdvertiser mExtendedAdvertiser;
+
+    private long mAdvertisingStartTime;
+
+    private long mLegacyStartTime;
+
+    /**
+     * Current status, one value per {@link StatusRecord} field.
+     */
+    private final long[] mStatusValues = new long[StatusRecord.FIELD_COUNT];
+
+    private final byte[] mStatusBuffer = new byte[StatusRecord.CODEC.getMaxLength()];
+
+    /**
+     * AdvertiseData needs an array of the exact record length, so one is kept per length. They
+     * can be reused because advertising data is copied as soon as it is handed to the stack.
+     */
+    private final byte[][] mStatusRecords = new byte[StatusRecord.CODEC.getMaxLength() + 1][];
+
+    private byte[] mStatusRecord;
 
-    private Runnable timeoutRunnable;
+    private long mLastHistorySample;
+
+    private final AdvertiseController mController = new AdvertiseController();
 
     /**
-     * Length of time to allow advertising before automatically shutting off. (10 minutes)
+     * The AdvertiseController level currently applied.
      */
-    private long TIMEOUT = TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES);
+    private int mLevel;
+
+    private Runnable mControlRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateAdvertising();
+            mHandler.postDelayed(this, CONTROL_INTERVAL);
+        }
+    };
+
+    /**
+     * A scanner connecting means someone is looking for this device. Connections of the user's
+     * own bonded devices, such as a headset or a watch, and of Classic-only devices, which can't
+     * have found this device by scanning, are ignored.
+     */
+    private final BroadcastReceiver mConnectionReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (device != null && device.getBondState() == BluetoothDevice.BOND_NONE
+                    && device.getType() != BluetoothDevice.DEVICE_TYPE_CLASSIC) {
+                onInteraction();
+            }
+        }
+    };
+
+    private Handler mHandler;
 
     @Override
     public void onCreate() {
         running = true;
+        mHandler = new Handler();
+        registerReceiver(mConnectionReceiver,
+                new IntentFilter(BluetoothDevice.ACTION_ACL_CONNECTED));
         initialize();
         startAdvertising();
-        setTimeout();
         super.onCreate();
     }
 
@@ -75,7 +160,7 @@ public class AdvertiserService extends Service {
          */
         running = false;
         stopAdvertising();
-        mHandler.removeCallbacks(timeoutRunnable);
+        unregisterReceiver(mConnectionReceiver);
         stopForeground(true);
         super.onDestroy();
     }
@@ -96,7 +181,7 @@ public class AdvertiserService extends Service {
         if (mBluetoothLeAdvertiser == null) {
             BluetoothManager mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
             if (mBluetoothManager != null) {
-                BluetoothAdapter mBluetoothAdapter = mBluetoothManager.getAdapter();
+                mBluetoothAdapter = mBluetoothManager.getAdapter();
                 if (mBluetoothAdapter != null) {
                     mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
                 } else {
@@ -109,41 +194,183 @@ public class AdvertiserService extends Service {
 
     }
 
+    private void onInteraction() {
+        if (mAdvertiseCallback == null && mExtendedAdvertiser == null) {
+            return;
+        }
+        Log.d(TAG, "Scanner interaction, raising advertising level");
+        mController.onInteraction(SystemClock.elapsedRealtime());
+        mHandler.removeCallbacks(mControlRunnable);
+        mControlRunnable.run();
+    }
+
     /**
-     * Starts a delayed Runnable that will cause the BLE Advertising to timeout and stop after a
-     * set amount of time.
+     * Rebuilds the status record and moves advertising to the level chosen by the
+     * AdvertiseController, or stops it if the battery is too low.
      */
-    private void setTimeout(){
-        mHandler = new Handler();
-        timeoutRunnable = new Runnable() {
-            @Override
-            public void run() {
-                Log.d(TAG, "AdvertiserService has reached timeout of "+TIMEOUT+" milliseconds, stopping advertising.");
-                sendFailureIntent(ADVERTISING_TIMED_OUT);
-                stopSelf();
+    private void updateAdvertising() {
+        updateStatusRecord();
+        int level = getControllerLevel();
+        if (level == AdvertiseController.LEVEL_OFF) {
+            Log.d(TAG, "Battery critically low, stopping advertising.");
+            sendFailureIntent(ADVERTISING_BATTERY_LOW);
+            stopSelf();
+            return;
+        }
+
+        int previousLevel = mLevel;
+        mLevel = level;
+        if (level != previousLevel) {
+            Log.d(TAG, "Advertising level " + previousLevel + " -> " + level);
+        }
+
+        if (mExtendedAdvertiser != null) {
+            if (level != previousLevel) {
+                mExtendedAdvertiser.setParameters(SET_BEACON, buildBeaconParameters(level));
+                mExtendedAdvertiser.setParameters(SET_STATUS, buildStatusParameters(level));
             }
-        };
-        mHandler.postDelayed(timeoutRunnable, TIMEOUT);
+            AdvertiseData data = buildAdvertiseData();
+            mExtendedAdvertiser.updateSet(SET_BEACON, data, null);
+            mExtendedAdvertiser.updateSet(SET_STATUS, buildStatusData(), data);
+        } else if (mAdvertiseCallback != null && (level != previousLevel
+                || SystemClock.elapsedRealtime() - mLegacyStartTime >= LEGACY_REFRESH_INTERVAL)) {
+            // Legacy advertising can only change its settings, and its data, by restarting.
+            // Between restarts it keeps broadcasting the status record it was started with.
+            mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallback);
+            startLegacyAdvertising();
+        }
+    }
+
+    private int getControllerLevel() {
+        int battery = (int) mStatusValues[StatusRecord.BATTERY];
+        return mController.getLevel(SystemClock.elapsedRealtime(),
+                battery != StatusRecord.BATTERY_UNKNOWN ? battery : -1,
+                mStatusValues[StatusRecord.CHARGING] != 0);
     }
 
     /**
-     * Starts BLE Advertising.
+     * Starts BLE Advertising, with extended advertising sets if the controller supports them and
+     * legacy advertising otherwise.
      */
     private void startAdvertising() {
         goForeground();
 
         Log.d(TAG, "Service: Starting Advertising");
 
-        if (mAdvertiseCallback == null) {
-            AdvertiseSettings settings = buildAdvertiseSettings();
-            AdvertiseData data = buildAdvertiseData();
-            mAdvertiseCallback = new SampleAdvertiseCallback();
+        if (mBluetoothLeAdvertiser == null
+                || mAdvertiseCallback != null || mExtendedAdvertiser != null) {
+            return;
+        }
+        mAdvertisingStartTime = SystemClock.elapsedRealtime();
+        mLastHistorySample = 0;
+        mStatusValues[StatusRecord.SEQUENCE] = 0;
+        updateStatusRecord();
+
+        mController.start(mAdvertisingStartTime);
+        mLevel = getControllerLevel();
+        if (mLevel == AdvertiseController.LEVEL_OFF) {
+            sendFailureIntent(ADVERTISING_BATTERY_LOW);
+            stopSelf();
+            return;
+        }
 
-            if (mBluetoothLeAdvertiser != null) {
-                mBluetoothLeAdvertiser.startAdvertising(settings, data,
-                    mAdvertiseCallback);
-            }
+        if (ExtendedAdvertiser.isSupported(mBluetoothAdapter)) {
+            startExtendedAdvertising();
+        } else {
+            startLegacyAdvertising();
         }
+        mHandler.postDelayed(mControlRunnable, CONTROL_INTERVAL);
+    }
+
+    private void startLegacyAdvertising() {
+        Log.d(TAG, "Service: Starting legacy advertising");
+
+        AdvertiseSettings settings = buildAdvertiseSettings();
+        AdvertiseData data = buildAdvertiseData();
+        AdvertiseData scanResponse = buildScanResponse();
+        mAdvertiseCallback = new SampleAdvertiseCallback();
+        mLegacyStartTime = SystemClock.elapsedRealtime();
+
+        mBluetoothLeAdvertiser.startAdvertising(settings, data, scanResponse, mAdvertiseCallback);
+    }
+
+    /**
+     * Starts two advertising sets with their own intervals and TX power: the same connectable
+     * advertisement as legacy advertising, so that every scanner keeps finding this device, and
+     * a non-connectable extended one broadcasting the status record, periodically too where
+     * supported.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private void startExtendedAdvertising() {
+        Log.d(TAG, "Service: Starting extended advertising");
+
+        mExtendedAdvertiser = new ExtendedAdvertiser(mBluetoothAdapter,
+                new ExtendedAdvertiser.Listener() {
+                    @Override
+                    public void onSetStarted(String name, int txPower) {
+                    }
+
+                    @Override
+                    public void onSetFailed(String name, int status) {
+                        if (mExtendedAdvertiser == null) {
+                            // Already fell back after the other set failed.
+                            return;
+                        }
+                        mExtendedAdvertiser.stopAll();
+                        mExtendedAdvertiser = null;
+                        if (status == AdvertisingSetCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED
+                                || status == AdvertisingSetCallback.ADVERTISE_FAILED_DATA_TOO_LARGE) {
+                            startLegacyAdvertising();
+                        } else {
+                            sendFailureIntent(status);
+                            stopSelf();
+                        }
+                    }
+                });
+
+        mExtendedAdvertiser.startSet(new ExtendedAdvertiser.SetConfig(SET_BEACON,
+                buildBeaconParameters(mLevel), buildAdvertiseData(), buildScanResponse(),
+                null, null));
+
+        PeriodicAdvertisingParameters periodicParameters =
+                new PeriodicAdvertisingParameters.Builder()
+                        .setInterval(PERIODIC_INTERVAL)
+                        .build();
+        mExtendedAdvertiser.startSet(new ExtendedAdvertiser.SetConfig(SET_STATUS,
+                buildStatusParameters(mLevel), buildStatusData(), null, periodicParameters,
+                buildAdvertiseData()));
+    }
+
+    /**
+     * Returns the parameters of the beacon set, which advertises as fast and as loud as the
+     * level allows.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private AdvertisingSetParameters buildBeaconParameters(int level) {
+        return new AdvertisingSetParameters.Builder()
+                .setLegacyMode(true)
+                .setConnectable(true)
+                .setScannable(true)
+                .setInterval(AdvertiseController.getInterval(level))
+                .setTxPowerLevel(AdvertiseController.getSetTxPower(level))
+                .build();
+    }
+
+    /**
+     * Returns the parameters of the status set. Its TX power stays at or below low, since the
+     * beacon set is the one scanners find the device with.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private AdvertisingSetParameters buildStatusParameters(int level) {
+        return new AdvertisingSetParameters.Builder()
+                .setLegacyMode(false)
+                .setConnectable(false)
+                .setScannable(false)
+                .setInterval(AdvertiseController.getInterval(level))
+                .setTxPowerLevel(Math.min(AdvertiseController.getSetTxPower(level),
+                        AdvertisingSetParameters.TX_POWER_LOW))
+                .setIncludeTxPower(true)
+                .build();
     }
 
     /**
@@ -169,14 +396,19 @@ public class AdvertiserService extends Service {
      */
     private void stopAdvertising() {
         Log.d(TAG, "Service: Stopping Advertising");
-        if (mBluetoothLeAdvertiser != null) {
+        mHandler.removeCallbacks(mControlRunnable);
+        if (mExtendedAdvertiser != null) {
+            mExtendedAdvertiser.stopAll();
+            mExtendedAdvertiser = null;
+        }
+        if (mBluetoothLeAdvertiser != null && mAdvertiseCallback != null) {
             mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallback);
             mAdvertiseCallback = null;
         }
     }
 
     /**
-     * Returns an AdvertiseData object which includes the Service UUID and Device Name.
+     * Returns an AdvertiseData object which includes the Service UUID and the status record.
      */
     private AdvertiseData buildAdvertiseData() {
 
@@ -187,11 +419,14 @@ public class AdvertiserService extends Service {
          *  Attempting to send packets over this limit will result in a failure with error code
          *  AdvertiseCallback.ADVERTISE_FAILED_DATA_TOO_LARGE. Catch this error in the
          *  onStartFailure() method of an AdvertiseCallback implementation.
+         *
+         *  The bit-packed status record takes about 10 of them, so the Device Name goes into
+         *  the scan response instead.
          */
 
         AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
         dataBuilder.addServiceUuid(Constants.Service_UUID);
-        dataBuilder.setIncludeDeviceName(true);
+        dataBuilder.addServiceData(Constants.Service_UUID, mStatusRecord);
 
         /* For example - this will cause advertising to fail (exceeds size limit) */
         //String failureData = "asdghkajsghalkxcjhfa;sghtalksjcfhalskfjhasldkjfhdskf";
@@ -201,12 +436,92 @@ public class AdvertiserService extends Service {
     }
 
     /**
-     * Returns an AdvertiseSettings object set to use low power (to help preserve battery life)
-     * and disable the built-in timeout since this code uses its own timeout runnable.
+     * Returns an AdvertiseData object with the Device Name and TX power, sent to scanners that
+     * ask for more. Scanners estimate their distance to this device from the TX power.
+     */
+    private AdvertiseData buildScanResponse() {
+        AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
+        dataBuilder.setIncludeDeviceName(true);
+        dataBuilder.setIncludeTxPowerLevel(true);
+        return dataBuilder.build();
+    }
+
+    /**
+     * Returns the data of the extended status set, which has room for the status record and
+     * the Device Name in a single advertisement.
+     */
+    private AdvertiseData buildStatusData() {
+        AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
+        dataBuilder.addServiceUuid(Constants.Service_UUID);
+        dataBuilder.addServiceData(Constants.Service_UUID, mStatusRecord);
+        dataBuilder.setIncludeDeviceName(true);
+        return dataBuilder.build();
+    }
+
+    /**
+     * Reads the battery state and encodes it into mStatusRecord, see {@link StatusRecord}.
+     */
+    private void updateStatusRecord() {
+        long[] values = mStatusValues;
+        ServiceDataCodec codec = StatusRecord.CODEC;
+
+        // Registering a null receiver just returns the sticky battery broadcast.
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        int level = -1;
+        int scale = 0;
+        if (battery != null) {
+            level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 0);
+            values[StatusRecord.CHARGING] =
+                    battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0 ? 1 : 0;
+            values[StatusRecord.TEMPERATURE] = codec.quantize(StatusRecord.TEMPERATURE,
+                    battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) / 10.0);
+            values[StatusRecord.VOLTAGE] = codec.quantize(StatusRecord.VOLTAGE,
+                    battery.getIntExtra(BatteryManager.EXTRA_VOLTAGE, 0) / 1000.0);
+        }
+        values[StatusRecord.VERSION] = StatusRecord.CURRENT_VERSION;
+        values[StatusRecord.BATTERY] = level >= 0 && scale > 0
+                ? level * 100 / scale : StatusRecord.BATTERY_UNKNOWN;
+
+        long now = SystemClock.elapsedRealtime();
+        values[StatusRecord.UPTIME] = TimeUnit.MILLISECONDS.toSeconds(now - mAdvertisingStartTime);
+        values[StatusRecord.SEQUENCE]++;
+
+        // Sample the battery level into the history every HISTORY_INTERVAL_MINUTES, the most
+        // recent sample first. Until there is a history, every entry is the current level.
+        int first = StatusRecord.BATTERY_HISTORY;
+        int last = first + StatusRecord.HISTORY_LENGTH - 1;
+        if (mLastHistorySample == 0) {
+            for (int i = first; i <= last; i++) {
+                values[i] = values[StatusRecord.BATTERY];
+            }
+            mLastHistorySample = now;
+        } else if (now - mLastHistorySample
+                >= TimeUnit.MINUTES.toMillis(StatusRecord.HISTORY_INTERVAL_MINUTES)) {
+            System.arraycopy(values, first, values, first + 1, StatusRecord.HISTORY_LENGTH - 1);
+            values[first] = values[StatusRecord.BATTERY];
+            mLastHistorySample = now;
+        }
+
+        int length = codec.encode(values, mStatusBuffer, 0);
+        byte[] record = mStatusRecords[length];
+        if (record == null) {
+            record = new byte[length];
+            mStatusRecords[length] = record;
+        }
+        System.arraycopy(mStatusBuffer, 0, record, 0, length);
+        mStatusRecord = record;
+    }
+
+    /**
+     * Returns an AdvertiseSettings object with the advertise mode and TX power of the current
+     * level, and the built-in timeout disabled since the AdvertiseController decides when to
+     * slow down or stop.
      */
     private AdvertiseSettings buildAdvertiseSettings() {
         AdvertiseSettings.Builder settingsBuilder = new AdvertiseSettings.Builder();
-        settingsBuilder.setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_POWER);
+        settingsBuilder.setAdvertiseMode(AdvertiseController.getAdvertiseMode(mLevel));
+        settingsBuilder.setTxPowerLevel(AdvertiseController.getTxPowerLevel(mLevel));
         settingsBuilder.setTimeout(0);
         return settingsBuilder.build();
     }
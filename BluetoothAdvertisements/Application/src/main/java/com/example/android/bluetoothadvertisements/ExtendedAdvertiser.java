@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.bluetooth.le.PeriodicAdvertisingParameters;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Runs several BLE 5 advertising sets side by side, each with its own parameters, payload and
+ * optional periodic advertising.
+ *
+ * <p>Extended advertisements carry up to {@link #getMaxDataLength()} bytes, instead of the 31
+ * bytes of legacy advertising, so a whole status record fits in a single broadcast. Sets are
+ * identified by a name chosen by the caller, which is also used to update their data while they
+ * run.
+ */
+@TargetApi(Build.VERSION_CODES.O)
+public class ExtendedAdvertiser {
+
+    private static final String TAG = ExtendedAdvertiser.class.getSimpleName();
+
+    /**
+     * Reports the outcome of starting each set.
+     */
+    public interface Listener {
+        void onSetStarted(String name, int txPower);
+
+        /**
+         * @param status One of the {@code AdvertisingSetCallback.ADVERTISE_*} error codes.
+         */
+        void onSetFailed(String name, int status);
+    }
+
+    /**
+     * Everything needed to start one advertising set. The scan response is only used by
+     * scannable sets. The periodic parameters and data may be null, in which case no periodic
+     * advertising is done.
+     */
+    public static class SetConfig {
+        final String name;
+        final AdvertisingSetParameters parameters;
+        final AdvertiseData data;
+        final AdvertiseData scanResponse;
+        final PeriodicAdvertisingParameters periodicParameters;
+        final AdvertiseData periodicData;
+
+        public SetConfig(String name, AdvertisingSetParameters parameters, AdvertiseData data,
+                AdvertiseData scanResponse, PeriodicAdvertisingParameters periodicParameters,
+                AdvertiseData periodicData) {
+            this.name = name;
+            this.parameters = parameters;
+            this.data = data;
+            this.scanResponse = scanResponse;
+            this.periodicParameters = periodicParameters;
+            this.periodicData = periodicData;
+        }
+    }
+
+    private final BluetoothAdapter mBluetoothAdapter;
+
+    private final BluetoothLeAdvertiser mBluetoothLeAdvertiser;
+
+    private final Listener mListener;
+
+    private final HashMap<String, SetCallback> mSets = new HashMap<>();
+
+    /**
+     * Returns whether the controller can do extended advertising. When it can't, the caller
+     * should fall back to {@link BluetoothLeAdvertiser#startAdvertising}.
+     */
+    public static boolean isSupported(BluetoothAdapter adapter) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && adapter.isLeExtendedAdvertisingSupported();
+    }
+
+    public ExtendedAdvertiser(BluetoothAdapter adapter, Listener listener) {
+        mBluetoothAdapter = adapter;
+        mBluetoothLeAdvertiser = adapter.getBluetoothLeAdvertiser();
+        mListener = listener;
+    }
+
+    /**
+     * Returns the largest advertising data the controller accepts for an extended set.
+     */
+    public int getMaxDataLength() {
+        return mBluetoothAdapter.getLeMaximumAdvertisingDataLength();
+    }
+
+    public boolean isPeriodicSupported() {
+        return mBluetoothAdapter.isLePeriodicAdvertisingSupported();
+    }
+
+    /**
+     * Starts a new advertising set. A set already running under the same name is stopped first.
+     */
+    public void startSet(SetConfig config) {
+        stopSet(config.name);
+
+        PeriodicAdvertisingParameters periodicParameters =
+                isPeriodicSupported() ? config.periodicParameters : null;
+        SetCallback callback = new SetCallback(config.name, periodicParameters != null);
+        mSets.put(config.name, callback);
+        mBluetoothLeAdvertiser.startAdvertisingSet(config.parameters, config.data,
+                config.scanResponse,
+                periodicParameters, periodicParameters != null ? config.periodicData : null,
+                callback);
+    }
+
+    /**
+     * Replaces the advertising data, and the periodic data if given, of a running set without
+     * restarting it.
+     */
+    public void updateSet(String name, AdvertiseData data, AdvertiseData periodicData) {
+        SetCallback callback = mSets.get(name);
+        if (callback == null || callback.mSet == null) {
+            // Not started yet; the data given to startSet() will be used.
+            return;
+        }
+        callback.mSet.setAdvertisingData(data);
+        if (periodicData != null && callback.mPeriodic) {
+            callback.mSet.setPeriodicAdvertisingData(periodicData);
+        }
+    }
+
+    /**
+     * Changes the parameters, such as interval and TX power, of a running set. Advertising is
+     * paused for the change, as the stack requires: it is disabled, the parameters are set and
+     * it is enabled again, each step once the stack has reported the previous one done. If the
+     * parameters are changed again meanwhile, only the latest are applied.
+     */
+    public void setParameters(String name, AdvertisingSetParameters parameters) {
+        SetCallback callback = mSets.get(name);
+        if (callback == null || callback.mSet == null) {
+            return;
+        }
+        callback.mNextParameters = parameters;
+        if (!callback.mUpdating) {
+            callback.mUpdating = true;
+            callback.mSet.enableAdvertising(false, 0, 0);
+        }
+    }
+
+    public void stopSet(String name) {
+        SetCallback callback = mSets.remove(name);
+        if (callback != null) {
+            mBluetoothLeAdvertiser.stopAdvertisingSet(callback);
+        }
+    }
+
+    public void stopAll() {
+        for (SetCallback callback : mSets.values()) {
+            mBluetoothLeAdvertiser.stopAdvertisingSet(callback);
+        }
+        mSets.clear();
+    }
+
+    /**
+     * Tracks the {@link AdvertisingSet} handed out for one set.
+     */
+    private class SetCallback extends AdvertisingSetCallback {
+
+        private final String mName;
+
+        private AdvertisingSet mSet;
+
+        private boolean mPeriodic;
+
+        /**
+         * Whether a parameter change is in progress, from disabling the set until it is enabled
+         * again.
+         */
+        private boolean mUpdating;
+
+        /**
+         * Parameters waiting to be set once the set is disabled, or null.
+         */
+        private AdvertisingSetParameters mNextParameters;
+
+        SetCallback(String name, boolean periodic) {
+            mName = name;
+            mPeriodic = periodic;
+        }
+
+        @Override
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower,
+                int status) {
+            if (status != ADVERTISE_SUCCESS) {
+                Log.d(TAG, "Advertising set " + mName + " failed to start: " + status);
+                if (mSets.get(mName) == this) {
+                    mSets.remove(mName);
+                }
+                mListener.onSetFailed(mName, status);
+                return;
+            }
+            Log.d(TAG, "Advertising set " + mName + " started at " + txPower + " dBm");
+            mSet = advertisingSet;
+            mListener.onSetStarted(mName, txPower);
+        }
+
+        @Override
+        public void onAdvertisingEnabled(AdvertisingSet advertisingSet, boolean enable,
+                int status) {
+            if (!mUpdating) {
+                return;
+            }
+            if (status != ADVERTISE_SUCCESS) {
+                // The set keeps advertising as it was; the next change starts over.
+                Log.d(TAG, "Advertising set " + mName + " failed to change parameters: " + status);
+                mUpdating = false;
+                mNextParameters = null;
+            } else if (enable) {
+                mUpdating = false;
+            } else {
+                setNextParameters(advertisingSet);
+            }
+        }
+
+        @Override
+        public void onAdvertisingParametersUpdated(AdvertisingSet advertisingSet, int txPower,
+                int status) {
+            if (!mUpdating) {
+                return;
+            }
+            if (status != ADVERTISE_SUCCESS) {
+                Log.d(TAG, "Advertising set " + mName + " rejected parameters: " + status);
+            } else {
+                Log.d(TAG, "Advertising set " + mName + " now at " + txPower + " dBm");
+            }
+            if (mNextParameters != null) {
+                // Changed again while these were being set.
+                setNextParameters(advertisingSet);
+            } else {
+                advertisingSet.enableAdvertising(true, 0, 0);
+            }
+        }
+
+        private void setNextParameters(AdvertisingSet advertisingSet) {
+            AdvertisingSetParameters parameters = mNextParameters;
+            mNextParameters = null;
+            advertisingSet.setAdvertisingParameters(parameters);
+        }
+
+        @Override
+        public void onPeriodicAdvertisingEnabled(AdvertisingSet advertisingSet, boolean enable,
+                int status) {
+            mPeriodic = enable && status == ADVERTISE_SUCCESS;
+            Log.d(TAG, "Periodic advertising for " + mName + (mPeriodic ? " enabled" : " off"));
+        }
+
+        @Override
+        public void onAdvertisingSetStopped(AdvertisingSet advertisingSet) {
+            Log.d(TAG, "Advertising set " + mName + " stopped");
+            mSet = null;
+            mUpdating = false;
+            mNextParameters = null;
+        }
+    }
+}
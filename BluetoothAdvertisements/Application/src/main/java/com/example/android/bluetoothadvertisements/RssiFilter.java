@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.annotation.TargetApi;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.Build;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Smooths the path loss to each device with a one-dimensional Kalman filter and estimates its
+ * distance from the result.
+ *
+ * <p>Raw RSSI readings jump by 10 dB or more between packets because of multipath fading and
+ * body shadowing. The filter models the true path loss, the RSSI expected at 1 meter minus the
+ * RSSI read, as a random walk, so the estimate follows a device that moves while averaging out
+ * the noise of one that doesn't. Readings further than {@link #GATE} standard deviations from
+ * the estimate are rejected as outliers, unless several arrive in a row, which means the device
+ * really moved and the filter restarts from there.
+ *
+ * <p>The distance follows the log-distance path loss model. The RSSI expected at 1 meter is
+ * derived from the TX power in each advertisement when there is one, so a device changing its
+ * TX power, which moves its RSSI by up to 22 dB, doesn't disturb the estimate. The confidence
+ * drops as the filter's uncertainty grows, including while no readings arrive.
+ *
+ * <p>State is kept in primitive arrays indexed by a slot per device, so an update costs a map
+ * lookup and a few floating point operations. Must be used from a single thread.
+ */
+public class RssiFilter {
+
+    /**
+     * Variance of the path loss from a single RSSI reading, in dB^2.
+     */
+    private static final float MEASUREMENT_VARIANCE = 25f;
+
+    /**
+     * How fast the true path loss is expected to drift, in dB^2 per second.
+     */
+    private static final float PROCESS_VARIANCE_PER_SECOND = 2f;
+
+    /**
+     * Readings this many standard deviations away from the estimate are outliers.
+     */
+    private static final float GATE = 3f;
+
+    /**
+     * Consecutive outliers after which the filter restarts from the latest reading.
+     */
+    private static final int MAX_REJECTED = 3;
+
+    /**
+     * Uncertainty of the estimate, in dB, at which the confidence reaches zero.
+     */
+    private static final float MAX_STANDARD_DEVIATION = 10f;
+
+    /**
+     * RSSI at 1 meter assumed when the advertisement carries no TX power.
+     */
+    public static final int DEFAULT_RSSI_AT_ONE_METER = -59;
+
+    /**
+     * Typical loss between the antenna and 1 meter away at 2.4 GHz, in dB.
+     */
+    private static final int LOSS_AT_ONE_METER = 41;
+
+    /**
+     * Path loss exponent: 2 in free space, higher indoors.
+     */
+    private static final float PATH_LOSS_EXPONENT = 2.2f;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final HashMap<String, Integer> mSlots = new HashMap<>();
+
+    /**
+     * Estimated path loss of each slot, in dB.
+     */
+    private float[] mEstimates = new float[INITIAL_CAPACITY];
+
+    private float[] mVariances = new float[INITIAL_CAPACITY];
+
+    /**
+     * RSSI at 1 meter of each slot's latest reading, to turn the path loss back into an RSSI.
+     */
+    private int[] mRssiAtOneMeter = new int[INITIAL_CAPACITY];
+
+    private long[] mUpdateTimes = new long[INITIAL_CAPACITY];
+
+    private int[] mRejected = new int[INITIAL_CAPACITY];
+
+    /**
+     * Slots freed by {@link #remove(String)}, reused before new ones are handed out.
+     */
+    private int[] mFreeSlots = new int[INITIAL_CAPACITY];
+
+    private int mFreeCount;
+
+    private int mSlotCount;
+
+    /**
+     * Feeds one scan result to the filter of its device.
+     *
+     * @return The device's slot.
+     */
+    public int update(ScanResult result) {
+        return update(result.getDevice().getAddress(), result.getRssi(),
+                getRssiAtOneMeter(result), result.getTimestampNanos());
+    }
+
+    /**
+     * Feeds one RSSI reading to the filter of a device.
+     *
+     * @param rssiAtOneMeter The RSSI expected from the device at 1 meter.
+     * @param timestampNanos When the reading was taken, on the elapsed realtime clock.
+     * @return The device's slot.
+     */
+    public int update(String address, int rssi, int rssiAtOneMeter, long timestampNanos) {
+        int pathLoss = rssiAtOneMeter - rssi;
+        Integer existing = mSlots.get(address);
+        int slot;
+        if (existing == null) {
+            slot = allocateSlot();
+            mSlots.put(address, slot);
+            reset(slot, pathLoss, timestampNanos);
+        } else {
+            slot = existing;
+            float variance = predictVariance(slot, timestampNanos);
+            float innovation = pathLoss - mEstimates[slot];
+            float innovationVariance = variance + MEASUREMENT_VARIANCE;
+
+            if (innovation * innovation > GATE * GATE * innovationVariance) {
+                if (++mRejected[slot] >= MAX_REJECTED) {
+                    reset(slot, pathLoss, timestampNanos);
+                }
+            } else {
+                float gain = variance / innovationVariance;
+                mEstimates[slot] += gain * innovation;
+                mVariances[slot] = (1 - gain) * variance;
+                mUpdateTimes[slot] = timestampNanos;
+                mRejected[slot] = 0;
+            }
+        }
+        mRssiAtOneMeter[slot] = rssiAtOneMeter;
+        return slot;
+    }
+
+    /**
+     * Returns the slot of a device, or -1 if the filter has never seen it.
+     */
+    public int getSlot(String address) {
+        Integer slot = mSlots.get(address);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * Returns the smoothed RSSI of the device in a slot at the TX power of its latest reading,
+     * in dBm.
+     */
+    public float getRssi(int slot) {
+        return mRssiAtOneMeter[slot] - mEstimates[slot];
+    }
+
+    /**
+     * Returns the estimated distance to the device in a slot, in meters.
+     */
+    public float getDistance(int slot) {
+        return (float) Math.pow(10, mEstimates[slot] / (10 * PATH_LOSS_EXPONENT));
+    }
+
+    /**
+     * Returns how much the estimates for the device in a slot can be trusted at the given time,
+     * from 0 to 1.
+     */
+    public float getConfidence(int slot, long nowNanos) {
+        float standardDeviation = (float) Math.sqrt(predictVariance(slot, nowNanos));
+        return Math.max(0, 1 - standardDeviation / MAX_STANDARD_DEVIATION);
+    }
+
+    /**
+     * Forgets a device, freeing its slot.
+     */
+    public void remove(String address) {
+        Integer slot = mSlots.remove(address);
+        if (slot != null) {
+            if (mFreeCount == mFreeSlots.length) {
+                mFreeSlots = Arrays.copyOf(mFreeSlots, mFreeCount * 2);
+            }
+            mFreeSlots[mFreeCount++] = slot;
+        }
+    }
+
+    public void clear() {
+        mSlots.clear();
+        mFreeCount = 0;
+        mSlotCount = 0;
+    }
+
+    /**
+     * Returns the RSSI expected at 1 meter from the TX power in a scan result, or
+     * {@link #DEFAULT_RSSI_AT_ONE_METER} if the advertisement doesn't say.
+     */
+    public static int getRssiAtOneMeter(ScanResult result) {
+        int txPower = Integer.MIN_VALUE;
+        ScanRecord scanRecord = result.getScanRecord();
+        if (scanRecord != null) {
+            txPower = scanRecord.getTxPowerLevel();
+        }
+        if (txPower == Integer.MIN_VALUE && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // Extended advertisements can carry the TX power in their header instead.
+            txPower = getHeaderTxPower(result);
+        }
+        return txPower != Integer.MIN_VALUE
+                ? txPower - LOSS_AT_ONE_METER : DEFAULT_RSSI_AT_ONE_METER;
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private static int getHeaderTxPower(ScanResult result) {
+        int txPower = result.getTxPower();
+        return txPower != ScanResult.TX_POWER_NOT_PRESENT ? txPower : Integer.MIN_VALUE;
+    }
+
+    private float predictVariance(int slot, long nowNanos) {
+        float seconds = Math.max(0, nowNanos - mUpdateTimes[slot]) / 1e9f;
+        return mVariances[slot] + PROCESS_VARIANCE_PER_SECOND * seconds;
+    }
+
+    private void reset(int slot, int pathLoss, long timestampNanos) {
+        mEstimates[slot] = pathLoss;
+        mVariances[slot] = MEASUREMENT_VARIANCE;
+        mUpdateTimes[slot] = timestampNanos;
+        mRejected[slot] = 0;
+    }
+
+    private int allocateSlot() {
+        if (mFreeCount > 0) {
+            return mFreeSlots[--mFreeCount];
+        }
+        if (mSlotCount == mEstimates.length) {
+            int capacity = mSlotCount * 2;
+            mEstimates = Arrays.copyOf(mEstimates, capacity);
+            mVariances = Arrays.copyOf(mVariances, capacity);
+            mRssiAtOneMeter = Arrays.copyOf(mRssiAtOneMeter, capacity);
+            mUpdateTimes = Arrays.copyOf(mUpdateTimes, capacity);
+            mRejected = Arrays.copyOf(mRejected, capacity);
+        }
+        return mSlotCount++;
+    }
+}
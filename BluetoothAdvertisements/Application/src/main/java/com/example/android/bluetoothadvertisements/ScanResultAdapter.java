@@ -16,6 +16,7 @@
 
 package com.example.android.bluetoothadvertisements;
 
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.os.SystemClock;
@@ -26,6 +27,7 @@ import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -33,17 +35,45 @@ import java.util.concurrent.TimeUnit;
  */
 public class ScanResultAdapter extends BaseAdapter {
 
+    /**
+     * Devices not seen for this long are dropped from the list. (2 minutes)
+     */
+    private static final long DEFAULT_EVICTION_WINDOW = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * Minimum time between two sweeps for stale devices, so that eviction stays off the
+     * per-result path.
+     */
+    private static final long EVICTION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
     private ArrayList<ScanResult> mArrayList;
 
+    /**
+     * Position of each device's latest ScanResult in mArrayList, keyed by device address.
+     */
+    private HashMap<String, Integer> mPositions;
+
+    private long mEvictionWindowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_EVICTION_WINDOW);
+
+    private long mLastEvictionNanos;
+
     private Context mContext;
 
     private LayoutInflater mInflater;
 
+    private final RssiFilter mRssiFilter = new RssiFilter();
+
+    /**
+     * Scratch space for decoding status records while binding rows.
+     */
+    private final long[] mStatusValues = new long[StatusRecord.FIELD_COUNT];
+
     ScanResultAdapter(Context context, LayoutInflater inflater) {
         super();
         mContext = context;
         mInflater = inflater;
         mArrayList = new ArrayList<>();
+        mPositions = new HashMap<>();
     }
 
     @Override
@@ -72,6 +102,8 @@ public class ScanResultAdapter extends BaseAdapter {
         TextView deviceNameView = (TextView) view.findViewById(R.id.device_name);
         TextView deviceAddressView = (TextView) view.findViewById(R.id.device_address);
         TextView lastSeenView = (TextView) view.findViewById(R.id.last_seen);
+        TextView proximityView = (TextView) view.findViewById(R.id.device_proximity);
+        TextView statusView = (TextView) view.findViewById(R.id.device_status);
 
         ScanResult scanResult = mArrayList.get(position);
 
@@ -83,39 +115,131 @@ public class ScanResultAdapter extends BaseAdapter {
         deviceAddressView.setText(scanResult.getDevice().getAddress());
         lastSeenView.setText(getTimeSinceString(mContext, scanResult.getTimestampNanos()));
 
+        int slot = mRssiFilter.getSlot(scanResult.getDevice().getAddress());
+        if (slot >= 0) {
+            float confidence =
+                    mRssiFilter.getConfidence(slot, SystemClock.elapsedRealtimeNanos());
+            proximityView.setText(mContext.getString(R.string.device_proximity,
+                    Math.round(mRssiFilter.getRssi(slot)), mRssiFilter.getDistance(slot),
+                    Math.round(confidence * 100)));
+        } else {
+            proximityView.setText(mContext.getString(R.string.device_rssi,
+                    scanResult.getRssi()));
+        }
+
+        if (decodeStatus(scanResult.getScanRecord())) {
+            statusView.setText(getStatusString(mContext, mStatusValues));
+            statusView.setVisibility(View.VISIBLE);
+        } else {
+            statusView.setVisibility(View.GONE);
+        }
+
         return view;
     }
 
     /**
-     * Search the adapter for an existing device address and return it, otherwise return -1.
+     * Decodes the status record in the advertisement, if any, into mStatusValues.
+     *
+     * @return true if the advertisement held a status record this app understands.
      */
-    private int getPosition(String address) {
-        int position = -1;
-        for (int i = 0; i < mArrayList.size(); i++) {
-            if (mArrayList.get(i).getDevice().getAddress().equals(address)) {
-                position = i;
-                break;
-            }
+    private boolean decodeStatus(ScanRecord scanRecord) {
+        if (scanRecord == null) {
+            return false;
         }
-        return position;
+        byte[] serviceData = scanRecord.getServiceData(Constants.Service_UUID);
+        return serviceData != null
+                && StatusRecord.CODEC.decode(serviceData, 0, serviceData.length, mStatusValues)
+                && mStatusValues[StatusRecord.VERSION] == StatusRecord.CURRENT_VERSION;
     }
 
+    /**
+     * Returns the filter smoothing the RSSI of the listed devices. Every result received should
+     * be fed to it, not only those passed to {@link #add(ScanResult)}.
+     */
+    public RssiFilter getRssiFilter() {
+        return mRssiFilter;
+    }
 
     /**
      * Add a ScanResult item to the adapter if a result from that device isn't already present.
      * Otherwise updates the existing position with the new ScanResult.
+     *
+     * @return true if the list changed shape, i.e. a device was added or stale devices were
+     *         evicted, rather than only an existing row being updated.
      */
-    public void add(ScanResult scanResult) {
+    public boolean add(ScanResult scanResult) {
 
-        int existingPosition = getPosition(scanResult.getDevice().getAddress());
+        String address = scanResult.getDevice().getAddress();
+        Integer existingPosition = mPositions.get(address);
 
-        if (existingPosition >= 0) {
+        boolean structureChanged;
+        if (existingPosition != null) {
             // Device is already in list, update its record.
             mArrayList.set(existingPosition, scanResult);
+            structureChanged = false;
         } else {
             // Add new Device's ScanResult to list.
+            mPositions.put(address, mArrayList.size());
             mArrayList.add(scanResult);
+            structureChanged = true;
         }
+
+        // Results carry their own timestamp, so no clock read is needed to decide on a sweep.
+        long now = scanResult.getTimestampNanos();
+        if (now - mLastEvictionNanos >= EVICTION_INTERVAL_NANOS) {
+            structureChanged |= evictStale(now);
+        }
+        return structureChanged;
+    }
+
+    /**
+     * Returns the position of the device with the given address, or -1 if it is not listed.
+     */
+    public int getPosition(String address) {
+        Integer position = mPositions.get(address);
+        return position != null ? position : -1;
+    }
+
+    /**
+     * Sets how long a device may go unseen before it is removed from the list.
+     */
+    public void setEvictionWindow(long duration, TimeUnit unit) {
+        mEvictionWindowNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Removes devices that have not been seen within the eviction window.
+     *
+     * @return true if any device was removed.
+     */
+    public boolean evictStale() {
+        return evictStale(SystemClock.elapsedRealtimeNanos());
+    }
+
+    private boolean evictStale(long nowNanos) {
+        mLastEvictionNanos = nowNanos;
+        long cutoff = nowNanos - mEvictionWindowNanos;
+
+        // Compact the list in place, keeping the order of the remaining devices.
+        int kept = 0;
+        for (int i = 0; i < mArrayList.size(); i++) {
+            ScanResult scanResult = mArrayList.get(i);
+            if (scanResult.getTimestampNanos() >= cutoff) {
+                mArrayList.set(kept++, scanResult);
+            } else {
+                mRssiFilter.remove(scanResult.getDevice().getAddress());
+            }
+        }
+        if (kept == mArrayList.size()) {
+            return false;
+        }
+        mArrayList.subList(kept, mArrayList.size()).clear();
+
+        mPositions.clear();
+        for (int i = 0; i < mArrayList.size(); i++) {
+            mPositions.put(mArrayList.get(i).getDevice().getAddress(), i);
+        }
+        return true;
     }
 
     /**
@@ -123,6 +247,34 @@ public class ScanResultAdapter extends BaseAdapter {
      */
     public void clear() {
         mArrayList.clear();
+        mPositions.clear();
+        mRssiFilter.clear();
+    }
+
+    /**
+     * Returns a one line summary of decoded status record values.
+     */
+    public static String getStatusString(Context context, long[] values) {
+        ServiceDataCodec codec = StatusRecord.CODEC;
+        int battery = (int) values[StatusRecord.BATTERY];
+
+        String batteryText;
+        if (battery == StatusRecord.BATTERY_UNKNOWN) {
+            batteryText = context.getString(R.string.battery_unknown);
+        } else if (values[StatusRecord.CHARGING] != 0) {
+            batteryText = context.getString(R.string.battery_charging, battery);
+        } else {
+            batteryText = context.getString(R.string.battery_level, battery);
+        }
+
+        int oldest = StatusRecord.BATTERY_HISTORY + StatusRecord.HISTORY_LENGTH - 1;
+        return context.getString(R.string.device_status,
+                batteryText,
+                battery - (int) values[oldest],
+                StatusRecord.HISTORY_LENGTH * StatusRecord.HISTORY_INTERVAL_MINUTES,
+                codec.dequantize(StatusRecord.TEMPERATURE, values[StatusRecord.TEMPERATURE]),
+                codec.dequantize(StatusRecord.VOLTAGE, values[StatusRecord.VOLTAGE]),
+                TimeUnit.SECONDS.toMinutes(values[StatusRecord.UPTIME]));
     }
 
     /**
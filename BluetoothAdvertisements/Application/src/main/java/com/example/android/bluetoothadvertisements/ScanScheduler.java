@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.annotation.TargetApi;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps a BLE scan going indefinitely by duty cycling it: the scanner runs for a scan window at
+ * the start of every scan interval and is off for the rest of it.
+ *
+ * <p>The scan mode is picked again at the start of every interval. With the screen off the
+ * scheduler switches to {@link ScanSettings#SCAN_MODE_LOW_POWER} and a sparser duty cycle. With
+ * the screen on it scans in {@link ScanSettings#SCAN_MODE_BALANCED}, moving up to
+ * {@link ScanSettings#SCAN_MODE_LOW_LATENCY} while many new devices are turning up. Intervals
+ * in which nothing new was found stretch the next interval, up to four times its configured
+ * length. A device counts as new if it was not seen in the last {@link #FORGET_AFTER}
+ * milliseconds, so a device that leaves and comes back counts again.
+ *
+ * <p>Android ignores, without reporting an error, scans started more than 5 times within 30
+ * seconds by the same app, so the scheduler delays a start that would exceed that limit.
+ *
+ * <p>Must be used from the main thread, which is also where scan results are delivered.
+ */
+public class ScanScheduler {
+
+    private static final String TAG = ScanScheduler.class.getSimpleName();
+
+    /**
+     * Platform limit on scan starts: at most MAX_STARTS within START_LIMIT_WINDOW.
+     */
+    private static final int MAX_STARTS = 5;
+
+    private static final long START_LIMIT_WINDOW = 30000;
+
+    /**
+     * New devices in one interval at which the next interval scans in low latency mode.
+     */
+    private static final int BUSY_THRESHOLD = 3;
+
+    /**
+     * Quiet intervals double the next one, at most this many times.
+     */
+    private static final int MAX_BACKOFF_SHIFT = 2;
+
+    /**
+     * How long after it was last seen a device is forgotten, longer than the longest screen off
+     * interval so that devices that stay around are not counted again.
+     */
+    private static final long FORGET_AFTER = 300000;
+
+    /**
+     * Called at the end of every scan interval.
+     */
+    public interface Listener {
+        void onScanIntervalEnd();
+    }
+
+    private final BluetoothLeScanner mBluetoothLeScanner;
+
+    private final List<ScanFilter> mScanFilters;
+
+    private final ScanCallback mClientCallback;
+
+    private final Listener mListener;
+
+    private final PowerManager mPowerManager;
+
+    private final Handler mHandler = new Handler();
+
+    private long mWindow = 4000;
+
+    private long mInterval = 10000;
+
+    private long mScreenOffWindow = 2000;
+
+    private long mScreenOffInterval = 60000;
+
+    private boolean mExtendedScan;
+
+    /**
+     * Times of the most recent scan starts, as a ring buffer.
+     */
+    private final long[] mStartTimes = new long[MAX_STARTS];
+
+    private int mNextStart;
+
+    /**
+     * When each device was last seen, by address, in {@link SystemClock#elapsedRealtime()}.
+     */
+    private final HashMap<String, Long> mLastSeen = new HashMap<>();
+
+    private int mNewDevices;
+
+    private int mQuietIntervals;
+
+    private boolean mRunning;
+
+    private boolean mScanning;
+
+    private int mScanMode = -1;
+
+    private final Runnable mIntervalRunnable = new Runnable() {
+        @Override
+        public void run() {
+            endInterval();
+            startInterval();
+        }
+    };
+
+    /**
+     * Starts an interval that had to wait for the scan start rate limit, without ending one.
+     */
+    private final Runnable mStartRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startInterval();
+        }
+    };
+
+    private final Runnable mWindowEndRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stopScan();
+        }
+    };
+
+    /**
+     * Counts devices not seen before, then passes results on to the client's callback.
+     */
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            countDevice(result);
+            mClientCallback.onScanResult(callbackType, result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                countDevice(result);
+            }
+            mClientCallback.onBatchScanResults(results);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            mScanning = false;
+            mClientCallback.onScanFailed(errorCode);
+        }
+    };
+
+    public ScanScheduler(Context context, BluetoothLeScanner scanner, List<ScanFilter> filters,
+            ScanCallback callback, Listener listener) {
+        mBluetoothLeScanner = scanner;
+        mScanFilters = filters;
+        mClientCallback = callback;
+        mListener = listener;
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    /**
+     * Sets the duty cycle used while the screen is on. A window at least as long as the
+     * interval scans continuously.
+     */
+    public void setDutyCycle(long windowMillis, long intervalMillis) {
+        mWindow = windowMillis;
+        mInterval = intervalMillis;
+    }
+
+    /**
+     * Sets the duty cycle used while the screen is off.
+     */
+    public void setScreenOffDutyCycle(long windowMillis, long intervalMillis) {
+        mScreenOffWindow = windowMillis;
+        mScreenOffInterval = intervalMillis;
+    }
+
+    /**
+     * Also reports extended (BLE 5) advertisements on every supported PHY. Only enable this if
+     * the controller supports extended advertising, otherwise scans fail to start.
+     */
+    public void setExtendedScan(boolean extendedScan) {
+        mExtendedScan = extendedScan;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mQuietIntervals = 0;
+        mNewDevices = 0;
+        startInterval();
+    }
+
+    public void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mIntervalRunnable);
+        mHandler.removeCallbacks(mStartRetryRunnable);
+        mHandler.removeCallbacks(mWindowEndRunnable);
+        stopScan();
+        mLastSeen.clear();
+    }
+
+    private void startInterval() {
+        if (!mRunning) {
+            return;
+        }
+
+        boolean screenOn = mPowerManager.isInteractive();
+        long window = screenOn ? mWindow : mScreenOffWindow;
+        long interval = screenOn ? mInterval : mScreenOffInterval;
+        boolean continuous = window >= interval;
+        if (!continuous) {
+            interval <<= Math.min(mQuietIntervals, MAX_BACKOFF_SHIFT);
+        }
+
+        int scanMode;
+        if (!screenOn) {
+            scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+        } else if (mNewDevices >= BUSY_THRESHOLD) {
+            scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+        } else {
+            scanMode = ScanSettings.SCAN_MODE_BALANCED;
+        }
+
+        // A continuous scan in the right mode is left alone, which saves a start.
+        if (!(mScanning && continuous && scanMode == mScanMode)) {
+            stopScan();
+            long wait = delayBeforeNextStart();
+            if (wait > 0) {
+                // Nothing is scanned while waiting, so the interval starts over, in the same
+                // mode, once the limit allows.
+                Log.d(TAG, "Scan start rate limit reached, waiting " + wait + " ms");
+                mHandler.postDelayed(mStartRetryRunnable, wait);
+                return;
+            }
+            startScan(scanMode);
+            if (!continuous) {
+                mHandler.postDelayed(mWindowEndRunnable, window);
+            }
+        }
+        mNewDevices = 0;
+        mHandler.postDelayed(mIntervalRunnable, interval);
+    }
+
+    private void endInterval() {
+        if (mNewDevices == 0) {
+            mQuietIntervals++;
+        } else {
+            mQuietIntervals = 0;
+        }
+        forgetDevices();
+        mListener.onScanIntervalEnd();
+    }
+
+    private void forgetDevices() {
+        long forgetBefore = SystemClock.elapsedRealtime() - FORGET_AFTER;
+        Iterator<Long> it = mLastSeen.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() < forgetBefore) {
+                it.remove();
+            }
+        }
+    }
+
+    private void startScan(int scanMode) {
+        ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setScanMode(scanMode);
+        if (mExtendedScan && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            setExtended(builder);
+        }
+        ScanSettings settings = builder.build();
+        try {
+            mBluetoothLeScanner.startScan(mScanFilters, settings, mScanCallback);
+        } catch (IllegalStateException e) {
+            // Bluetooth was turned off; try again next interval.
+            Log.w(TAG, "Unable to start scan", e);
+            return;
+        }
+        mScanning = true;
+        mScanMode = scanMode;
+        mStartTimes[mNextStart] = SystemClock.elapsedRealtime();
+        mNextStart = (mNextStart + 1) % MAX_STARTS;
+        Log.d(TAG, "Scanning in mode " + scanMode);
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private static void setExtended(ScanSettings.Builder builder) {
+        builder.setLegacy(false);
+        builder.setPhy(ScanSettings.PHY_LE_ALL_SUPPORTED);
+    }
+
+    private void stopScan() {
+        mHandler.removeCallbacks(mWindowEndRunnable);
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        try {
+            mBluetoothLeScanner.stopScan(mScanCallback);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Unable to stop scan", e);
+        }
+    }
+
+    /**
+     * Returns how long to wait before another start stays within the platform's rate limit.
+     */
+    private long delayBeforeNextStart() {
+        // The slot about to be overwritten holds the oldest of the last MAX_STARTS starts.
+        long oldest = mStartTimes[mNextStart];
+        if (oldest == 0) {
+            return 0;
+        }
+        return Math.max(0, oldest + START_LIMIT_WINDOW - SystemClock.elapsedRealtime());
+    }
+
+    private void countDevice(ScanResult result) {
+        if (mLastSeen.put(result.getDevice().getAddress(), SystemClock.elapsedRealtime())
+                == null) {
+            mNewDevices++;
+        }
+    }
+}
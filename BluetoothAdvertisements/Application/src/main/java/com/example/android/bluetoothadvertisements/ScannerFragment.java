@@ -21,22 +21,22 @@ import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
 import android.os.Bundle;
-import android.os.Handler;
 import android.support.v4.app.ListFragment;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ListView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -46,20 +46,60 @@ public class ScannerFragment extends ListFragment {
 
     private static final String TAG = ScannerFragment.class.getSimpleName();
 
-    /**
-     * Stops scanning after 5 seconds.
-     */
-    private static final long SCAN_PERIOD = 5000;
-
     private BluetoothAdapter mBluetoothAdapter;
 
     private BluetoothLeScanner mBluetoothLeScanner;
 
-    private ScanCallback mScanCallback;
+    private ScanScheduler mScanScheduler;
 
     private ScanResultAdapter mAdapter;
 
-    private Handler mHandler;
+    /**
+     * Latest result per device address received since the last frame. Results are only
+     * applied to the adapter, and the list only redrawn, once per display frame.
+     */
+    private final LinkedHashMap<String, ScanResult> mPendingResults = new LinkedHashMap<>();
+
+    private boolean mFrameScheduled;
+
+    /**
+     * Applies the pending results and updates the list: a full refresh only when devices were
+     * added or removed, otherwise just a rebind of the visible rows that changed.
+     */
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            if (mPendingResults.isEmpty()) {
+                return;
+            }
+
+            boolean structureChanged = false;
+            for (ScanResult result : mPendingResults.values()) {
+                structureChanged |= mAdapter.add(result);
+            }
+
+            if (structureChanged || getView() == null) {
+                mPendingResults.clear();
+                mAdapter.notifyDataSetChanged();
+                return;
+            }
+
+            ListView listView = getListView();
+            int first = listView.getFirstVisiblePosition();
+            int last = listView.getLastVisiblePosition();
+            for (String address : mPendingResults.keySet()) {
+                int position = mAdapter.getPosition(address);
+                if (position >= first && position <= last) {
+                    View row = listView.getChildAt(position - first);
+                    if (row != null) {
+                        mAdapter.getView(position, row, listView);
+                    }
+                }
+            }
+            mPendingResults.clear();
+        }
+    };
 
     /**
      * Must be called after object creation by MainActivity.
@@ -84,10 +124,15 @@ public class ScannerFragment extends ListFragment {
         // default theme, so generate it from getActivity() and pass it in separately.
         mAdapter = new ScanResultAdapter(getActivity().getApplicationContext(),
                 LayoutInflater.from(getActivity()));
-        mHandler = new Handler();
 
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        stopScanning();
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -132,30 +177,30 @@ public class ScannerFragment extends ListFragment {
     }
 
     /**
-     * Start scanning for BLE Advertisements (& set it up to stop after a set period of time).
+     * Start scanning for BLE Advertisements. Scanning continues, duty cycled by a
+     * {@link ScanScheduler}, until the fragment is destroyed.
      */
     public void startScanning() {
-        if (mScanCallback == null) {
+        if (mScanScheduler == null) {
             Log.d(TAG, "Starting Scanning");
 
-            // Will stop the scanning after a set time.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    stopScanning();
-                }
-            }, SCAN_PERIOD);
-
-            // Kick off a new scan.
-            mScanCallback = new SampleScanCallback();
-            mBluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(), mScanCallback);
-
-            String toastText = getString(R.string.scan_start_toast) + " "
-                    + TimeUnit.SECONDS.convert(SCAN_PERIOD, TimeUnit.MILLISECONDS) + " "
-                    + getString(R.string.seconds);
-            Toast.makeText(getActivity(), toastText, Toast.LENGTH_LONG).show();
+            mScanScheduler = new ScanScheduler(getActivity().getApplicationContext(),
+                    mBluetoothLeScanner, buildScanFilters(), new SampleScanCallback(),
+                    new ScanScheduler.Listener() {
+                        @Override
+                        public void onScanIntervalEnd() {
+                            // Even if no new results, drop devices that are gone and update
+                            // 'last seen' times.
+                            mAdapter.evictStale();
+                            mAdapter.notifyDataSetChanged();
+                        }
+                    });
+            mScanScheduler.setExtendedScan(ExtendedAdvertiser.isSupported(mBluetoothAdapter));
+            mScanScheduler.start();
+
+            Toast.makeText(getActivity(), R.string.scan_start_toast, Toast.LENGTH_LONG).show();
         } else {
-            Toast.makeText(getActivity(), R.string.already_scanning, Toast.LENGTH_SHORT);
+            Toast.makeText(getActivity(), R.string.already_scanning, Toast.LENGTH_SHORT).show();
         }
     }
 
@@ -163,16 +208,32 @@ public class ScannerFragment extends ListFragment {
      * Stop scanning for BLE Advertisements.
      */
     public void stopScanning() {
+        if (mScanScheduler == null) {
+            return;
+        }
         Log.d(TAG, "Stopping Scanning");
 
-        // Stop the scan, wipe the callback.
-        mBluetoothLeScanner.stopScan(mScanCallback);
-        mScanCallback = null;
+        mScanScheduler.stop();
+        mScanScheduler = null;
 
-        // Even if no new results, update 'last seen' times.
+        mAdapter.evictStale();
         mAdapter.notifyDataSetChanged();
     }
 
+    /**
+     * Buffers a result until the next frame, keeping only the latest one per device. Its RSSI
+     * goes to the filter right away, so that no reading is lost. Called on the main thread,
+     * where ScanCallbacks are delivered.
+     */
+    private void enqueueResult(ScanResult result) {
+        mAdapter.getRssiFilter().update(result);
+        mPendingResults.put(result.getDevice().getAddress(), result);
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
     /**
      * Return a List of {@link ScanFilter} objects to filter by Service UUID.
      */
@@ -187,15 +248,6 @@ public class ScannerFragment extends ListFragment {
         return scanFilters;
     }
 
-    /**
-     * Return a {@link ScanSettings} object set to use low power (to preserve battery life).
-     */
-    private ScanSettings buildScanSettings() {
-        ScanSettings.Builder builder = new ScanSettings.Builder();
-        builder.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
-        return builder.build();
-    }
-
     /**
      * Custom ScanCallback object - adds to adapter on success, displays error on failure.
      */
@@ -206,17 +258,15 @@ public class ScannerFragment extends ListFragment {
             super.onBatchScanResults(results);
 
             for (ScanResult result : results) {
-                mAdapter.add(result);
+                enqueueResult(result);
             }
-            mAdapter.notifyDataSetChanged();
         }
 
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
             super.onScanResult(callbackType, result);
 
-            mAdapter.add(result);
-            mAdapter.notifyDataSetChanged();
+            enqueueResult(result);
         }
 
         @Override
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.ArrayList;
+
+/**
+ * Packs a fixed list of integer fields, described by a schema, into as few bits as possible, so
+ * that a useful amount of status fits into the service data of a 31 byte advertisement.
+ *
+ * <p>Fields are written back to back, most significant bit first, with no padding except at the
+ * very end. Each field is one of:
+ * <ul>
+ *     <li>unsigned or signed, stored in a fixed number of bits. A scale and offset turn these
+ *     into fixed-point numbers, see {@link #quantize(int, double)}.</li>
+ *     <li>varint, an unsigned value stored in groups of bits, each holding a continuation bit
+ *     followed by the next least significant payload bits. Small values take a single group.
+ *     </li>
+ *     <li>delta, a varint of the zigzag encoded difference from the previous field, so that a
+ *     series of similar values costs only a few bits each.</li>
+ * </ul>
+ *
+ * <p>Values are exchanged as {@code long[]} arrays with one entry per field, and neither
+ * {@link #encode} nor {@link #decode} allocates.
+ */
+public final class ServiceDataCodec {
+
+    private static final int TYPE_UNSIGNED = 0;
+
+    private static final int TYPE_SIGNED = 1;
+
+    private static final int TYPE_VARINT = 2;
+
+    private static final int TYPE_DELTA = 3;
+
+    private final int[] mTypes;
+
+    /**
+     * Width of fixed-size fields, or the group size of varint and delta fields.
+     */
+    private final int[] mBits;
+
+    private final double[] mScales;
+
+    private final double[] mOffsets;
+
+    private final int mMaxLength;
+
+    /**
+     * Describes the fields, in the order they are encoded.
+     */
+    public static class Builder {
+
+        private final ArrayList<int[]> mFields = new ArrayList<>();
+
+        private final ArrayList<double[]> mScaling = new ArrayList<>();
+
+        public Builder unsigned(int bits) {
+            return unsigned(bits, 1, 0);
+        }
+
+        /**
+         * Adds an unsigned fixed-point field holding values from offset to
+         * offset + (2^bits - 1) * scale.
+         */
+        public Builder unsigned(int bits, double scale, double offset) {
+            checkBits(bits, 1);
+            return add(TYPE_UNSIGNED, bits, scale, offset);
+        }
+
+        public Builder signed(int bits) {
+            return signed(bits, 1);
+        }
+
+        /**
+         * Adds a signed fixed-point field in two's complement, with a resolution of scale.
+         */
+        public Builder signed(int bits, double scale) {
+            checkBits(bits, 2);
+            return add(TYPE_SIGNED, bits, scale, 0);
+        }
+
+        /**
+         * Adds an unsigned varint field stored in groups of groupBits bits.
+         */
+        public Builder varint(int groupBits) {
+            checkBits(groupBits, 2);
+            return add(TYPE_VARINT, groupBits, 1, 0);
+        }
+
+        /**
+         * Adds a field stored as its difference from the previous field, as a varint in groups
+         * of groupBits bits.
+         */
+        public Builder delta(int groupBits) {
+            checkBits(groupBits, 2);
+            if (mFields.isEmpty()) {
+                throw new IllegalStateException("A delta field needs a previous field");
+            }
+            return add(TYPE_DELTA, groupBits, 1, 0);
+        }
+
+        public ServiceDataCodec build() {
+            return new ServiceDataCodec(this);
+        }
+
+        private Builder add(int type, int bits, double scale, double offset) {
+            mFields.add(new int[] {type, bits});
+            mScaling.add(new double[] {scale, offset});
+            return this;
+        }
+
+        private static void checkBits(int bits, int min) {
+            if (bits < min || bits > 63) {
+                throw new IllegalArgumentException("Invalid field size: " + bits);
+            }
+        }
+    }
+
+    private ServiceDataCodec(Builder builder) {
+        int count = builder.mFields.size();
+        mTypes = new int[count];
+        mBits = new int[count];
+        mScales = new double[count];
+        mOffsets = new double[count];
+
+        int maxBits = 0;
+        for (int i = 0; i < count; i++) {
+            mTypes[i] = builder.mFields.get(i)[0];
+            mBits[i] = builder.mFields.get(i)[1];
+            mScales[i] = builder.mScaling.get(i)[0];
+            mOffsets[i] = builder.mScaling.get(i)[1];
+            if (mTypes[i] == TYPE_UNSIGNED || mTypes[i] == TYPE_SIGNED) {
+                maxBits += mBits[i];
+            } else {
+                // Enough groups for any 64-bit value.
+                int payload = mBits[i] - 1;
+                maxBits += (64 + payload - 1) / payload * mBits[i];
+            }
+        }
+        mMaxLength = (maxBits + 7) / 8;
+    }
+
+    public int getFieldCount() {
+        return mTypes.length;
+    }
+
+    /**
+     * Returns the most bytes {@link #encode} can write.
+     */
+    public int getMaxLength() {
+        return mMaxLength;
+    }
+
+    /**
+     * Converts a real value into the integer stored in a fixed-point field, clamped to the
+     * range of the field.
+     */
+    public long quantize(int field, double value) {
+        long raw = Math.round((value - mOffsets[field]) / mScales[field]);
+        return clamp(field, raw);
+    }
+
+    /**
+     * Converts the integer stored in a fixed-point field back into its real value.
+     */
+    public double dequantize(int field, long raw) {
+        return raw * mScales[field] + mOffsets[field];
+    }
+
+    /**
+     * Encodes one value per field into out, starting at offset. Values that don't fit in a
+     * fixed-size field are clamped to its range.
+     *
+     * @return The number of bytes written.
+     */
+    public int encode(long[] values, byte[] out, int offset) {
+        int position = offset * 8;
+        for (int i = 0; i < mTypes.length; i++) {
+            switch (mTypes[i]) {
+                case TYPE_UNSIGNED:
+                case TYPE_SIGNED:
+                    position = writeBits(out, position, clamp(i, values[i]), mBits[i]);
+                    break;
+                case TYPE_VARINT:
+                    position = writeVarint(out, position, values[i], mBits[i]);
+                    break;
+                case TYPE_DELTA:
+                    long delta = values[i] - values[i - 1];
+                    position = writeVarint(out, position, (delta << 1) ^ (delta >> 63), mBits[i]);
+                    break;
+            }
+        }
+
+        // Zero the unused low bits of the last byte.
+        int end = (position + 7) / 8;
+        if (position % 8 != 0) {
+            out[end - 1] &= (byte) (0xFF << (8 - position % 8));
+        }
+        return end - offset;
+    }
+
+    /**
+     * Decodes one value per field from length bytes of in, starting at offset, into values.
+     *
+     * @return false if the data ended before the last field.
+     */
+    public boolean decode(byte[] in, int offset, int length, long[] values) {
+        int position = offset * 8;
+        int limit = (offset + length) * 8;
+        for (int i = 0; i < mTypes.length; i++) {
+            int bits = mBits[i];
+            switch (mTypes[i]) {
+                case TYPE_UNSIGNED:
+                case TYPE_SIGNED:
+                    if (position + bits > limit) {
+                        return false;
+                    }
+                    long raw = readBits(in, position, bits);
+                    position += bits;
+                    if (mTypes[i] == TYPE_SIGNED) {
+                        // Sign extend.
+                        raw = (raw << (64 - bits)) >> (64 - bits);
+                    }
+                    values[i] = raw;
+                    break;
+                case TYPE_VARINT:
+                case TYPE_DELTA:
+                    long value = 0;
+                    int shift = 0;
+                    boolean more = true;
+                    while (more) {
+                        if (position + bits > limit || shift >= 64) {
+                            return false;
+                        }
+                        more = readBits(in, position, 1) != 0;
+                        value |= readBits(in, position + 1, bits - 1) << shift;
+                        position += bits;
+                        shift += bits - 1;
+                    }
+                    if (mTypes[i] == TYPE_DELTA) {
+                        value = values[i - 1] + ((value >>> 1) ^ -(value & 1));
+                    }
+                    values[i] = value;
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private long clamp(int field, long raw) {
+        int bits = mBits[field];
+        if (mTypes[field] == TYPE_UNSIGNED) {
+            return Math.max(0, Math.min(raw, (1L << bits) - 1));
+        } else if (mTypes[field] == TYPE_SIGNED) {
+            long max = (1L << (bits - 1)) - 1;
+            return Math.max(-max - 1, Math.min(raw, max));
+        }
+        return raw;
+    }
+
+    private static int writeVarint(byte[] out, int position, long value, int groupBits) {
+        int payload = groupBits - 1;
+        do {
+            long group = value & ((1L << payload) - 1);
+            value >>>= payload;
+            position = writeBits(out, position, value != 0 ? 1 : 0, 1);
+            position = writeBits(out, position, group, payload);
+        } while (value != 0);
+        return position;
+    }
+
+    /**
+     * Writes the count low bits of value, most significant first, and returns the new position.
+     */
+    private static int writeBits(byte[] out, int position, long value, int count) {
+        for (int i = count - 1; i >= 0; i--, position++) {
+            int mask = 0x80 >>> (position % 8);
+            if (((value >>> i) & 1) != 0) {
+                out[position / 8] |= mask;
+            } else {
+                out[position / 8] &= ~mask;
+            }
+        }
+        return position;
+    }
+
+    private static long readBits(byte[] in, int position, int count) {
+        long value = 0;
+        for (int i = 0; i < count; i++, position++) {
+            value = (value << 1) | ((in[position / 8] >>> (7 - position % 8)) & 1);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+/**
+ * Schema of the device status that {@link AdvertiserService} broadcasts as service data for
+ * {@link Constants#Service_UUID}, and {@link ScanResultAdapter} displays. The constants are the
+ * indices of each field in the values passed to {@link #CODEC}.
+ *
+ * <p>A typical record takes about 10 bytes, leaving room for the service UUID in a legacy
+ * advertisement.
+ */
+public final class StatusRecord {
+
+    /**
+     * Version of the schema, 3 bits. Records of another version are ignored.
+     */
+    public static final int VERSION = 0;
+
+    /**
+     * Battery level in percent, 7 bits, or {@link #BATTERY_UNKNOWN}.
+     */
+    public static final int BATTERY = 1;
+
+    /**
+     * Battery level HISTORY_INTERVAL_MINUTES ago, then twice and three times as long ago, each a
+     * delta from the field before. The first entry directly follows {@link #BATTERY}, so it is
+     * stored as the change from the current level.
+     */
+    public static final int BATTERY_HISTORY = 2;
+
+    public static final int HISTORY_LENGTH = 3;
+
+    public static final int HISTORY_INTERVAL_MINUTES = 10;
+
+    /**
+     * 1 if the device is plugged in, 1 bit.
+     */
+    public static final int CHARGING = BATTERY_HISTORY + HISTORY_LENGTH;
+
+    /**
+     * Battery temperature in steps of 0.1 degrees Celsius, signed 11 bits.
+     */
+    public static final int TEMPERATURE = CHARGING + 1;
+
+    /**
+     * Battery voltage in steps of 0.01 V from 2 V, 10 bits.
+     */
+    public static final int VOLTAGE = TEMPERATURE + 1;
+
+    /**
+     * Seconds since advertising started, varint.
+     */
+    public static final int UPTIME = VOLTAGE + 1;
+
+    /**
+     * Incremented every time the record is rebuilt, varint.
+     */
+    public static final int SEQUENCE = UPTIME + 1;
+
+    public static final int FIELD_COUNT = SEQUENCE + 1;
+
+    public static final int CURRENT_VERSION = 2;
+
+    public static final int BATTERY_UNKNOWN = 127;
+
+    public static final ServiceDataCodec CODEC = new ServiceDataCodec.Builder()
+            .unsigned(3)
+            .unsigned(7)
+            .delta(4)
+            .delta(4)
+            .delta(4)
+            .unsigned(1)
+            .signed(11, 0.1)
+            .unsigned(10, 0.01, 2.0)
+            .varint(8)
+            .varint(8)
+            .build();
+
+    private StatusRecord() {
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * {@link GattTransport} backed by a {@code BluetoothGatt} connection to a real device.
+ */
+class AndroidGattTransport implements GattTransport {
+    private final static String TAG = AndroidGattTransport.class.getSimpleName();
+
+    private final Callback mCallback;
+    private BluetoothGatt mBluetoothGatt;
+
+    /**
+     * Opens connections through the given adapter.
+     */
+    static class Factory implements GattTransport.Factory {
+        private final BluetoothAdapter mBluetoothAdapter;
+
+        Factory(BluetoothAdapter bluetoothAdapter) {
+            mBluetoothAdapter = bluetoothAdapter;
+        }
+
+        @Override
+        public GattTransport open(Context context, String address, boolean autoConnect,
+                                  Callback callback) {
+            final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+            if (device == null) {
+                Log.w(TAG, "Device not found.  Unable to connect.");
+                return null;
+            }
+            final AndroidGattTransport transport = new AndroidGattTransport(callback);
+            transport.mBluetoothGatt =
+                    device.connectGatt(context, autoConnect, transport.mGattCallback);
+            return transport;
+        }
+    }
+
+    // Forwards the framework callbacks, unwrapping characteristics into their raw values.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            mCallback.onConnectionStateChange(AndroidGattTransport.this, status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onServicesDiscovered received: " + status);
+            }
+            mCallback.onServicesDiscovered(AndroidGattTransport.this, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            mCallback.onCharacteristicRead(AndroidGattTransport.this, characteristic.getUuid(),
+                    characteristic.getValue(), status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            mCallback.onCharacteristicChanged(AndroidGattTransport.this, characteristic.getUuid(),
+                    characteristic.getValue());
+        }
+    };
+
+    private AndroidGattTransport(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public boolean connect() {
+        return mBluetoothGatt.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        mBluetoothGatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        mBluetoothGatt.close();
+    }
+
+    @Override
+    public boolean refresh() {
+        // BluetoothGatt#refresh() is not part of the public API.
+        try {
+            final Method refresh = mBluetoothGatt.getClass().getMethod("refresh");
+            return (Boolean) refresh.invoke(mBluetoothGatt);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to refresh the GATT cache.", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean discoverServices() {
+        final boolean started = mBluetoothGatt.discoverServices();
+        Log.i(TAG, "Attempting to start service discovery:" + started);
+        return started;
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return mBluetoothGatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                 boolean enabled) {
+        return mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        return mBluetoothGatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return mBluetoothGatt.getServices();
+    }
+}
@@ -18,9 +18,6 @@ package com.example.android.bluetoothlegatt;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
@@ -29,7 +26,9 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 import java.util.List;
@@ -45,9 +44,15 @@ public class BluetoothLeService extends Service {
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
     private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
+    private GattTransport.Factory mGattTransportFactory;
+    private GattTransport mGattTransport;
     private int mConnectionState = STATE_DISCONNECTED;
 
+    // The characteristic to notify on, remembered so that notifications resume by themselves
+    // after the supervisor reconnects.
+    private UUID mNotifyServiceUuid;
+    private UUID mNotifyCharacteristicUuid;
+
     private static final int STATE_DISCONNECTED = 0;
     private static final int STATE_CONNECTING = 1;
     private static final int STATE_CONNECTED = 2;
@@ -66,91 +71,84 @@ public class BluetoothLeService extends Service {
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
             UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    // Receives GATT events that the app cares about from the transport, such as connection
+    // changes and parsed characteristic values, and publishes them as broadcasts.
+    private final GattEventDispatcher mGattEventDispatcher =
+            new GattEventDispatcher(new GattEventDispatcher.Sink() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
+        public void onConnectionStateChanged(int status, int newState) {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
                 mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
                 Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
                 mConnectionState = STATE_DISCONNECTED;
                 Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
             }
+            mReconnectSupervisor.onConnectionStateChange(status, newState);
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
+        public void broadcastUpdate(String action) {
+            if (ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
+                mHandler.post(mRestoreNotification);
             }
+            final Intent intent = new Intent(action);
+            sendBroadcast(intent);
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            }
+        public void broadcastUpdate(String action, String data) {
+            final Intent intent = new Intent(action);
+            intent.putExtra(EXTRA_DATA, data);
+            sendBroadcast(intent);
         }
+    });
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
+    // Reopens the connection when it drops without disconnect() having been called.
+    private final GattReconnectSupervisor mReconnectSupervisor = new GattReconnectSupervisor(
+            mHandler, new GattReconnectSupervisor.Connector() {
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public boolean reopen(boolean autoConnect, boolean refresh) {
+            if (mBluetoothDeviceAddress == null) {
+                return false;
+            }
+            if (mGattTransport != null) {
+                if (refresh) {
+                    mGattTransport.refresh();
+                }
+                mGattTransport.close();
+                mGattTransport = null;
+            }
+            mGattTransport = mGattTransportFactory.open(BluetoothLeService.this,
+                    mBluetoothDeviceAddress, autoConnect, mGattEventDispatcher);
+            if (mGattTransport == null) {
+                return false;
+            }
+            mConnectionState = STATE_CONNECTING;
+            return true;
         }
-    };
-
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
-    }
+    });
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "Heart rate format UINT8.");
+    // Re-enables the remembered notification once services are known again.
+    private final Runnable mRestoreNotification = new Runnable() {
+        @Override
+        public void run() {
+            if (mGattTransport == null || mNotifyCharacteristicUuid == null) {
+                return;
             }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+            for (BluetoothGattService service : mGattTransport.getServices()) {
+                if (!service.getUuid().equals(mNotifyServiceUuid)) continue;
+                final BluetoothGattCharacteristic characteristic =
+                        service.getCharacteristic(mNotifyCharacteristicUuid);
+                if (characteristic != null) {
+                    enableNotification(characteristic, true);
+                }
+                return;
             }
         }
-        sendBroadcast(intent);
-    }
+    };
 
     public class LocalBinder extends Binder {
         BluetoothLeService getService() {
@@ -196,9 +194,22 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        if (mGattTransportFactory == null) {
+            mGattTransportFactory = new AndroidGattTransport.Factory(mBluetoothAdapter);
+        }
+
         return true;
     }
 
+    /**
+     * Replaces the transport used for new connections, for example with a
+     * {@link SimulatedGattTransport.Factory} to run without a real peripheral.  Must be called
+     * before {@link #connect(String)}.
+     */
+    void setGattTransportFactory(GattTransport.Factory factory) {
+        mGattTransportFactory = factory;
+    }
+
     /**
      * Connects to the GATT server hosted on the Bluetooth LE device.
      *
@@ -215,11 +226,13 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        mReconnectSupervisor.start();
+
         // Previously connected device.  Try to reconnect.
         if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
+                && mGattTransport != null) {
+            Log.d(TAG, "Trying to use an existing mGattTransport for connection.");
+            if (mGattTransport.connect()) {
                 mConnectionState = STATE_CONNECTING;
                 return true;
             } else {
@@ -227,14 +240,14 @@ public class BluetoothLeService extends Service {
             }
         }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
-        }
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+        final GattTransport transport =
+                mGattTransportFactory.open(this, address, false, mGattEventDispatcher);
+        if (transport == null) {
+            return false;
+        }
+        mGattTransport = transport;
         Log.d(TAG, "Trying to create a new connection.");
         mBluetoothDeviceAddress = address;
         mConnectionState = STATE_CONNECTING;
@@ -248,11 +261,13 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        // Also cancels a reconnection waiting for its backoff, when there is no transport.
+        mReconnectSupervisor.stop();
+        if (mBluetoothAdapter == null || mGattTransport == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        mGattTransport.disconnect();
     }
 
     /**
@@ -260,11 +275,14 @@ public class BluetoothLeService extends Service {
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        mReconnectSupervisor.stop();
+        mNotifyServiceUuid = null;
+        mNotifyCharacteristicUuid = null;
+        if (mGattTransport == null) {
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mGattTransport.close();
+        mGattTransport = null;
     }
 
     /**
@@ -275,11 +293,11 @@ public class BluetoothLeService extends Service {
      * @param characteristic The characteristic to read from.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null || mGattTransport == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        mGattTransport.readCharacteristic(characteristic);
     }
 
     /**
@@ -290,18 +308,30 @@ public class BluetoothLeService extends Service {
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null || mGattTransport == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        if (enabled) {
+            mNotifyServiceUuid = characteristic.getService().getUuid();
+            mNotifyCharacteristicUuid = characteristic.getUuid();
+        } else if (characteristic.getUuid().equals(mNotifyCharacteristicUuid)) {
+            mNotifyServiceUuid = null;
+            mNotifyCharacteristicUuid = null;
+        }
+        enableNotification(characteristic, enabled);
+    }
+
+    private void enableNotification(BluetoothGattCharacteristic characteristic,
+                                    boolean enabled) {
+        mGattTransport.setCharacteristicNotification(characteristic, enabled);
 
         // This is specific to Heart Rate Measurement.
         if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
             BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
                     UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
             descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+            mGattTransport.writeDescriptor(descriptor);
         }
     }
 
@@ -312,8 +342,8 @@ public class BluetoothLeService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+        if (mGattTransport == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return mGattTransport.getServices();
     }
 }
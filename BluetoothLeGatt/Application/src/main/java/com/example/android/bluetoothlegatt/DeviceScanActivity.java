@@ -24,8 +24,11 @@ import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -37,6 +40,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
@@ -44,11 +48,22 @@ import java.util.ArrayList;
 public class DeviceScanActivity extends ListActivity {
     private LeDeviceListAdapter mLeDeviceListAdapter;
     private BluetoothAdapter mBluetoothAdapter;
+    private FilteredLeScanner mFilteredLeScanner;
     private boolean mScanning;
     private Handler mHandler;
 
+    // The latest advertisement of every device scanned, recorded on the scan callback thread and
+    // updated in place.  That is the main thread for FilteredLeScanner, but a binder thread for
+    // the LeScanCallback used before Lollipop, hence the lock.  Devices with an advertisement
+    // not yet shown wait in mPendingDevices for the next frame.
+    private final Object mPendingLock = new Object();
+    private final HashMap<String, LeDevice> mScannedDevices = new HashMap<String, LeDevice>();
+    private final ArrayList<LeDevice> mPendingDevices = new ArrayList<LeDevice>();
+    private boolean mRefreshScheduled;
+
     private static final int REQUEST_ENABLE_BT = 1;
-    // Stops scanning after 10 seconds.
+    // Stops scanning after 10 seconds, unless the controller filters and batches
+    // advertisements itself, in which case the scan keeps running until stopped.
     private static final long SCAN_PERIOD = 10000;
 
     @Override
@@ -76,6 +91,22 @@ public class DeviceScanActivity extends ListActivity {
             finish();
             return;
         }
+
+        // BluetoothLeScanner moves filtering and batching into the controller where supported.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mFilteredLeScanner = new FilteredLeScanner(mBluetoothAdapter,
+                    new FilteredLeScanner.Listener() {
+                @Override
+                public void onAdvertisement(BluetoothDevice device, int rssi) {
+                    DeviceScanActivity.this.onAdvertisement(device, rssi);
+                }
+
+                @Override
+                public void onScanFailed(int errorCode) {
+                    scanLeDevice(false);
+                }
+            });
+        }
     }
 
     @Override
@@ -98,7 +129,7 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
-                mLeDeviceListAdapter.clear();
+                clearDevices();
                 scanLeDevice(true);
                 break;
             case R.id.menu_stop:
@@ -139,7 +170,9 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
-        mLeDeviceListAdapter.clear();
+        mHandler.removeCallbacks(mScheduleRefresh);
+        Choreographer.getInstance().removeFrameCallback(mRefreshCallback);
+        clearDevices();
     }
 
     @Override
@@ -150,56 +183,170 @@ public class DeviceScanActivity extends ListActivity {
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
         if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
+            scanLeDevice(false);
         }
         startActivity(intent);
     }
 
     private void scanLeDevice(final boolean enable) {
+        mHandler.removeCallbacks(mStopScan);
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
+            if (mFilteredLeScanner != null) {
+                mScanning = mFilteredLeScanner.start();
+                if (mScanning && !mFilteredLeScanner.isOffloaded()) {
+                    // Stops scanning after a pre-defined scan period.
+                    mHandler.postDelayed(mStopScan, SCAN_PERIOD);
                 }
-            }, SCAN_PERIOD);
-
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            } else {
+                // Stops scanning after a pre-defined scan period.
+                mHandler.postDelayed(mStopScan, SCAN_PERIOD);
+                mScanning = true;
+                mBluetoothAdapter.startLeScan(mLeScanCallback);
+            }
         } else {
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            if (mFilteredLeScanner != null) {
+                mFilteredLeScanner.stop();
+            } else {
+                mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            }
         }
         invalidateOptionsMenu();
     }
 
-    // Adapter for holding devices found through scanning.
+    private final Runnable mStopScan = new Runnable() {
+        @Override
+        public void run() {
+            scanLeDevice(false);
+        }
+    };
+
+    private void clearDevices() {
+        synchronized (mPendingLock) {
+            mScannedDevices.clear();
+            mPendingDevices.clear();
+            mRefreshScheduled = false;
+        }
+        mLeDeviceListAdapter.clear();
+        mLeDeviceListAdapter.notifyDataSetChanged();
+    }
+
+    // Called from the scan callback thread, see mPendingLock.  Only records the advertisement;
+    // the list is refreshed at most once per frame no matter how many advertisements arrive.
+    private void onAdvertisement(BluetoothDevice device, int rssi) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mPendingLock) {
+            final String address = device.getAddress();
+            LeDevice scanned = mScannedDevices.get(address);
+            if (scanned == null) {
+                scanned = new LeDevice(device);
+                mScannedDevices.put(address, scanned);
+            }
+            scanned.rssi = rssi;
+            scanned.lastSeen = now;
+            if (!scanned.pending) {
+                scanned.pending = true;
+                mPendingDevices.add(scanned);
+            }
+            if (!mRefreshScheduled) {
+                mRefreshScheduled = true;
+                mHandler.post(mScheduleRefresh);
+            }
+        }
+    }
+
+    // Choreographer callbacks have to be posted from the UI thread.
+    private final Runnable mScheduleRefresh = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mRefreshCallback);
+        }
+    };
+
+    private final Choreographer.FrameCallback mRefreshCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Only copies a few fields per device, so the scan callback thread is not held up.
+            final boolean changed;
+            synchronized (mPendingLock) {
+                changed = mLeDeviceListAdapter != null
+                        && mLeDeviceListAdapter.merge(mPendingDevices);
+                for (int i = 0; i < mPendingDevices.size(); i++) {
+                    mPendingDevices.get(i).pending = false;
+                }
+                mPendingDevices.clear();
+                mRefreshScheduled = false;
+            }
+            if (changed) {
+                mLeDeviceListAdapter.notifyDataSetChanged();
+            }
+        }
+    };
+
+    // A device found through scanning, with its most recent advertisement.
+    private static class LeDevice {
+        final BluetoothDevice device;
+        int rssi;
+        long lastSeen;
+        // Scan side: whether the device is waiting in mPendingDevices.  List side: when the
+        // device was last seen as of its row being drawn.
+        boolean pending;
+        long shownLastSeen;
+
+        LeDevice(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    // Adapter for holding devices found through scanning.  Devices are indexed by address so
+    // that merging a frame's worth of advertisements does not scan the whole list.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private ArrayList<LeDevice> mLeDevices;
+        private HashMap<String, LeDevice> mLeDeviceIndex;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mLeDevices = new ArrayList<LeDevice>();
+            mLeDeviceIndex = new HashMap<String, LeDevice>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
+        /**
+         * Adds new devices and updates the RSSI and last-seen time of known ones in place.
+         *
+         * @return true if a row would show something different: a new device, another RSSI, or
+         *         a last-seen time at least a second newer than the one drawn.
+         */
+        public boolean merge(ArrayList<LeDevice> devices) {
+            boolean changed = false;
+            for (int i = 0; i < devices.size(); i++) {
+                final LeDevice update = devices.get(i);
+                final String address = update.device.getAddress();
+                LeDevice known = mLeDeviceIndex.get(address);
+                if (known == null) {
+                    known = new LeDevice(update.device);
+                    mLeDevices.add(known);
+                    mLeDeviceIndex.put(address, known);
+                    changed = true;
+                } else if (known.rssi != update.rssi
+                        || update.lastSeen - known.shownLastSeen >= 1000) {
+                    changed = true;
+                }
+                known.rssi = update.rssi;
+                known.lastSeen = update.lastSeen;
             }
+            return changed;
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mLeDevices.get(position).device;
         }
 
         public void clear() {
             mLeDevices.clear();
+            mLeDeviceIndex.clear();
         }
 
         @Override
@@ -209,7 +356,7 @@ public class DeviceScanActivity extends ListActivity {
 
         @Override
         public Object getItem(int i) {
-            return mLeDevices.get(i);
+            return mLeDevices.get(i).device;
         }
 
         @Override
@@ -226,41 +373,43 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
+            LeDevice leDevice = mLeDevices.get(i);
+            BluetoothDevice device = leDevice.device;
             final String deviceName = device.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
             viewHolder.deviceAddress.setText(device.getAddress());
+            leDevice.shownLastSeen = leDevice.lastSeen;
+            final long seenSecondsAgo =
+                    (SystemClock.elapsedRealtime() - leDevice.lastSeen) / 1000;
+            viewHolder.deviceRssi.setText(
+                    getString(R.string.device_rssi, leDevice.rssi, seenSecondsAgo));
 
             return view;
         }
     }
 
-    // Device scan callback.
+    // Device scan callback, used before BluetoothLeScanner is available.
     private BluetoothAdapter.LeScanCallback mLeScanCallback =
             new BluetoothAdapter.LeScanCallback() {
 
         @Override
         public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+            onAdvertisement(device, rssi);
         }
     };
 
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceRssi;
     }
 }
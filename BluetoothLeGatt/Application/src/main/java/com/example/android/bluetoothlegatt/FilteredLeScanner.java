@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans through {@code BluetoothLeScanner} with filters and batching, so that on controllers
+ * that support it, matching and queueing of advertisements happen in the Bluetooth chip and the
+ * application processor only wakes up once per report delay.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class FilteredLeScanner {
+    private final static String TAG = FilteredLeScanner.class.getSimpleName();
+
+    /**
+     * Service UUIDs to match in advertisements.
+     */
+    private static final String[] SERVICE_UUIDS = {
+            SampleGattAttributes.HEART_RATE_SERVICE,
+    };
+
+    /**
+     * Bluetooth SIG company identifiers to match in manufacturer specific data.  Add your own to
+     * also find devices that do not advertise a service UUID.
+     */
+    private static final int[] MANUFACTURER_IDS = {};
+
+    /**
+     * How long the controller may hold on to results before delivering them as a batch.
+     */
+    private static final long REPORT_DELAY = 1000;
+
+    /**
+     * Receives the scan results.  {@code BluetoothLeScanner} delivers its callbacks on the main
+     * thread, so both methods are called there.
+     */
+    interface Listener {
+        /** Called for every matching advertisement, once per result in a batch. */
+        void onAdvertisement(BluetoothDevice device, int rssi);
+
+        void onScanFailed(int errorCode);
+    }
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final Listener mListener;
+    private BluetoothLeScanner mBluetoothLeScanner;
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            mListener.onAdvertisement(result.getDevice(), result.getRssi());
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0; i < results.size(); i++) {
+                final ScanResult result = results.get(i);
+                mListener.onAdvertisement(result.getDevice(), result.getRssi());
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "Scan failed with error: " + errorCode);
+            mListener.onScanFailed(errorCode);
+        }
+    };
+
+    FilteredLeScanner(BluetoothAdapter bluetoothAdapter, Listener listener) {
+        mBluetoothAdapter = bluetoothAdapter;
+        mListener = listener;
+    }
+
+    /**
+     * @return true if the controller filters and batches advertisements itself, which makes a
+     *         continuous scan cheap enough to leave running.
+     */
+    boolean isOffloaded() {
+        return mBluetoothAdapter.isOffloadedFilteringSupported()
+                && mBluetoothAdapter.isOffloadedScanBatchingSupported();
+    }
+
+    /**
+     * @return true if the scan was started.
+     */
+    boolean start() {
+        if (mBluetoothLeScanner != null) {
+            return true;
+        }
+        // The scanner is only available while Bluetooth is on.
+        mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (mBluetoothLeScanner == null) {
+            Log.w(TAG, "BluetoothLeScanner not available.");
+            return false;
+        }
+        mBluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(), mScanCallback);
+        return true;
+    }
+
+    void stop() {
+        if (mBluetoothLeScanner == null) {
+            return;
+        }
+        // Throws if Bluetooth was turned off in the meantime.
+        if (mBluetoothAdapter.isEnabled()) {
+            mBluetoothLeScanner.stopScan(mScanCallback);
+        }
+        mBluetoothLeScanner = null;
+    }
+
+    private List<ScanFilter> buildScanFilters() {
+        final List<ScanFilter> scanFilters = new ArrayList<ScanFilter>();
+        for (String uuid : SERVICE_UUIDS) {
+            scanFilters.add(new ScanFilter.Builder()
+                    .setServiceUuid(ParcelUuid.fromString(uuid))
+                    .build());
+        }
+        for (int manufacturerId : MANUFACTURER_IDS) {
+            scanFilters.add(new ScanFilter.Builder()
+                    .setManufacturerData(manufacturerId, new byte[0])
+                    .build());
+        }
+        return scanFilters;
+    }
+
+    private ScanSettings buildScanSettings() {
+        final ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_BALANCED);
+        // Batching is only honoured when the controller can queue results, otherwise the
+        // results are delivered one by one.
+        if (mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            builder.setReportDelay(REPORT_DELAY);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // Sticky matching needs a stronger, repeated signal before reporting a device,
+            // which keeps devices at the edge of range from waking us up.
+            builder.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                    .setMatchMode(ScanSettings.MATCH_MODE_STICKY)
+                    .setNumOfMatches(ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothProfile;
+
+import java.util.UUID;
+
+/**
+ * Turns {@link GattTransport.Callback} events into the actions broadcast by
+ * {@link BluetoothLeService}, including the parsing of characteristic values into
+ * {@link BluetoothLeService#EXTRA_DATA}.  This class makes no framework calls, so the same path
+ * runs unchanged on a plain JVM when driven by {@link SimulatedGattTransport}.
+ */
+class GattEventDispatcher implements GattTransport.Callback {
+
+    /**
+     * Receives the dispatched events.  {@link BluetoothLeService} turns them into broadcasts.
+     */
+    interface Sink {
+        void onConnectionStateChanged(int status, int newState);
+
+        void broadcastUpdate(String action);
+
+        void broadcastUpdate(String action, String data);
+    }
+
+    // Kept local rather than shared with BluetoothLeService so that loading this class does not
+    // initialize the Service.
+    private static final UUID UUID_HEART_RATE_MEASUREMENT =
+            UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final Sink mSink;
+
+    GattEventDispatcher(Sink sink) {
+        mSink = sink;
+    }
+
+    @Override
+    public void onConnectionStateChange(GattTransport transport, int status, int newState) {
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            mSink.onConnectionStateChanged(status, newState);
+            mSink.broadcastUpdate(BluetoothLeService.ACTION_GATT_CONNECTED);
+            // Attempts to discover services after successful connection.
+            transport.discoverServices();
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            mSink.onConnectionStateChanged(status, newState);
+            mSink.broadcastUpdate(BluetoothLeService.ACTION_GATT_DISCONNECTED);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(GattTransport transport, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mSink.broadcastUpdate(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
+        }
+    }
+
+    @Override
+    public void onCharacteristicRead(GattTransport transport, UUID uuid, byte[] value,
+                                     int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            dispatchData(uuid, value);
+        }
+    }
+
+    @Override
+    public void onCharacteristicChanged(GattTransport transport, UUID uuid, byte[] value) {
+        dispatchData(uuid, value);
+    }
+
+    private void dispatchData(UUID uuid, byte[] value) {
+        final String data = formatValue(uuid, value);
+        if (data != null) {
+            mSink.broadcastUpdate(BluetoothLeService.ACTION_DATA_AVAILABLE, data);
+        } else {
+            mSink.broadcastUpdate(BluetoothLeService.ACTION_DATA_AVAILABLE);
+        }
+    }
+
+    /**
+     * Formats a characteristic value the way it is published in
+     * {@link BluetoothLeService#EXTRA_DATA}.
+     *
+     * @return The formatted value, or null if there is nothing to show.
+     */
+    static String formatValue(UUID uuid, byte[] value) {
+        if (value == null || value.length == 0) {
+            return null;
+        }
+        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
+        // carried out as per profile specifications:
+        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+        if (UUID_HEART_RATE_MEASUREMENT.equals(uuid)) {
+            final int heartRate = parseHeartRate(value);
+            return heartRate < 0 ? null : String.valueOf(heartRate);
+        }
+        // For all other profiles, writes the data formatted in HEX.
+        final char[] hex = new char[value.length * 3];
+        for (int i = 0; i < value.length; i++) {
+            hex[i * 3] = HEX_DIGITS[(value[i] >> 4) & 0x0F];
+            hex[i * 3 + 1] = HEX_DIGITS[value[i] & 0x0F];
+            hex[i * 3 + 2] = ' ';
+        }
+        return new String(value) + "\n" + new String(hex);
+    }
+
+    /**
+     * Reads the heart rate from a Heart Rate Measurement value.  Bit 0 of the flags byte selects
+     * between a UINT8 and a little-endian UINT16 value.
+     *
+     * @return The heart rate in beats per minute, or -1 if the value is truncated.
+     */
+    static int parseHeartRate(byte[] value) {
+        if ((value[0] & 0x01) != 0) {
+            if (value.length < 3) return -1;
+            return (value[1] & 0xFF) | ((value[2] & 0xFF) << 8);
+        }
+        if (value.length < 2) return -1;
+        return value[1] & 0xFF;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Brings a GATT connection back after it drops without the user asking for it.
+ *
+ * <p>A lost link is first retried with direct connections ({@code autoConnect=false}), which
+ * complete within a second when the device is still in range, backing off exponentially between
+ * attempts.  If those keep failing the device has probably left, so the supervisor falls back to
+ * a single {@code autoConnect=true} connection that the controller completes in the background
+ * whenever the device shows up again, at no cost to the application processor.
+ *
+ * <p>Every attempt closes the previous {@code BluetoothGatt} before opening a new one, because a
+ * client that failed with {@link GattTransport#GATT_ERROR} is usually unusable.  When that status
+ * repeats, the remote's cached services are refreshed as well, since a stale cache is a common
+ * cause.
+ *
+ * <p>All methods must be called on the thread of the given {@link Handler}, except
+ * {@link #onConnectionStateChange(int, int)} which may be called from any thread.
+ */
+class GattReconnectSupervisor {
+    private final static String TAG = GattReconnectSupervisor.class.getSimpleName();
+
+    // Direct connection attempts before handing over to a background autoConnect connection.
+    private static final int MAX_DIRECT_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF = 250;
+    private static final long MAX_BACKOFF = 8000;
+    // A direct connection to a device that is gone only fails after about 30 seconds; give up
+    // on it sooner so that the next attempt, or the background connection, can start.
+    private static final long CONNECT_TIMEOUT = 5000;
+    // Consecutive GATT_ERRORs after which the service cache is refreshed.
+    private static final int REFRESH_AFTER_ERRORS = 2;
+
+    /**
+     * Performs the reconnection attempts chosen by the supervisor.
+     */
+    interface Connector {
+        /**
+         * Closes the current connection, if any, and starts a new one.
+         *
+         * @param autoConnect Whether the new connection waits in the background for the device.
+         * @param refresh Whether to clear the device's cached services before closing.
+         * @return true if the new connection was initiated.
+         */
+        boolean reopen(boolean autoConnect, boolean refresh);
+    }
+
+    private final Handler mHandler;
+    private final Connector mConnector;
+
+    private boolean mActive;
+    private boolean mBackground;
+    private int mAttempts;
+    private int mGattErrors;
+
+    private final Runnable mAttempt = new Runnable() {
+        @Override
+        public void run() {
+            final boolean refresh = mGattErrors >= REFRESH_AFTER_ERRORS;
+            if (refresh) {
+                mGattErrors = 0;
+            }
+            Log.d(TAG, "Direct reconnection attempt " + mAttempts
+                    + (refresh ? " with refreshed cache." : "."));
+            if (mConnector.reopen(false, refresh)) {
+                mHandler.postDelayed(mConnectTimeout, CONNECT_TIMEOUT);
+            } else {
+                scheduleRetry(GattTransport.GATT_ERROR);
+            }
+        }
+    };
+
+    private final Runnable mConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "Direct reconnection attempt " + mAttempts + " timed out.");
+            scheduleRetry(GattTransport.GATT_CONN_TIMEOUT);
+        }
+    };
+
+    private final Runnable mBackgroundAttempt = new Runnable() {
+        @Override
+        public void run() {
+            mConnector.reopen(true, false);
+        }
+    };
+
+    GattReconnectSupervisor(Handler handler, Connector connector) {
+        mHandler = handler;
+        mConnector = connector;
+    }
+
+    /**
+     * Starts supervising, after the user asked for a connection.
+     */
+    void start() {
+        mActive = true;
+    }
+
+    /**
+     * Stops supervising and cancels pending attempts, after the user asked to disconnect.
+     */
+    void stop() {
+        mActive = false;
+        reset();
+    }
+
+    /**
+     * Feeds the supervisor the connection state reported by the transport.
+     */
+    void onConnectionStateChange(final int status, final int newState) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handleConnectionStateChange(status, newState);
+            }
+        });
+    }
+
+    private void handleConnectionStateChange(int status, int newState) {
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            if (mAttempts > 0 || mBackground) {
+                Log.i(TAG, "Reconnected after " + mAttempts + " attempt(s)"
+                        + (mBackground ? " in the background." : "."));
+            }
+            reset();
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED && mActive) {
+            mHandler.removeCallbacks(mConnectTimeout);
+            Log.i(TAG, "Connection lost with status " + status + ".");
+            if (mBackground) {
+                // The background connection itself failed; the stack will not retry it.
+                mHandler.removeCallbacks(mBackgroundAttempt);
+                mHandler.postDelayed(mBackgroundAttempt, MAX_BACKOFF);
+            } else {
+                scheduleRetry(status);
+            }
+        }
+    }
+
+    private void scheduleRetry(int status) {
+        if (!mActive) return;
+        mHandler.removeCallbacks(mAttempt);
+        mHandler.removeCallbacks(mConnectTimeout);
+        if (status == GattTransport.GATT_ERROR) {
+            mGattErrors++;
+        } else {
+            mGattErrors = 0;
+        }
+
+        if (mAttempts >= MAX_DIRECT_ATTEMPTS) {
+            Log.i(TAG, "Device unreachable, waiting for it in the background.");
+            mBackground = true;
+            mConnector.reopen(true, mGattErrors > 0);
+            return;
+        }
+
+        // The first retry is almost immediate, which covers brief drop-outs; later ones back off.
+        final long delay = Math.min(INITIAL_BACKOFF << mAttempts, MAX_BACKOFF);
+        mAttempts++;
+        mHandler.postDelayed(mAttempt, delay);
+    }
+
+    private void reset() {
+        mHandler.removeCallbacks(mAttempt);
+        mHandler.removeCallbacks(mBackgroundAttempt);
+        mHandler.removeCallbacks(mConnectTimeout);
+        mBackground = false;
+        mAttempts = 0;
+        mGattErrors = 0;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The subset of {@code BluetoothGatt} and {@code BluetoothGattCallback} that
+ * {@link BluetoothLeService} relies on.  {@link AndroidGattTransport} backs it with a real
+ * remote device, while {@link SimulatedGattTransport} plays a scripted peripheral so the
+ * service's data path can be exercised without any hardware.
+ */
+interface GattTransport {
+
+    /**
+     * Generic stack failure, the status most stacks report when a link is lost unexpectedly.
+     * Often caused by a stale client or a busy controller.
+     */
+    int GATT_ERROR = 133;
+    /** The link supervision timeout expired, typically because the device went out of range. */
+    int GATT_CONN_TIMEOUT = 8;
+
+    /**
+     * Mirrors the {@code BluetoothGattCallback} methods the service cares about.  Characteristic
+     * values are delivered as raw bytes so they can be parsed without framework objects.
+     */
+    interface Callback {
+        void onConnectionStateChange(GattTransport transport, int status, int newState);
+
+        void onServicesDiscovered(GattTransport transport, int status);
+
+        void onCharacteristicRead(GattTransport transport, UUID uuid, byte[] value, int status);
+
+        void onCharacteristicChanged(GattTransport transport, UUID uuid, byte[] value);
+    }
+
+    /**
+     * Creates transports for a given device address.
+     */
+    interface Factory {
+        /**
+         * @param autoConnect Whether to wait for the device to become available, as in
+         *                    {@code BluetoothDevice#connectGatt}, rather than connect directly.
+         *
+         * @return A transport that has started connecting, or null if the device is unknown.
+         */
+        GattTransport open(Context context, String address, boolean autoConnect,
+                           Callback callback);
+    }
+
+    boolean connect();
+
+    void disconnect();
+
+    void close();
+
+    /**
+     * Clears the cached services of the remote device, so that they are discovered again on
+     * the next connection.
+     *
+     * @return true if the cache was cleared.
+     */
+    boolean refresh();
+
+    boolean discoverServices();
+
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                          boolean enabled);
+
+    boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+    List<BluetoothGattService> getServices();
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GattTransport} that plays a scripted peripheral instead of talking to a radio.  Once
+ * connected and notifying, it emits characteristic notifications at the rate, size and error
+ * pattern described by its {@link Script}.  All callbacks arrive on a single simulator thread,
+ * just like the binder thread used by {@code BluetoothGattCallback}.
+ *
+ * <p>No framework classes are touched on the notification path, so the simulator can drive
+ * {@link GattEventDispatcher} on a plain JVM.  {@link #getServices()} is always empty.
+ */
+class SimulatedGattTransport implements GattTransport {
+
+    /**
+     * Describes what the simulated peripheral does.  Setters return the script so they can be
+     * chained.
+     */
+    static class Script {
+        UUID characteristicUuid = UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
+        int notificationsPerSecond = 1;
+        int payloadSize = 2;
+        long count;
+        double dropRate;
+        long disconnectEvery;
+        int disconnectStatus = GATT_ERROR;
+        long connectDelayMillis;
+        long seed = 1;
+
+        /** UUID reported for every notification.  Defaults to Heart Rate Measurement. */
+        Script setCharacteristicUuid(UUID uuid) {
+            characteristicUuid = uuid;
+            return this;
+        }
+
+        /** Notifications per second, or 0 to emit as fast as the receiver keeps up. */
+        Script setRate(int notificationsPerSecond) {
+            this.notificationsPerSecond = notificationsPerSecond;
+            return this;
+        }
+
+        /** Size of each value in bytes, including the flags byte for Heart Rate Measurement. */
+        Script setPayloadSize(int payloadSize) {
+            this.payloadSize = Math.max(1, payloadSize);
+            return this;
+        }
+
+        /** Total number of notifications to attempt, or 0 to keep going until closed. */
+        Script setCount(long count) {
+            this.count = count;
+            return this;
+        }
+
+        /** Fraction of notifications, between 0 and 1, that are lost over the air. */
+        Script setDropRate(double dropRate) {
+            this.dropRate = dropRate;
+            return this;
+        }
+
+        /** Drops the link with the given status after every {@code every} notifications. */
+        Script setDisconnectEvery(long every, int status) {
+            disconnectEvery = every;
+            disconnectStatus = status;
+            return this;
+        }
+
+        /** Delay before a connection attempt is reported as successful. */
+        Script setConnectDelay(long millis) {
+            connectDelayMillis = millis;
+            return this;
+        }
+
+        /** Seed for the drop pattern, so runs are repeatable. */
+        Script setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+    }
+
+    /**
+     * Opens simulated connections that all follow the same script, regardless of address.
+     */
+    static class Factory implements GattTransport.Factory {
+        private final Script mScript;
+
+        Factory(Script script) {
+            mScript = script;
+        }
+
+        @Override
+        public GattTransport open(Context context, String address, boolean autoConnect,
+                                  Callback callback) {
+            return SimulatedGattTransport.open(mScript, callback);
+        }
+    }
+
+    private final Script mScript;
+    private final Callback mCallback;
+    private final Random mRandom;
+    private final boolean mHeartRate;
+    private final ScheduledExecutorService mExecutor;
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+
+    // Only touched on the simulator thread.
+    private boolean mConnected;
+    private boolean mNotifying;
+    private long mSinceConnect;
+    private int mSequence;
+    private ScheduledFuture<?> mEmitter;
+
+    private volatile long mAttempted;
+    private volatile long mDelivered;
+    private volatile long mDropped;
+    private volatile long mDisconnects;
+    private volatile long mLastEmitNanos;
+
+    /**
+     * Creates a simulated peripheral and starts connecting to it, like
+     * {@code BluetoothDevice#connectGatt}.
+     */
+    static SimulatedGattTransport open(Script script, Callback callback) {
+        final SimulatedGattTransport transport = new SimulatedGattTransport(script, callback);
+        transport.connect();
+        return transport;
+    }
+
+    /**
+     * Creates a simulated peripheral without connecting to it.
+     */
+    SimulatedGattTransport(Script script, Callback callback) {
+        mScript = script;
+        mCallback = callback;
+        mRandom = new Random(script.seed);
+        mHeartRate = UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT)
+                .equals(script.characteristicUuid);
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "SimulatedGattTransport");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public boolean connect() {
+        if (mExecutor.isShutdown()) {
+            return false;
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mConnected) return;
+                mConnected = true;
+                mSinceConnect = 0;
+                mCallback.onConnectionStateChange(SimulatedGattTransport.this,
+                        BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+            }
+        }, mScript.connectDelayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                dropLink(BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        mExecutor.shutdownNow();
+        mFinished.countDown();
+    }
+
+    @Override
+    public boolean refresh() {
+        return true;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mConnected) return;
+                mCallback.onServicesDiscovered(SimulatedGattTransport.this,
+                        BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mConnected) return;
+                mCallback.onCharacteristicRead(SimulatedGattTransport.this,
+                        mScript.characteristicUuid, nextValue(), BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                 boolean enabled) {
+        setNotifying(enabled);
+        return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        return true;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Starts or stops the notification stream.  Notifications only flow while connected, and a
+     * dropped link turns them off again, just as a real peripheral forgets an unbonded client's
+     * subscription.
+     */
+    void setNotifying(final boolean enabled) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mNotifying = enabled && mConnected;
+                if (mNotifying) {
+                    startEmitter();
+                } else {
+                    stopEmitter();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until the scripted number of notifications has been attempted or the transport is
+     * closed.
+     */
+    boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return mFinished.await(timeout, unit);
+    }
+
+    /** {@link System#nanoTime()} just before the most recent notification was delivered. */
+    long getLastEmitNanos() {
+        return mLastEmitNanos;
+    }
+
+    long getAttemptedCount() {
+        return mAttempted;
+    }
+
+    long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    long getDroppedCount() {
+        return mDropped;
+    }
+
+    long getDisconnectCount() {
+        return mDisconnects;
+    }
+
+    private boolean post(Runnable runnable) {
+        if (mExecutor.isShutdown()) {
+            return false;
+        }
+        mExecutor.execute(runnable);
+        return true;
+    }
+
+    private void startEmitter() {
+        if (mEmitter != null) return;
+        final Runnable emit = new Runnable() {
+            @Override
+            public void run() {
+                emitOne();
+            }
+        };
+        if (mScript.notificationsPerSecond > 0) {
+            final long periodMicros = 1000000L / mScript.notificationsPerSecond;
+            mEmitter = mExecutor.scheduleAtFixedRate(emit, 0, Math.max(1, periodMicros),
+                    TimeUnit.MICROSECONDS);
+        } else {
+            // Re-submits itself so that other simulator work still gets a turn.
+            mEmitter = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 64 && mNotifying; i++) {
+                        emitOne();
+                    }
+                    if (mNotifying) {
+                        mEmitter = mExecutor.schedule(this, 0, TimeUnit.MICROSECONDS);
+                    }
+                }
+            }, 0, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void stopEmitter() {
+        if (mEmitter != null) {
+            mEmitter.cancel(false);
+            mEmitter = null;
+        }
+    }
+
+    private void emitOne() {
+        if (!mNotifying) return;
+        if (mScript.count > 0 && mAttempted >= mScript.count) {
+            mNotifying = false;
+            stopEmitter();
+            mFinished.countDown();
+            return;
+        }
+        mAttempted++;
+        mSinceConnect++;
+        final byte[] value = nextValue();
+        if (mScript.dropRate > 0 && mRandom.nextDouble() < mScript.dropRate) {
+            mDropped++;
+        } else {
+            mLastEmitNanos = System.nanoTime();
+            mCallback.onCharacteristicChanged(this, mScript.characteristicUuid, value);
+            mDelivered++;
+        }
+        if (mScript.disconnectEvery > 0 && mSinceConnect >= mScript.disconnectEvery) {
+            dropLink(mScript.disconnectStatus);
+        }
+        if (mScript.count > 0 && mAttempted >= mScript.count) {
+            mNotifying = false;
+            stopEmitter();
+            mFinished.countDown();
+        }
+    }
+
+    private void dropLink(int status) {
+        if (!mConnected) return;
+        mConnected = false;
+        mNotifying = false;
+        stopEmitter();
+        mDisconnects++;
+        mCallback.onConnectionStateChange(this, status, BluetoothProfile.STATE_DISCONNECTED);
+    }
+
+    // A fresh array per value, as the framework hands out for each notification.
+    private byte[] nextValue() {
+        final int sequence = mSequence++;
+        final byte[] value = new byte[mScript.payloadSize];
+        int offset = 0;
+        if (mHeartRate) {
+            final int heartRate = 60 + sequence % 120;
+            if (value.length >= 3) {
+                value[0] = 0x01;
+                value[1] = (byte) heartRate;
+                value[2] = (byte) (heartRate >> 8);
+                offset = 3;
+            } else {
+                value[0] = 0x00;
+                if (value.length > 1) value[1] = (byte) heartRate;
+                offset = 2;
+            }
+        }
+        for (int i = offset; i < value.length; i++) {
+            value[i] = (byte) ('0' + (sequence + i) % 10);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothProfile;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures notification latency and throughput through {@link GattEventDispatcher}, the same
+ * parsing and dispatch path {@link BluetoothLeService} uses, with {@link SimulatedGattTransport}
+ * standing in for the peripheral.  Latency is measured from the moment the simulator hands a
+ * value to the dispatcher until the formatted data reaches the sink.
+ *
+ * <p>Lives with the unit tests so it is never packaged into the app.  Runs on a plain JVM with
+ * the Android stub jar, the app classes and the unit test classes on the classpath, for example:
+ * <pre>
+ * ./gradlew compileDebugUnitTestJavaWithJavac
+ * java -cp android.jar:classes:test-classes \
+ *         com.example.android.bluetoothlegatt.GattNotificationBenchmark
+ * </pre>
+ */
+class GattNotificationBenchmark {
+
+    private static final UUID UUID_GENERIC =
+            UUID.fromString("00002a29-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * Collects latencies and reconnects whenever the simulated link drops, as the UI would.
+     */
+    private static class RecordingSink implements GattEventDispatcher.Sink {
+        private final long[] mLatencies;
+        private int mCount;
+        private long mChars;
+        private SimulatedGattTransport mTransport;
+
+        RecordingSink(int capacity) {
+            mLatencies = new long[capacity];
+        }
+
+        @Override
+        public void onConnectionStateChanged(int status, int newState) {
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mTransport.connect();
+            }
+        }
+
+        @Override
+        public void broadcastUpdate(String action) {
+            if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
+                mTransport.setNotifying(true);
+            }
+        }
+
+        @Override
+        public void broadcastUpdate(String action, String data) {
+            final long latency = System.nanoTime() - mTransport.getLastEmitNanos();
+            if (mCount < mLatencies.length) {
+                mLatencies[mCount++] = latency;
+            }
+            mChars += data.length();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final long count = args.length > 0 ? Long.parseLong(args[0]) : 200000;
+
+        // Warm up the JIT before anything is recorded.
+        run("warm-up", new SimulatedGattTransport.Script()
+                .setRate(0).setCount(count), true);
+
+        run("heart rate, 2 B @ 1 kHz", new SimulatedGattTransport.Script()
+                .setRate(1000).setPayloadSize(2).setCount(Math.min(count, 5000)), false);
+        run("heart rate, 3 B unthrottled", new SimulatedGattTransport.Script()
+                .setRate(0).setPayloadSize(3).setCount(count), false);
+        run("generic, 20 B unthrottled", new SimulatedGattTransport.Script()
+                .setCharacteristicUuid(UUID_GENERIC)
+                .setRate(0).setPayloadSize(20).setCount(count), false);
+        run("generic, 244 B unthrottled", new SimulatedGattTransport.Script()
+                .setCharacteristicUuid(UUID_GENERIC)
+                .setRate(0).setPayloadSize(244).setCount(count), false);
+        run("heart rate, 5% loss, drop link every 10k", new SimulatedGattTransport.Script()
+                .setRate(0).setPayloadSize(2).setCount(count).setDropRate(0.05)
+                .setDisconnectEvery(10000, GattTransport.GATT_ERROR), false);
+    }
+
+    private static void run(String name, SimulatedGattTransport.Script script, boolean quiet)
+            throws InterruptedException {
+        final RecordingSink sink = new RecordingSink((int) Math.min(script.count, 1 << 22));
+        final GattEventDispatcher dispatcher = new GattEventDispatcher(sink);
+
+        final long start = System.nanoTime();
+        final SimulatedGattTransport transport = new SimulatedGattTransport(script, dispatcher);
+        sink.mTransport = transport;
+        transport.connect();
+        if (!transport.awaitFinished(5, TimeUnit.MINUTES)) {
+            System.out.println(name + ": timed out");
+        }
+        final long elapsed = System.nanoTime() - start;
+        transport.close();
+        if (quiet) return;
+
+        final long[] latencies = Arrays.copyOf(sink.mLatencies, sink.mCount);
+        Arrays.sort(latencies);
+        final double seconds = elapsed / 1e9;
+        System.out.println(String.format(Locale.US,
+                "%-42s %9.0f notif/s %8.2f MB/s (payload)  p50 %6.2f us  p99 %6.2f us"
+                        + "  max %8.2f us  delivered %d/%d  dropped %d  reconnects %d",
+                name,
+                transport.getDeliveredCount() / seconds,
+                transport.getDeliveredCount() * script.payloadSize / seconds / 1e6,
+                percentile(latencies, 0.50) / 1e3,
+                percentile(latencies, 0.99) / 1e3,
+                percentile(latencies, 1.0) / 1e3,
+                transport.getDeliveredCount(), transport.getAttemptedCount(),
+                transport.getDroppedCount(), transport.getDisconnectCount()));
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) return 0;
+        final int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
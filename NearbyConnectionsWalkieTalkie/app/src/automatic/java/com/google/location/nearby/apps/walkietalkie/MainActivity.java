@@ -27,8 +27,14 @@ import android.widget.Toast;
 import com.google.android.gms.nearby.connection.ConnectionInfo;
 import com.google.android.gms.nearby.connection.Payload;
 import com.google.android.gms.nearby.connection.Strategy;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
 
 /**
  * Our WalkieTalkie Activity. This Activity has 3 {@link State}s.
@@ -55,6 +61,9 @@ public class MainActivity extends ConnectionsActivity {
   /** Length of state change animations. */
   private static final long ANIMATION_DURATION = 600;
 
+  /** How often the latency panel is updated, in ms. */
+  private static final long LATENCY_UPDATE_INTERVAL = 1000;
+
   /**
    * A set of background colors. We'll hash the authentication token we get from connecting to a
    * device to pick a color randomly from this list. Devices with the same background color are
@@ -107,6 +116,19 @@ public class MainActivity extends ConnectionsActivity {
   /** A running log of debug messages. Only visible when DEBUG=true. */
   private TextView mDebugLogView;
 
+  /** How long audio takes to reach us, stage by stage. Only visible when DEBUG=true. */
+  private TextView mLatencyView;
+
+  /** Shows the latest {@link LatencyStats} every so often while we're started. */
+  private final Runnable mShowLatencyRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          mLatencyView.setText(LatencyStats.get().toString());
+          mLatencyView.postDelayed(this, LATENCY_UPDATE_INTERVAL);
+        }
+      };
+
   /** Listens to holding/releasing the volume rocker. */
   private final GestureDetector mGestureDetector =
       new GestureDetector(KeyEvent.KEYCODE_VOLUME_DOWN, KeyEvent.KEYCODE_VOLUME_UP) {
@@ -126,8 +148,45 @@ public class MainActivity extends ConnectionsActivity {
   /** For recording audio as the user speaks. */
   @Nullable private AudioRecorder mRecorder;
 
+  /** Picks the codec to record with, from the ones our connected endpoints support. */
+  private final CodecNegotiation mCodecNegotiation = new CodecNegotiation();
+
+  /** Reads the times other users stamp their audio with on our clock. */
+  private final ClockSync mClockSync =
+      new ClockSync(
+          new ClockSync.Sender() {
+            @Override
+            public void send(String endpointId, Payload payload) {
+              MainActivity.this.send(payload, endpointId);
+            }
+          });
+
+  /** Plays the recordings other users send a frame at a time. */
+  private final FramedAudioReceiver mFramedAudioReceiver =
+      new FramedAudioReceiver(
+          new FramedAudioReceiver.Listener() {
+            @Override
+            public AudioPlayer onStreamStarted(
+                String endpointId, String codecName, int sampleRate) {
+              return startPlaying(new Player(endpointId, codecName, sampleRate));
+            }
+          },
+          mClockSync);
+
+  /** Plays everyone talking at once. Made anew each start, in case the audio config changed. */
+  private AudioMixer mAudioMixer;
+
+  /** How to record and play audio on this device. */
+  private AudioConfig mAudioConfig;
+
+  /** True until this device's model was calibrated, or found not to calibrate. */
+  private boolean mNeedsCalibration;
+
+  /** Calibrating the device's audio, or null if it isn't. */
+  @Nullable private Thread mCalibrationThread;
+
   /** For playing audio from other users nearby. */
-  @Nullable private AudioPlayer mAudioPlayer;
+  private final Set<AudioPlayer> mAudioPlayers = new HashSet<>();
 
   /** The phone's original media volume. */
   private int mOriginalVolume;
@@ -141,11 +200,34 @@ public class MainActivity extends ConnectionsActivity {
 
     mPreviousStateView = (TextView) findViewById(R.id.previous_state);
     mCurrentStateView = (TextView) findViewById(R.id.current_state);
+    mCurrentStateView.setOnClickListener(
+        new View.OnClickListener() {
+          @Override
+          public void onClick(View view) {
+            // Set how loud each of the people we're connected to is.
+            if (getState() == State.CONNECTED) {
+              GainDialog.show(MainActivity.this, mAudioMixer, getConnectedEndpoints());
+            }
+          }
+        });
 
     mDebugLogView = (TextView) findViewById(R.id.debug_log);
     mDebugLogView.setVisibility(DEBUG ? View.VISIBLE : View.GONE);
     mDebugLogView.setMovementMethod(new ScrollingMovementMethod());
 
+    mLatencyView = (TextView) findViewById(R.id.latency_stats);
+    mLatencyView.setVisibility(DEBUG ? View.VISIBLE : View.GONE);
+    mLatencyView.setOnLongClickListener(
+        new View.OnLongClickListener() {
+          @Override
+          public boolean onLongClick(View view) {
+            // Start measuring afresh, e.g. after changing a setting.
+            LatencyStats.get().reset();
+            mLatencyView.setText(LatencyStats.get().toString());
+            return true;
+          }
+        });
+
     mName = generateRandomName();
 
     ((TextView) findViewById(R.id.name)).setText(mName);
@@ -170,6 +252,21 @@ public class MainActivity extends ConnectionsActivity {
     audioManager.setStreamVolume(
         AudioManager.STREAM_MUSIC, audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC), 0);
 
+    // Use what we found worked best on this model before, or find out for next time.
+    mAudioConfig = AudioConfig.load(this);
+    mNeedsCalibration = mAudioConfig == null;
+    if (mAudioConfig == null) {
+      mAudioConfig = AudioConfig.getDefault(this);
+    }
+
+    // Be ready to play whoever talks.
+    mAudioMixer = new AudioMixer(mAudioConfig);
+    mAudioMixer.start();
+
+    if (DEBUG) {
+      mShowLatencyRunnable.run();
+    }
+
     setState(State.SEARCHING);
   }
 
@@ -187,6 +284,9 @@ public class MainActivity extends ConnectionsActivity {
     if (isPlaying()) {
       stopPlaying();
     }
+    cancelAudioCalibration();
+    mAudioMixer.stop();
+    mLatencyView.removeCallbacks(mShowLatencyRunnable);
 
     // After our Activity stops, we disconnect from Nearby Connections.
     setState(State.UNKNOWN);
@@ -230,6 +330,13 @@ public class MainActivity extends ConnectionsActivity {
     Toast.makeText(
             this, getString(R.string.toast_connected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
+
+    // Tell the new endpoint which codecs we can decode. Endpoints we told before ignore it.
+    mCodecNegotiation.onEndpointConnected(endpoint.getId());
+    send(Payload.fromBytes(CodecNegotiation.createOffer()));
+
+    // Learn its clock, to time how long its audio takes to reach us.
+    mClockSync.sync(endpoint.getId());
     setState(State.CONNECTED);
   }
 
@@ -238,6 +345,9 @@ public class MainActivity extends ConnectionsActivity {
     Toast.makeText(
             this, getString(R.string.toast_disconnected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
+    mCodecNegotiation.onEndpointDisconnected(endpoint.getId());
+    mFramedAudioReceiver.onEndpointDisconnected(endpoint.getId());
+    mClockSync.onEndpointDisconnected(endpoint.getId());
     setState(State.SEARCHING);
   }
 
@@ -288,10 +398,12 @@ public class MainActivity extends ConnectionsActivity {
         disconnectFromAllEndpoints();
         startDiscovering();
         startAdvertising();
+        calibrateAudio();
         break;
       case CONNECTED:
         stopDiscovering();
         stopAdvertising();
+        cancelAudioCalibration();
         break;
       case UNKNOWN:
         stopAllEndpoints();
@@ -440,57 +552,147 @@ public class MainActivity extends ConnectionsActivity {
   /** {@see ConnectionsActivity#onReceive(Endpoint, Payload)} */
   @Override
   protected void onReceive(Endpoint endpoint, Payload payload) {
-    if (payload.getType() == Payload.Type.STREAM) {
-      if (mAudioPlayer != null) {
-        mAudioPlayer.stop();
-        mAudioPlayer = null;
+    if (payload.getType() == Payload.Type.BYTES) {
+      byte[] bytes = payload.asBytes();
+      try {
+        if (CodecNegotiation.isOffer(bytes)) {
+          mCodecNegotiation.onOffer(endpoint.getId(), bytes);
+        } else if (FramedAudioReceiver.isAudio(bytes)) {
+          mFramedAudioReceiver.onReceive(endpoint.getId(), bytes);
+        } else if (ClockSync.isClockPayload(bytes)) {
+          mClockSync.onReceive(endpoint.getId(), bytes);
+        }
+      } catch (IOException e) {
+        logW("Invalid payload from " + endpoint, e);
       }
+    } else if (payload.getType() == Payload.Type.STREAM) {
+      startPlaying(new Player(endpoint.getId(), payload.asStream().asInputStream()));
+    }
+  }
 
-      AudioPlayer player =
-          new AudioPlayer(payload.asStream().asInputStream()) {
-            @WorkerThread
+  /** Plays the given player along with any others already playing. */
+  private AudioPlayer startPlaying(AudioPlayer player) {
+    mAudioPlayers.add(player);
+    player.start();
+    return player;
+  }
+
+  /** Forgets itself once it's done playing. */
+  private class Player extends AudioPlayer {
+    Player(String endpointId, InputStream inputStream) {
+      super(mAudioMixer, endpointId, inputStream);
+    }
+
+    Player(String endpointId, String codecName, int sampleRate) {
+      super(mAudioMixer, endpointId, codecName, sampleRate);
+    }
+
+    @WorkerThread
+    @Override
+    protected void onFinish() {
+      runOnUiThread(
+          new Runnable() {
+            @UiThread
             @Override
-            protected void onFinish() {
-              runOnUiThread(
-                  new Runnable() {
-                    @UiThread
-                    @Override
-                    public void run() {
-                      mAudioPlayer = null;
-                    }
-                  });
+            public void run() {
+              mAudioPlayers.remove(Player.this);
             }
-          };
-      mAudioPlayer = player;
-      player.start();
+          });
     }
   }
 
   /** Stops all currently streaming audio tracks. */
   private void stopPlaying() {
     logV("stopPlaying()");
-    if (mAudioPlayer != null) {
-      mAudioPlayer.stop();
-      mAudioPlayer = null;
+    for (AudioPlayer player : mAudioPlayers) {
+      player.stop();
     }
+    mAudioPlayers.clear();
   }
 
   /** @return True if currently playing. */
   private boolean isPlaying() {
-    return mAudioPlayer != null;
+    return !mAudioPlayers.isEmpty();
+  }
+
+  /**
+   * Finds the audio config that works best on this device in the background, if it wasn't found
+   * for this model before. Only called while no one is connected, as it plays beeps and listens
+   * for them. Recordings use the config as soon as it's found; playback, from the next start.
+   */
+  private void calibrateAudio() {
+    if (!mNeedsCalibration
+        || mCalibrationThread != null
+        || !hasPermissions(this, Manifest.permission.RECORD_AUDIO)) {
+      return;
+    }
+    final Context context = getApplicationContext();
+    mCalibrationThread =
+        new Thread() {
+          @Override
+          public void run() {
+            final AudioConfig config = AudioCalibration.calibrate(context);
+            final boolean cancelled = isInterrupted();
+            final Thread thread = this;
+            runOnUiThread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    if (mCalibrationThread == thread) {
+                      mCalibrationThread = null;
+                    }
+                    if (cancelled) {
+                      // Tried again the next time no one is connected.
+                      return;
+                    }
+                    // Saved for this model, even if it failed, so it isn't tried again.
+                    mNeedsCalibration = false;
+                    if (config != null) {
+                      logD("Calibrated audio: " + config);
+                      mAudioConfig = config;
+                    }
+                  }
+                });
+          }
+        };
+    mCalibrationThread.start();
+  }
+
+  /** Stops calibrating the device's audio, e.g. before it's needed for talking. */
+  private void cancelAudioCalibration() {
+    if (mCalibrationThread != null) {
+      mCalibrationThread.interrupt();
+      mCalibrationThread = null;
+    }
   }
 
   /** Starts recording sound from the microphone and streaming it to all connected devices. */
   private void startRecording() {
     logV("startRecording()");
     try {
-      ParcelFileDescriptor[] payloadPipe = ParcelFileDescriptor.createPipe();
-
-      // Send the first half of the payload (the read side) to Nearby Connections.
-      send(Payload.fromStream(payloadPipe[0]));
+      AudioSink sink;
+      if (Constants.FRAMED_AUDIO) {
+        sink =
+            new FramedAudioSink(
+                new FramedAudioSink.Sender() {
+                  @Override
+                  public void send(Payload payload) {
+                    MainActivity.this.send(payload);
+                  }
+                });
+      } else {
+        ParcelFileDescriptor[] payloadPipe = ParcelFileDescriptor.createPipe();
+
+        // Send the first half of the payload (the read side) to Nearby Connections.
+        send(Payload.fromStream(payloadPipe[0]));
+
+        // Use the second half of the payload (the write side) in AudioRecorder.
+        sink = new StreamAudioSink(payloadPipe[1]);
+      }
 
-      // Use the second half of the payload (the write side) in AudioRecorder.
-      mRecorder = new AudioRecorder(payloadPipe[1]);
+      AudioCodec codec = mCodecNegotiation.choose();
+      logD("Recording with " + codec.getName());
+      mRecorder = new AudioRecorder(sink, codec, mAudioConfig);
       mRecorder.start();
     } catch (IOException e) {
       logE("startRecording() failed", e);
@@ -511,6 +713,25 @@ public class MainActivity extends ConnectionsActivity {
     return mRecorder != null && mRecorder.isRecording();
   }
 
+  /**
+   * Writes how long audio takes to reach us, stage by stage, and how far each connected device's
+   * clock is from ours. See it with {@code adb shell dumpsys activity
+   * com.google.location.nearby.apps.walkietalkie.automatic/.MainActivity}, adding {@code reset} to
+   * start measuring afresh.
+   */
+  @Override
+  public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+    super.dump(prefix, fd, writer, args);
+    writer.println(prefix + "Latency:");
+    LatencyStats.get().dump(prefix + "  ", writer);
+    writer.println(prefix + "Clocks:");
+    mClockSync.dump(prefix + "  ", writer);
+    if (args != null && Arrays.asList(args).contains("reset")) {
+      LatencyStats.get().reset();
+      writer.println(prefix + "Latency reset");
+    }
+  }
+
   /** {@see ConnectionsActivity#getRequiredPermissions()} */
   @Override
   protected String[] getRequiredPermissions() {
@@ -2,7 +2,8 @@ package com.google.location.nearby.apps.walkietalkie;
 
 /**
  * A buffer that grabs the smallest supported sample rate for {@link android.media.AudioTrack} and
- * {@link android.media.AudioRecord}.
+ * {@link android.media.AudioRecord}, the smallest an {@link AudioCodec} can code, or the one an
+ * {@link AudioConfig} asks for.
  */
 public abstract class AudioBuffer {
   private static final int[] POSSIBLE_SAMPLE_RATES =
@@ -10,30 +11,60 @@ public abstract class AudioBuffer {
 
   final int size;
   final int sampleRate;
-  final byte[] data;
 
   protected AudioBuffer() {
-    int size = -1;
-    int sampleRate = -1;
+    this.sampleRate = findSampleRate();
+    this.size = getSize(sampleRate, 1);
+  }
+
+  /**
+   * A buffer for the given config. If its sample rate isn't supported, the smallest supported one
+   * is used instead.
+   */
+  protected AudioBuffer(AudioConfig config) {
+    this.sampleRate =
+        validSize(getMinBufferSize(config.sampleRate)) ? config.sampleRate : findSampleRate();
+    this.size = getSize(sampleRate, config.bufferMultiple);
+  }
 
+  /**
+   * A buffer for recording audio to encode with the given codec, at the smallest sample rate both
+   * the device and the codec support, with the config's buffer multiple. Falls back to the
+   * smallest the device supports, for the recorder to pick another codec.
+   */
+  protected AudioBuffer(AudioConfig config, AudioCodec codec) {
+    this.sampleRate = findSampleRate(codec);
+    this.size = getSize(sampleRate, config.bufferMultiple);
+  }
+
+  private int findSampleRate() {
     // Iterate over all possible sample rates, and try to find the shortest one. The shorter
     // it is, the faster it'll stream.
     for (int rate : POSSIBLE_SAMPLE_RATES) {
-      sampleRate = rate;
-      size = getMinBufferSize(sampleRate);
-      if (validSize(size)) {
-        break;
+      if (validSize(getMinBufferSize(rate))) {
+        return rate;
       }
     }
+    return POSSIBLE_SAMPLE_RATES[POSSIBLE_SAMPLE_RATES.length - 1];
+  }
+
+  private int findSampleRate(AudioCodec codec) {
+    for (int rate : POSSIBLE_SAMPLE_RATES) {
+      if (codec.supportsSampleRate(rate) && validSize(getMinBufferSize(rate))) {
+        return rate;
+      }
+    }
+    return findSampleRate();
+  }
+
+  private int getSize(int sampleRate, int bufferMultiple) {
+    int size = getMinBufferSize(sampleRate);
 
     // If none of them were good, then just pick 1kb
     if (!validSize(size)) {
-      size = 1024;
+      return 1024;
     }
-
-    this.size = size;
-    this.sampleRate = sampleRate;
-    data = new byte[size];
+    return size * bufferMultiple;
   }
 
   protected abstract boolean validSize(int size);
@@ -0,0 +1,319 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static android.os.Process.THREAD_PRIORITY_AUDIO;
+import static android.os.Process.setThreadPriority;
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the {@link AudioConfig} with the lowest latency this device plays without gaps at. For each
+ * sample rate and buffer size tried, it plays a few short beeps, as {@link AudioMixer} would, and
+ * times how long each takes to come back through the microphone. A config is stable if every beep
+ * comes back after about the same time and the speaker never ran dry.
+ *
+ * <p>The device's own sample rate is tried first, and wins any close call, as audio at other rates
+ * is converted by the platform. Larger buffers are only tried until one is stable, as they only
+ * add latency.
+ */
+public class AudioCalibration {
+  /** The sample rates tried besides the device's own. */
+  private static final int[] SAMPLE_RATES = {48000, 44100};
+
+  /** The multiples of the smallest buffer tried, smallest first. */
+  private static final int[] BUFFER_MULTIPLES = {1, 2, 3, 4};
+
+  /** How much is played at once, as with {@link AudioMixer}. */
+  private static final int PERIOD_MS = 10;
+
+  private static final int BEEPS = 3;
+  private static final int BEEP_INTERVAL_MS = 200;
+  private static final int BEEP_DURATION_MS = 10;
+  private static final int BEEP_FREQUENCY_HZ = 1000;
+
+  /** How loud a beep must be when it comes back, at least, to be told from the room. */
+  private static final int MIN_BEEP_LEVEL = 1000;
+
+  /** How much louder than the room a beep must be when it comes back. */
+  private static final int BEEP_TO_ROOM_RATIO = 4;
+
+  /** Beeps slower than this to come back are taken for lost. */
+  private static final int MAX_LATENCY_MS = 500;
+
+  /** How much the beeps' latencies may vary for a config to be stable. */
+  private static final int MAX_LATENCY_SPREAD_MS = 10;
+
+  /** How much slower the device's own sample rate may be and still be picked. */
+  private static final int NATIVE_SAMPLE_RATE_PREFERENCE_MS = 5;
+
+  private AudioCalibration() {}
+
+  /**
+   * Tries the configs, and saves the best for the device's model. Plays beeps, and needs the
+   * microphone, for a few seconds. If none is stable, the default config is saved instead, so the
+   * device isn't calibrated again. Interrupting the calling thread cancels calibration, saving
+   * nothing, within about a beep.
+   *
+   * @return The best config, or null if none was stable or calibration was cancelled.
+   */
+  @WorkerThread
+  @Nullable
+  public static AudioConfig calibrate(Context context) {
+    int nativeSampleRate = AudioConfig.getNativeSampleRate(context);
+    Set<Integer> sampleRates = new LinkedHashSet<>();
+    sampleRates.add(nativeSampleRate);
+    for (int sampleRate : SAMPLE_RATES) {
+      sampleRates.add(sampleRate);
+    }
+
+    AudioConfig best = null;
+    for (int sampleRate : sampleRates) {
+      for (int bufferMultiple : BUFFER_MULTIPLES) {
+        if (Thread.currentThread().isInterrupted()) {
+          Log.d(TAG, "Audio calibration cancelled");
+          return null;
+        }
+        AudioConfig config = measure(sampleRate, bufferMultiple);
+        if (config == null) {
+          continue;
+        }
+        if (best == null || score(config, nativeSampleRate) < score(best, nativeSampleRate)) {
+          best = config;
+        }
+        break;
+      }
+    }
+
+    if (Thread.currentThread().isInterrupted()) {
+      Log.d(TAG, "Audio calibration cancelled");
+      return null;
+    }
+    if (best == null) {
+      Log.w(TAG, "No audio config was stable; keeping the default");
+      AudioConfig.getDefault(context).save(context);
+      return null;
+    }
+    Log.d(TAG, "Calibrated audio: " + best);
+    best.save(context);
+    return best;
+  }
+
+  /** @return The config's latency, less a head start for the device's own sample rate. */
+  private static int score(AudioConfig config, int nativeSampleRate) {
+    return config.sampleRate == nativeSampleRate
+        ? config.latencyMs - NATIVE_SAMPLE_RATE_PREFERENCE_MS
+        : config.latencyMs;
+  }
+
+  /** @return The config with its latency, or null if it isn't supported or stable. */
+  @Nullable
+  private static AudioConfig measure(int sampleRate, int bufferMultiple) {
+    AudioConfig config = new AudioConfig(sampleRate, bufferMultiple, -1);
+    AudioRecorder.Buffer recordBuffer = new AudioRecorder.Buffer(config);
+    AudioMixer.Buffer playBuffer = new AudioMixer.Buffer(config);
+    if (recordBuffer.sampleRate != sampleRate || playBuffer.sampleRate != sampleRate) {
+      // Not supported at this rate.
+      return null;
+    }
+
+    int periodSamples = sampleRate * PERIOD_MS / 1000;
+    AudioRecord record =
+        new AudioRecord(
+            MediaRecorder.AudioSource.DEFAULT,
+            sampleRate,
+            AudioFormat.CHANNEL_IN_MONO,
+            AudioFormat.ENCODING_PCM_16BIT,
+            Math.max(recordBuffer.size, 2 * 2 * periodSamples));
+    if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+      record.release();
+      return null;
+    }
+    AudioTrack track =
+        new AudioTrack(
+            AudioManager.STREAM_MUSIC,
+            sampleRate,
+            AudioFormat.CHANNEL_OUT_MONO,
+            AudioFormat.ENCODING_PCM_16BIT,
+            Math.max(playBuffer.size, 2 * 2 * periodSamples),
+            AudioTrack.MODE_STREAM);
+    if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+      record.release();
+      track.release();
+      return null;
+    }
+
+    BeepThread beeps = new BeepThread(track, sampleRate, periodSamples);
+    List<Long> latencies;
+    int underruns;
+    try {
+      record.startRecording();
+      track.play();
+      beeps.start();
+      latencies = listen(record, sampleRate, periodSamples, beeps);
+    } finally {
+      beeps.interrupt();
+      // Waits even if calibration is cancelled, as the beeps are played on the track released next.
+      boolean interrupted = false;
+      while (beeps.isAlive()) {
+        try {
+          beeps.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      underruns = Build.VERSION.SDK_INT >= 24 ? track.getUnderrunCount() : 0;
+      record.stop();
+      record.release();
+      track.stop();
+      track.release();
+    }
+
+    if (latencies.size() < BEEPS || underruns > 0) {
+      Log.d(
+          TAG,
+          String.format(
+              "%s unstable: %d of %d beeps heard, %d underruns",
+              config, latencies.size(), BEEPS, underruns));
+      return null;
+    }
+    long min = latencies.get(0);
+    long max = latencies.get(0);
+    long sum = 0;
+    for (long latency : latencies) {
+      min = Math.min(min, latency);
+      max = Math.max(max, latency);
+      sum += latency;
+    }
+    if ((max - min) / 1000000 > MAX_LATENCY_SPREAD_MS) {
+      Log.d(TAG, config + " unstable: beeps took " + latencies + "ns");
+      return null;
+    }
+    AudioConfig measured =
+        new AudioConfig(sampleRate, bufferMultiple, (int) (sum / latencies.size() / 1000000));
+    Log.d(TAG, "Measured " + measured);
+    return measured;
+  }
+
+  /**
+   * Reads from the microphone until every beep came back or took too long.
+   *
+   * @return How long each beep heard took to come back, in ns.
+   */
+  private static List<Long> listen(
+      AudioRecord record, int sampleRate, int periodSamples, BeepThread beeps) {
+    List<Long> latencies = new ArrayList<>();
+    short[] period = new short[periodSamples];
+    int roomLevel = 0;
+    int beep = 0;
+    long deadline = Long.MAX_VALUE;
+    while (beep < BEEPS
+        && System.nanoTime() < deadline
+        && !Thread.currentThread().isInterrupted()) {
+      int length = record.read(period, 0, period.length);
+      long readNanos = System.nanoTime();
+      if (length <= 0) {
+        break;
+      }
+
+      long playedNanos = beeps.getPlayedNanos(beep);
+      if (playedNanos == 0) {
+        if (!beeps.isAlive()) {
+          // The beep was never played.
+          break;
+        }
+        if (beep == 0) {
+          // Nothing played yet; learn how loud the room is meanwhile. Not between beeps, as the
+          // last one and its echo are still coming back then.
+          for (int i = 0; i < length; i++) {
+            roomLevel = Math.max(roomLevel, Math.abs(period[i]));
+          }
+        }
+        continue;
+      }
+      deadline = playedNanos + MAX_LATENCY_MS * 1000000L;
+
+      int threshold = Math.max(MIN_BEEP_LEVEL, roomLevel * BEEP_TO_ROOM_RATIO);
+      for (int i = 0; i < length; i++) {
+        if (Math.abs(period[i]) > threshold) {
+          long heardNanos = readNanos - (length - i) * 1000000000L / sampleRate;
+          if (heardNanos > playedNanos) {
+            latencies.add(heardNanos - playedNanos);
+          }
+          // Listen for the next beep, and let this one's echo die down meanwhile.
+          beep++;
+          deadline = Long.MAX_VALUE;
+          break;
+        }
+      }
+      if (System.nanoTime() >= deadline) {
+        // Lost; move on to the next.
+        beep++;
+        deadline = Long.MAX_VALUE;
+      }
+    }
+    return latencies;
+  }
+
+  /** Plays silence, with a beep every so often, and notes when each beep was written. */
+  private static class BeepThread extends Thread {
+    private final AudioTrack mTrack;
+    private final int mSampleRate;
+    private final int mPeriodSamples;
+
+    /** When each beep was written, from {@link System#nanoTime()}, or 0 until then. */
+    private final long[] mPlayedNanos = new long[BEEPS];
+
+    BeepThread(AudioTrack track, int sampleRate, int periodSamples) {
+      mTrack = track;
+      mSampleRate = sampleRate;
+      mPeriodSamples = periodSamples;
+    }
+
+    synchronized long getPlayedNanos(int beep) {
+      return mPlayedNanos[beep];
+    }
+
+    @Override
+    public void run() {
+      setThreadPriority(THREAD_PRIORITY_AUDIO);
+      short[] silence = new short[mPeriodSamples];
+      short[] beep = new short[mPeriodSamples];
+      int beepSamples = Math.min(mPeriodSamples, mSampleRate * BEEP_DURATION_MS / 1000);
+      for (int i = 0; i < beepSamples; i++) {
+        double phase = 2 * Math.PI * BEEP_FREQUENCY_HZ * i / mSampleRate;
+        beep[i] = (short) (Short.MAX_VALUE / 2 * Math.sin(phase));
+      }
+
+      int periodsPerBeep = BEEP_INTERVAL_MS / PERIOD_MS;
+      // A last interval of silence for the last beep to come back in.
+      int periods = (BEEPS + 1) * periodsPerBeep + MAX_LATENCY_MS / PERIOD_MS;
+      for (int period = 1; period <= periods && !isInterrupted(); period++) {
+        int index = period / periodsPerBeep - 1;
+        boolean beeping = period % periodsPerBeep == 0 && index < BEEPS;
+        // Blocks while the AudioTrack is full, as when mixing.
+        mTrack.write(beeping ? beep : silence, 0, mPeriodSamples);
+        if (beeping) {
+          synchronized (this) {
+            mPlayedNanos[index] = System.nanoTime();
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.io.IOException;
+
+/**
+ * Compresses 16-bit mono PCM between {@link AudioRecorder} and the network, and decompresses it
+ * again before {@link AudioPlayer} plays it. Audio is coded a frame at a time, and each encoded
+ * frame is sent as one packet.
+ */
+public interface AudioCodec {
+  /** @return The name identifying this codec to other devices. */
+  String getName();
+
+  /** @return True if audio at this sample rate can be encoded and decoded. */
+  boolean supportsSampleRate(int sampleRate);
+
+  /** Creates an encoder for audio at the given sample rate. */
+  Encoder newEncoder(int sampleRate) throws IOException;
+
+  /** Creates a decoder for audio at the given sample rate. */
+  Decoder newDecoder(int sampleRate) throws IOException;
+
+  /** Encodes consecutive frames of one stream. Not thread safe. */
+  interface Encoder {
+    /** @return The largest packet {@link #encode} produces for a frame of this many samples. */
+    int getMaxEncodedSize(int samples);
+
+    /**
+     * Encodes a frame of samples.
+     *
+     * @return The size of the packet written to {@code out}, which may be 0 if the codec has no
+     *     output for this frame.
+     */
+    int encode(short[] pcm, int offset, int length, byte[] out) throws IOException;
+
+    /** Frees any resources held by the encoder. */
+    void release();
+  }
+
+  /** Decodes consecutive packets of one stream. Not thread safe. */
+  interface Decoder {
+    /** @return The most samples {@link #decode} produces for a packet of this size. */
+    int getMaxDecodedSamples(int packetSize);
+
+    /**
+     * Decodes a packet.
+     *
+     * @return The number of samples written to {@code pcm}.
+     */
+    int decode(byte[] packet, int offset, int length, short[] pcm) throws IOException;
+
+    /** Frees any resources held by the decoder. */
+    void release();
+  }
+}
@@ -0,0 +1,46 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** The {@link AudioCodec}s this device supports. */
+public final class AudioCodecs {
+  public static final AudioCodec PCM = new PcmCodec();
+  public static final AudioCodec IMA_ADPCM = new ImaAdpcmCodec();
+
+  /** The codecs every device supports. Used with devices that haven't told us theirs. */
+  public static final List<String> BASELINE =
+      Collections.unmodifiableList(Arrays.asList(IMA_ADPCM.getName(), PCM.getName()));
+
+  @Nullable private static List<AudioCodec> sSupportedCodecs;
+
+  private AudioCodecs() {}
+
+  /** @return The codecs this device supports, best first. */
+  public static synchronized List<AudioCodec> getSupportedCodecs() {
+    if (sSupportedCodecs == null) {
+      List<AudioCodec> codecs = new ArrayList<>();
+      if (OpusCodec.isAvailable()) {
+        codecs.add(new OpusCodec());
+      }
+      codecs.add(IMA_ADPCM);
+      codecs.add(PCM);
+      sSupportedCodecs = Collections.unmodifiableList(codecs);
+    }
+    return sSupportedCodecs;
+  }
+
+  /** @return The codec with this name, or null if this device doesn't support it. */
+  @Nullable
+  public static AudioCodec get(String name) {
+    for (AudioCodec codec : getSupportedCodecs()) {
+      if (codec.getName().equals(name)) {
+        return codec;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,106 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+/**
+ * How to record and play audio on this device: the sample rate to play at, and how many times the
+ * smallest buffer the platform allows to use. Recordings are made at the smallest rate their codec
+ * supports instead, and converted when played. {@link AudioCalibration} finds the best for a
+ * device, which is then kept for every device of the same model.
+ */
+public class AudioConfig {
+  private static final String PREFERENCES = "audio_config";
+
+  /** The buffer multiple used before the device is calibrated, as safe as it's slow. */
+  private static final int DEFAULT_BUFFER_MULTIPLE = 2;
+
+  /** The sample rate to play at. */
+  public final int sampleRate;
+
+  /** How many times the smallest buffer to use. */
+  public final int bufferMultiple;
+
+  /** The round trip from speaker to microphone measured with this config, or -1 if unknown. */
+  public final int latencyMs;
+
+  public AudioConfig(int sampleRate, int bufferMultiple, int latencyMs) {
+    this.sampleRate = sampleRate;
+    this.bufferMultiple = bufferMultiple;
+    this.latencyMs = latencyMs;
+  }
+
+  /** @return The config to use until the device is calibrated. */
+  public static AudioConfig getDefault(Context context) {
+    return new AudioConfig(getNativeSampleRate(context), DEFAULT_BUFFER_MULTIPLE, -1);
+  }
+
+  /**
+   * @return The sample rate the device plays at. Audio at any other rate is converted by the
+   *     platform, which adds latency.
+   */
+  public static int getNativeSampleRate(Context context) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+      AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+      String sampleRate = audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE);
+      if (sampleRate != null) {
+        try {
+          return Integer.parseInt(sampleRate);
+        } catch (NumberFormatException e) {
+          // Fall through to asking AudioTrack.
+        }
+      }
+    }
+    int sampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+    if (sampleRate > 0) {
+      return sampleRate;
+    }
+    // Probe for a rate the device plays at, as before there was a native rate to ask for.
+    return new AudioMixer.Buffer().sampleRate;
+  }
+
+  /** @return The config saved for this device's model, or null if it hasn't been calibrated. */
+  @Nullable
+  public static AudioConfig load(Context context) {
+    SharedPreferences preferences = getPreferences(context);
+    String key = getModelKey();
+    if (!preferences.contains(key + ".sampleRate")) {
+      return null;
+    }
+    return new AudioConfig(
+        preferences.getInt(key + ".sampleRate", 0),
+        preferences.getInt(key + ".bufferMultiple", DEFAULT_BUFFER_MULTIPLE),
+        preferences.getInt(key + ".latencyMs", -1));
+  }
+
+  /** Saves the config for this device's model. */
+  public void save(Context context) {
+    String key = getModelKey();
+    getPreferences(context)
+        .edit()
+        .putInt(key + ".sampleRate", sampleRate)
+        .putInt(key + ".bufferMultiple", bufferMultiple)
+        .putInt(key + ".latencyMs", latencyMs)
+        .apply();
+  }
+
+  private static SharedPreferences getPreferences(Context context) {
+    return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+  }
+
+  /** A model's audio hardware, and so its best config, may change with its Android version. */
+  private static String getModelKey() {
+    return Build.MANUFACTURER + "/" + Build.MODEL + "/" + Build.VERSION.SDK_INT;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%dHz, %dx buffers, %s",
+        sampleRate, bufferMultiple, latencyMs < 0 ? "latency unknown" : latencyMs + "ms latency");
+  }
+}
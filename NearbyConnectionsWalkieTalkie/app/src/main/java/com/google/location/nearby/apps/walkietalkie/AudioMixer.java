@@ -0,0 +1,441 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static android.os.Process.THREAD_PRIORITY_AUDIO;
+import static android.os.Process.setThreadPriority;
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.util.Log;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Plays everyone talking at once through a single {@link AudioTrack}. Each {@link AudioPlayer}
+ * adds an {@link Input} for its stream. Every few milliseconds the mixer takes the next frames from
+ * each input's {@link JitterBuffer}, converts them to the output's sample rate in the input's own
+ * {@link AudioRingBuffer}, and adds them up, scaled by the gain set for the endpoint. Sums too loud
+ * to play are softly clipped.
+ *
+ * <p>Nothing is allocated while mixing, so it doesn't wait on the garbage collector.
+ *
+ * <p>When each frame will be heard is worked out from the {@link AudioTimestamp} of the output,
+ * and recorded in {@link LatencyStats} along with how long the frame waited to be mixed.
+ */
+public class AudioMixer {
+  /** How much is mixed at once. */
+  private static final int PERIOD_MS = 10;
+
+  /** The most inputs mixed at once. Any more are left out. */
+  private static final int MAX_INPUTS = 16;
+
+  /** The largest input frame: a 120 ms Opus packet. */
+  private static final int MAX_FRAME_DURATION_MS = 120;
+
+  /** Mixed samples louder than this, as a fraction of full scale, are clipped softly. */
+  private static final float SOFT_CLIP_THRESHOLD = 0.7f;
+
+  /** How often the output is asked when it's playing what, in periods. Asking is slow. */
+  private static final int TIMESTAMP_INTERVAL_PERIODS = 50;
+
+  /** The gain of each endpoint, for those not at 1. */
+  private final Map<String, Float> mGains = new HashMap<>();
+
+  /** The inputs being mixed. The first {@link #mInputCount} are set. */
+  private final Input[] mInputs = new Input[MAX_INPUTS];
+
+  private int mInputCount;
+
+  /** If true, the mixing thread will keep playing. Once false, it shuts down. */
+  private volatile boolean mAlive;
+
+  /** True if the output couldn't be opened, so nothing can be played until the next start. */
+  private boolean mFailed;
+
+  /** The background thread mixing for us. */
+  private Thread mThread;
+
+  /** The size of the output's buffer. */
+  private final Buffer mBuffer;
+
+  /** The output's sample rate. */
+  private final int mSampleRate;
+
+  /** @param config The sample rate and buffer size to play with. */
+  public AudioMixer(AudioConfig config) {
+    mBuffer = new Buffer(config);
+    mSampleRate = mBuffer.sampleRate;
+  }
+
+  /** Starts playing. Inputs added before this wait to be played. */
+  public void start() {
+    if (mAlive) {
+      Log.w(TAG, "Already running");
+      return;
+    }
+    mAlive = true;
+    synchronized (this) {
+      mFailed = false;
+    }
+    mThread =
+        new Thread() {
+          @Override
+          public void run() {
+            setThreadPriority(THREAD_PRIORITY_AUDIO);
+            mix();
+          }
+        };
+    mThread.start();
+  }
+
+  /** Stops playing, and removes every input. */
+  public void stop() {
+    synchronized (this) {
+      mAlive = false;
+      notifyAll();
+    }
+    if (mThread != null) {
+      try {
+        mThread.join();
+      } catch (InterruptedException e) {
+        Log.e(TAG, "Interrupted while joining AudioMixer thread", e);
+        Thread.currentThread().interrupt();
+      }
+      mThread = null;
+    }
+    synchronized (this) {
+      while (mInputCount > 0) {
+        remove(mInputs[0]);
+      }
+    }
+  }
+
+  /**
+   * Sets how loud an endpoint is played, from 0 for silent. Applies to what it's saying now and
+   * whatever it says later.
+   */
+  public synchronized void setGain(String endpointId, float gain) {
+    mGains.put(endpointId, gain);
+    for (int i = 0; i < mInputCount; i++) {
+      if (mInputs[i].mEndpointId.equals(endpointId)) {
+        mInputs[i].mGain = gain;
+      }
+    }
+  }
+
+  /** @return How loud an endpoint is played. */
+  public synchronized float getGain(String endpointId) {
+    Float gain = mGains.get(endpointId);
+    return gain == null ? 1f : gain;
+  }
+
+  /**
+   * Starts mixing in a stream. The mixer takes frames from the jitter buffer until it ends and is
+   * empty, and then finishes the input.
+   *
+   * @param endpointId Who's talking, for their gain.
+   * @param jitterBuffer Where the stream's decoded frames are put.
+   * @param sampleRate The stream's sample rate.
+   * @return The input, or null if too many are being mixed already or the output couldn't be
+   *     opened.
+   */
+  public synchronized Input add(String endpointId, JitterBuffer jitterBuffer, int sampleRate) {
+    if (mFailed) {
+      Log.w(TAG, "No audio output; not playing " + endpointId);
+      return null;
+    }
+    if (mInputCount == MAX_INPUTS) {
+      Log.w(TAG, "Too many people talking; not playing " + endpointId);
+      return null;
+    }
+    Input input =
+        new Input(endpointId, jitterBuffer, sampleRate, mSampleRate, getGain(endpointId));
+    mInputs[mInputCount++] = input;
+    notifyAll();
+    return input;
+  }
+
+  /** Stops mixing in an input, and finishes it. Does nothing if it already finished. */
+  public synchronized void remove(Input input) {
+    for (int i = 0; i < mInputCount; i++) {
+      if (mInputs[i] == input) {
+        mInputs[i] = mInputs[--mInputCount];
+        mInputs[mInputCount] = null;
+        break;
+      }
+    }
+    input.finish();
+  }
+
+  private void mix() {
+    int periodSamples = mSampleRate * PERIOD_MS / 1000;
+    AudioTrack audioTrack =
+        new AudioTrack(
+            AudioManager.STREAM_MUSIC,
+            mSampleRate,
+            AudioFormat.CHANNEL_OUT_MONO,
+            AudioFormat.ENCODING_PCM_16BIT,
+            // Room for a period being mixed while the one before is played.
+            Math.max(mBuffer.size, 2 * 2 * periodSamples),
+            AudioTrack.MODE_STREAM);
+    if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+      // E.g. the platform is out of tracks. play() would throw.
+      Log.e(TAG, "Failed to open an AudioTrack at " + mSampleRate + "Hz");
+      audioTrack.release();
+      synchronized (this) {
+        mFailed = true;
+        while (mInputCount > 0) {
+          remove(mInputs[0]);
+        }
+      }
+      return;
+    }
+    audioTrack.play();
+
+    // Allocated up front, so mixing doesn't.
+    Input[] inputs = new Input[MAX_INPUTS];
+    float[] sum = new float[periodSamples];
+    short[] out = new short[periodSamples];
+    // AudioTimestamp is new in API 19. Before that, only the playback head position is used.
+    AudioTimestamp timestamp =
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? new AudioTimestamp() : null;
+    boolean hasTimestamp = false;
+    long resumedNanos = 0;
+    long framesWritten = 0;
+    long periods = 0;
+    try {
+      while (mAlive) {
+        int inputCount;
+        synchronized (this) {
+          if (mInputCount == 0) {
+            // The output runs dry while we wait, which throws its timestamps off until then.
+            hasTimestamp = false;
+            while (mAlive && mInputCount == 0) {
+              wait();
+            }
+            resumedNanos = System.nanoTime();
+          }
+          if (!mAlive) {
+            break;
+          }
+          inputCount = mInputCount;
+          System.arraycopy(mInputs, 0, inputs, 0, inputCount);
+        }
+
+        if (periods++ % TIMESTAMP_INTERVAL_PERIODS == 0 || !hasTimestamp) {
+          hasTimestamp =
+              timestamp != null
+                  && audioTrack.getTimestamp(timestamp)
+                  && timestamp.nanoTime > resumedNanos;
+        }
+        // When the first sample of this period will be heard.
+        long playNanos;
+        if (hasTimestamp) {
+          playNanos =
+              timestamp.nanoTime
+                  + (framesWritten - timestamp.framePosition) * 1000000000L / mSampleRate;
+        } else {
+          // Not yet known: when what's already in the output's buffer has been played.
+          long buffered = framesWritten - (audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL);
+          playNanos = System.nanoTime() + buffered * 1000000000L / mSampleRate;
+        }
+
+        Arrays.fill(sum, 0);
+        for (int i = 0; i < inputCount; i++) {
+          if (!inputs[i].mixInto(sum, playNanos)) {
+            remove(inputs[i]);
+          }
+          inputs[i] = null;
+        }
+        for (int i = 0; i < periodSamples; i++) {
+          out[i] = softClip(sum[i]);
+        }
+        // Blocks while the AudioTrack is full, pacing the mixing.
+        audioTrack.write(out, 0, periodSamples);
+        framesWritten += periodSamples;
+      }
+    } catch (InterruptedException e) {
+      Log.e(TAG, "Interrupted while mixing", e);
+    } finally {
+      audioTrack.release();
+    }
+  }
+
+  /** Limits a sum of samples to what can be played, bending the loudest rather than cutting. */
+  private static short softClip(float sample) {
+    float magnitude = Math.abs(sample) / Short.MAX_VALUE;
+    if (magnitude > SOFT_CLIP_THRESHOLD) {
+      // Approaches full scale, but never gets there.
+      float over = (magnitude - SOFT_CLIP_THRESHOLD) / (1 - SOFT_CLIP_THRESHOLD);
+      magnitude = SOFT_CLIP_THRESHOLD + (1 - SOFT_CLIP_THRESHOLD) * (float) Math.tanh(over);
+      sample = Math.copySign(magnitude * Short.MAX_VALUE, sample);
+    }
+    return (short) sample;
+  }
+
+  /** A stream being mixed. */
+  public static class Input {
+    private final String mEndpointId;
+    private final JitterBuffer mJitterBuffer;
+    private final Resampler mResampler;
+    private final int mOutputSampleRate;
+
+    /** Frames taken from the jitter buffer, at the output's sample rate, waiting to be mixed. */
+    private final AudioRingBuffer mRing;
+
+    private final short[] mFrame;
+    private final short[] mResampled;
+    private final short[] mPeriod;
+
+    private volatile float mGain;
+    private boolean mFinished;
+
+    Input(
+        String endpointId,
+        JitterBuffer jitterBuffer,
+        int sampleRate,
+        int outputSampleRate,
+        float gain) {
+      mEndpointId = endpointId;
+      mJitterBuffer = jitterBuffer;
+      mGain = gain;
+      mResampler = new Resampler(sampleRate, outputSampleRate);
+      mOutputSampleRate = outputSampleRate;
+      mFrame = new short[sampleRate * MAX_FRAME_DURATION_MS / 1000];
+      mResampled = new short[mResampler.getMaxOutput(mFrame.length)];
+      mPeriod = new short[outputSampleRate * PERIOD_MS / 1000];
+      mRing = new AudioRingBuffer(mResampled.length + mPeriod.length);
+    }
+
+    /**
+     * Adds the next period to the sum, at the input's gain.
+     *
+     * @param playNanos When the period will be heard, from {@link System#nanoTime()}.
+     * @return False once the stream ended and everything in it was mixed.
+     */
+    boolean mixInto(float[] sum, long playNanos) {
+      int length;
+      while (mRing.available() < sum.length && (length = mJitterBuffer.poll(mFrame)) != 0) {
+        if (length < 0) {
+          if (mRing.available() == 0) {
+            return false;
+          }
+          break;
+        }
+        recordLatency(playNanos);
+        int resampled = mResampler.resample(mFrame, length, mResampled);
+        mRing.write(mResampled, 0, resampled);
+      }
+
+      // Still buffering, or the end: what's there, and silence.
+      int samples = mRing.poll(mPeriod, 0, sum.length);
+      float gain = mGain;
+      for (int i = 0; i < samples; i++) {
+        sum[i] += mPeriod[i] * gain;
+      }
+      return true;
+    }
+
+    /** Records how long the frame just taken waited, and will wait, to be heard. */
+    private void recordLatency(long playNanos) {
+      long putNanos = mJitterBuffer.getTakenPutNanos();
+      if (putNanos == 0) {
+        // Concealed.
+        return;
+      }
+      LatencyStats stats = LatencyStats.get();
+      long nowNanos = System.nanoTime();
+      // Heard after what's already waiting to be mixed.
+      long heardNanos = playNanos + mRing.available() * 1000000000L / mOutputSampleRate;
+      stats.record(LatencyStats.Stage.BUFFER, nowNanos - putNanos);
+      stats.record(LatencyStats.Stage.PLAYBACK, heardNanos - nowNanos);
+      long captureNanos = mJitterBuffer.getTakenCaptureNanos();
+      if (captureNanos != 0) {
+        stats.record(LatencyStats.Stage.TOTAL, heardNanos - captureNanos);
+      }
+    }
+
+    synchronized void finish() {
+      mFinished = true;
+      notifyAll();
+    }
+
+    /** Waits until the mixer finished with the input, or it was removed. */
+    public synchronized void awaitFinished() throws InterruptedException {
+      while (!mFinished) {
+        wait();
+      }
+    }
+  }
+
+  /** Converts audio to another sample rate, by linear interpolation. */
+  private static class Resampler {
+    private final int mInputRate;
+    private final int mOutputRate;
+
+    /** Input samples per output sample. */
+    private final double mStep;
+
+    /** The last input sample converted, which comes before the next input, at index -1. */
+    private short mLast;
+
+    /** Where the next output sample falls in the next input, from -1 to include {@link #mLast}. */
+    private double mPhase;
+
+    Resampler(int inputRate, int outputRate) {
+      mInputRate = inputRate;
+      mOutputRate = outputRate;
+      mStep = (double) inputRate / outputRate;
+    }
+
+    /** @return The most samples {@link #resample} returns for the given input length. */
+    int getMaxOutput(int inputLength) {
+      return (int) ((long) inputLength * mOutputRate / mInputRate) + 2;
+    }
+
+    /** @return The number of samples written to {@code out}. */
+    int resample(short[] in, int length, short[] out) {
+      if (mInputRate == mOutputRate) {
+        System.arraycopy(in, 0, out, 0, length);
+        return length;
+      }
+      int count = 0;
+      double phase = mPhase;
+      while (phase < length - 1) {
+        int index = (int) Math.floor(phase);
+        float fraction = (float) (phase - index);
+        int a = index < 0 ? mLast : in[index];
+        int b = in[index + 1];
+        out[count++] = (short) (a + (b - a) * fraction);
+        phase += mStep;
+      }
+      mPhase = phase - length;
+      mLast = in[length - 1];
+      return count;
+    }
+  }
+
+  static class Buffer extends AudioBuffer {
+    /** A buffer at the smallest sample rate the device plays at. */
+    Buffer() {}
+
+    Buffer(AudioConfig config) {
+      super(config);
+    }
+
+    @Override
+    protected boolean validSize(int size) {
+      return size != AudioTrack.ERROR && size != AudioTrack.ERROR_BAD_VALUE;
+    }
+
+    @Override
+    protected int getMinBufferSize(int sampleRate) {
+      return AudioTrack.getMinBufferSize(
+          sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+    }
+  }
+}
@@ -4,21 +4,45 @@ import static android.os.Process.THREAD_PRIORITY_AUDIO;
 import static android.os.Process.setThreadPriority;
 import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
 
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
+import android.support.annotation.Nullable;
 import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
- * A fire-once class. When created, you must pass a {@link InputStream}. Once {@link #start()} is
- * called, the input stream will be read from until either {@link #stop()} is called or the stream
- * ends.
+ * A fire-once class. When created, you must pass a {@link InputStream}, or the codec and sample
+ * rate of frames you'll pass to {@link #receive}. Once {@link #start()} is called, the audio will
+ * be played until either {@link #stop()} is called or the stream ends.
+ *
+ * <p>A stream is one written by {@link StreamAudioSink}, and names the codec and sample rate to
+ * play it with. Frames are decoded into a {@link JitterBuffer}, so an uneven link neither stutters
+ * nor builds up delay, and played through an {@link AudioMixer} along with anyone else talking.
  */
 public class AudioPlayer {
-  /** The audio stream we're reading from. */
-  private final InputStream mInputStream;
+  /** Marks the end of {@link #mPackets}. */
+  private static final Packet END_OF_STREAM = new Packet();
+
+  /** Plays the audio, with everyone else's. */
+  private final AudioMixer mMixer;
+
+  /** Who's talking. */
+  private final String mEndpointId;
+
+  /** The audio stream we're reading from, or null if frames are passed to {@link #receive}. */
+  @Nullable private final InputStream mInputStream;
+
+  /** The frames passed to {@link #receive}, waiting to be decoded. */
+  private final BlockingQueue<Packet> mPackets = new LinkedBlockingQueue<>();
+
+  /** The codec and sample rate of the frames passed to {@link #receive}. */
+  @Nullable private final String mCodecName;
+
+  private final int mSampleRate;
 
   /**
    * If true, the background thread will continue to loop and play audio. Once false, the thread
@@ -26,16 +50,86 @@ public class AudioPlayer {
    */
   private volatile boolean mAlive;
 
-  /** The background thread recording audio for us. */
+  /** The background thread decoding audio for us. */
   private Thread mThread;
 
+  /** Our stream in the mixer, once we know its sample rate. */
+  @Nullable private volatile AudioMixer.Input mInput;
+
   /**
    * A simple audio player.
    *
+   * @param mixer Plays the audio.
+   * @param endpointId Who's talking.
    * @param inputStream The input stream of the recording.
    */
-  public AudioPlayer(InputStream inputStream) {
+  public AudioPlayer(AudioMixer mixer, String endpointId, InputStream inputStream) {
+    mMixer = mixer;
+    mEndpointId = endpointId;
     mInputStream = inputStream;
+    mCodecName = null;
+    mSampleRate = 0;
+  }
+
+  /**
+   * A player for audio received a frame at a time.
+   *
+   * @param mixer Plays the audio.
+   * @param endpointId Who's talking.
+   * @param codecName The codec the frames are encoded with.
+   * @param sampleRate The sample rate of the audio.
+   */
+  public AudioPlayer(AudioMixer mixer, String endpointId, String codecName, int sampleRate) {
+    mMixer = mixer;
+    mEndpointId = endpointId;
+    mInputStream = null;
+    mCodecName = codecName;
+    mSampleRate = sampleRate;
+  }
+
+  /**
+   * Queues a frame to be played. Only for players created with a codec and sample rate.
+   *
+   * @param position The position of the frame's first sample in the recording, or -1 if it
+   *     follows on from the previous frame.
+   * @param captureNanos When the frame's first sample was recorded, on our clock, or 0 if unknown
+   *     or it follows on from the previous frame.
+   */
+  public void receive(long position, long captureNanos, byte[] data, int offset, int length) {
+    Packet packet = new Packet();
+    packet.data = data;
+    packet.offset = offset;
+    packet.length = length;
+    packet.position = position;
+    packet.captureNanos = captureNanos;
+    packet.arrivalNanos = System.nanoTime();
+    mPackets.offer(packet);
+  }
+
+  /**
+   * Queues a {@link ComfortNoise} marker to be played as background noise. Only for players
+   * created with a codec and sample rate.
+   *
+   * @param position The position of the frame's first sample in the recording, or -1 if it
+   *     follows on from the previous frame.
+   * @param captureNanos When the frame's first sample was recorded, on our clock, or 0 if unknown
+   *     or it follows on from the previous frame.
+   */
+  public void receiveComfortNoise(long position, long captureNanos, byte[] data, int offset) {
+    Packet packet = new Packet();
+    packet.data = data;
+    packet.offset = offset;
+    packet.length = ComfortNoise.MARKER_SIZE;
+    packet.comfortNoise = true;
+    packet.position = position;
+    packet.captureNanos = captureNanos;
+    packet.arrivalNanos = System.nanoTime();
+    mPackets.offer(packet);
+  }
+
+  /** Plays the frames already received, and then finishes. */
+  public void endOfStream() {
+    mPackets.offer(END_OF_STREAM);
   }
 
   /** @return True if currently playing. */
@@ -52,27 +146,62 @@ public class AudioPlayer {
           public void run() {
             setThreadPriority(THREAD_PRIORITY_AUDIO);
 
-            Buffer buffer = new Buffer();
-            AudioTrack audioTrack =
-                new AudioTrack(
-                    AudioManager.STREAM_MUSIC,
-                    buffer.sampleRate,
-                    AudioFormat.CHANNEL_OUT_MONO,
-                    AudioFormat.ENCODING_PCM_16BIT,
-                    buffer.size,
-                    AudioTrack.MODE_STREAM);
-            audioTrack.play();
-
-            int len;
+            AudioCodec.Decoder decoder = null;
+            AudioMixer.Input input = null;
             try {
-              while (isPlaying() && (len = mInputStream.read(buffer.data)) > 0) {
-                audioTrack.write(buffer.data, 0, len);
+              String codecName;
+              int sampleRate;
+              PacketSource source;
+              if (mInputStream != null) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(mInputStream));
+                codecName = in.readUTF();
+                sampleRate = in.readInt();
+                source = new StreamPacketSource(in);
+              } else {
+                codecName = mCodecName;
+                sampleRate = mSampleRate;
+                source = new QueuePacketSource(mPackets);
+              }
+              AudioCodec codec = AudioCodecs.get(codecName);
+              if (codec == null || !codec.supportsSampleRate(sampleRate)) {
+                throw new IOException("Can't decode " + codecName + " at " + sampleRate + "Hz");
+              }
+              decoder = codec.newDecoder(sampleRate);
+
+              JitterBuffer jitterBuffer = new JitterBuffer(sampleRate);
+              input = mMixer.add(mEndpointId, jitterBuffer, sampleRate);
+              if (input == null) {
+                return;
+              }
+              mInput = input;
+
+              // The mixer takes frames from the jitter buffer at the pace they're played.
+              decode(source, decoder, jitterBuffer, sampleRate);
+              if (isPlaying()) {
+                input.awaitFinished();
               }
+              Log.d(
+                  TAG,
+                  String.format(
+                      "Played with %d underruns, %d frames concealed, %d dropped, %d lost",
+                      jitterBuffer.getUnderruns(),
+                      jitterBuffer.getConcealedFrames(),
+                      jitterBuffer.getDroppedFrames(),
+                      jitterBuffer.getLostFrames()));
+            } catch (EOFException e) {
+              // The sender stopped before sending any audio.
             } catch (IOException e) {
               Log.e(TAG, "Exception with playing stream", e);
+            } catch (InterruptedException e) {
+              Log.e(TAG, "Interrupted while playing stream", e);
             } finally {
               stopInternal();
-              audioTrack.release();
+              if (input != null) {
+                mMixer.remove(input);
+              }
+              if (decoder != null) {
+                decoder.release();
+              }
               onFinish();
             }
           }
@@ -80,8 +209,67 @@ public class AudioPlayer {
     mThread.start();
   }
 
+  /**
+   * Decodes the frames as they arrive, into the jitter buffer. Ends it when the source ends or the
+   * player is stopped. How long each took to decode is recorded in {@link LatencyStats}.
+   */
+  private static void decode(
+      PacketSource source, AudioCodec.Decoder decoder, JitterBuffer jitterBuffer, int sampleRate)
+      throws InterruptedException {
+    ComfortNoise comfortNoise = new ComfortNoise();
+    LatencyStats stats = LatencyStats.get();
+    short[] pcm = new short[0];
+    long position = 0;
+    long captureNanos = 0;
+    try {
+      Packet packet;
+      while ((packet = source.next()) != null) {
+        int maxSamples =
+            packet.comfortNoise
+                ? ComfortNoise.readSamples(packet.data, packet.offset)
+                : decoder.getMaxDecodedSamples(packet.length);
+        if (maxSamples > pcm.length) {
+          pcm = new short[maxSamples];
+        }
+        int samples;
+        if (packet.comfortNoise) {
+          samples = maxSamples;
+          comfortNoise.generate(
+              pcm, samples, ComfortNoise.readNoiseDbfs(packet.data, packet.offset));
+        } else {
+          samples = decoder.decode(packet.data, packet.offset, packet.length, pcm);
+        }
+        if (packet.position >= 0) {
+          position = packet.position;
+          captureNanos = packet.captureNanos;
+        }
+        if (samples > 0) {
+          jitterBuffer.put(pcm, samples, position, packet.arrivalNanos, captureNanos);
+          stats.record(LatencyStats.Stage.RECEIVE, System.nanoTime() - packet.arrivalNanos);
+        }
+        position += samples;
+        if (captureNanos != 0) {
+          captureNanos += samples * 1000000000L / sampleRate;
+        }
+      }
+    } catch (IOException e) {
+      // Also how a stopped player ends, by closing the stream.
+      Log.d(TAG, "Audio stream closed", e);
+    } finally {
+      jitterBuffer.end();
+    }
+  }
+
   private void stopInternal() {
     mAlive = false;
+    AudioMixer.Input input = mInput;
+    if (input != null) {
+      mMixer.remove(input);
+    }
+    if (mInputStream == null) {
+      mPackets.offer(END_OF_STREAM);
+      return;
+    }
     try {
       mInputStream.close();
     } catch (IOException e) {
@@ -92,10 +280,14 @@ public class AudioPlayer {
   /** Stops playing the stream. */
   public void stop() {
     stopInternal();
+    joinQuietly(mThread);
+  }
+
+  private static void joinQuietly(Thread thread) {
     try {
-      mThread.join();
+      thread.join();
     } catch (InterruptedException e) {
-      Log.e(TAG, "Interrupted while joining AudioRecorder thread", e);
+      Log.e(TAG, "Interrupted while joining AudioPlayer thread", e);
       Thread.currentThread().interrupt();
     }
   }
@@ -103,16 +295,78 @@ public class AudioPlayer {
   /** The stream has now ended. */
   protected void onFinish() {}
 
-  private static class Buffer extends AudioBuffer {
+  /** An encoded frame. */
+  private static class Packet {
+    byte[] data;
+    int offset;
+    int length;
+
+    /** If true, the data is a {@link ComfortNoise} marker rather than an encoded frame. */
+    boolean comfortNoise;
+
+    /** The position of the frame's first sample, or -1 if it follows the previous frame. */
+    long position;
+
+    /** When the frame arrived, from {@link System#nanoTime()}. */
+    long arrivalNanos;
+
+    /** When the frame's first sample was recorded, on our clock, or 0 if unknown. */
+    long captureNanos;
+  }
+
+  /** Where the frames come from. */
+  private interface PacketSource {
+    /** Blocks until the next frame arrives, and returns it. Returns null at the end. */
+    @Nullable
+    Packet next() throws IOException, InterruptedException;
+  }
+
+  /** Reads the frames following the header of a stream. */
+  private static class StreamPacketSource implements PacketSource {
+    private final DataInputStream mIn;
+    private final Packet mPacket = new Packet();
+
+    StreamPacketSource(DataInputStream in) {
+      mIn = in;
+      mPacket.data = new byte[0];
+      mPacket.position = -1;
+    }
+
+    @Nullable
     @Override
-    protected boolean validSize(int size) {
-      return size != AudioTrack.ERROR && size != AudioTrack.ERROR_BAD_VALUE;
+    public Packet next() throws IOException {
+      int length;
+      try {
+        length = mIn.readUnsignedShort();
+      } catch (EOFException e) {
+        // The sender stopped talking.
+        return null;
+      }
+      mPacket.comfortNoise = ComfortNoise.isMarker(length);
+      length &= ~ComfortNoise.MARKER_FLAG;
+      if (length > mPacket.data.length) {
+        mPacket.data = new byte[length];
+      }
+      mIn.readFully(mPacket.data, 0, length);
+      mPacket.length = length;
+      mPacket.arrivalNanos = System.nanoTime();
+      return mPacket;
+    }
+  }
+
+  /** Takes the frames passed to {@link #receive}. */
+  private static class QueuePacketSource implements PacketSource {
+    private final BlockingQueue<Packet> mPackets;
+
+    QueuePacketSource(BlockingQueue<Packet> packets) {
+      mPackets = packets;
     }
 
+    @Nullable
     @Override
-    protected int getMinBufferSize(int sampleRate) {
-      return AudioTrack.getMinBufferSize(
-          sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+    public Packet next() throws InterruptedException {
+      Packet packet = mPackets.take();
+      return packet == END_OF_STREAM ? null : packet;
     }
   }
 }
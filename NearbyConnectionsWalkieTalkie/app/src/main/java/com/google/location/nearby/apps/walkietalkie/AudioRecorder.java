@@ -7,18 +7,44 @@ import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
-import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import java.io.IOException;
-import java.io.OutputStream;
 
 /**
- * When created, you must pass a {@link ParcelFileDescriptor}. Once {@link #start()} is called, the
- * file descriptor will be written to until {@link #stop()} is called.
+ * When created, you must pass an {@link AudioSink}. Once {@link #start()} is called, the sink will
+ * be written to until {@link #stop()} is called.
+ *
+ * <p>The audio is encoded with an {@link AudioCodec} in frames of a fixed duration, whatever size
+ * of buffer the device records in. One thread reads from the microphone into an {@link
+ * AudioRingBuffer} while another encodes the frames and writes them to the sink, so a slow write
+ * never holds up recording. The sink is flushed every few frames.
+ *
+ * <p>Frames the {@link VoiceActivityDetector} finds no speech in are sent as {@link ComfortNoise}
+ * markers instead, if enabled in {@link Constants}.
+ *
+ * <p>How long each frame took to be captured and encoded is recorded in {@link LatencyStats}.
  */
 public class AudioRecorder {
-  /** The stream to write to. */
-  private final OutputStream mOutputStream;
+  /** The frame durations every codec supports. */
+  private static final int[] FRAME_DURATIONS_MS = {10, 20, 40};
+
+  /** How much is read from the microphone at once. */
+  private static final int READ_DURATION_MS = 10;
+
+  /** How much recorded audio waits to be encoded before the oldest is dropped. */
+  private static final int RING_DURATION_MS = 500;
+
+  /** Where to send the recording. */
+  private final AudioSink mSink;
+
+  /** The codec to encode with, if it supports the sample rate. */
+  private final AudioCodec mCodec;
+
+  /** The buffer size to record with. */
+  private final AudioConfig mConfig;
+
+  private final int mFrameDurationMs;
+  private final int mFramesPerFlush;
 
   /**
    * If true, the background thread will continue to loop and record audio. Once false, the thread
@@ -30,12 +56,53 @@ public class AudioRecorder {
   private Thread mThread;
 
   /**
-   * A simple audio recorder.
+   * A simple audio recorder, with the frame duration and flushes set in {@link Constants}.
    *
-   * @param file The output stream of the recording.
+   * @param sink Where to send the recording.
+   * @param codec The codec to encode the recording with.
+   * @param config The buffer size to record with. The sample rate is the smallest the codec
+   *     supports, as the mixer converts whatever it plays.
    */
-  public AudioRecorder(ParcelFileDescriptor file) {
-    mOutputStream = new ParcelFileDescriptor.AutoCloseOutputStream(file);
+  public AudioRecorder(AudioSink sink, AudioCodec codec, AudioConfig config) {
+    this(sink, codec, config, Constants.FRAME_DURATION_MS, Constants.FRAMES_PER_FLUSH);
+  }
+
+  /**
+   * An audio recorder.
+   *
+   * @param sink Where to send the recording.
+   * @param codec The codec to encode the recording with.
+   * @param config The buffer size to record with. The sample rate is the smallest the codec
+   *     supports, as the mixer converts whatever it plays.
+   * @param frameDurationMs The length of the frames to encode: 10, 20 or 40 ms.
+   * @param framesPerFlush How many frames to write to the sink before flushing it.
+   */
+  public AudioRecorder(
+      AudioSink sink,
+      AudioCodec codec,
+      AudioConfig config,
+      int frameDurationMs,
+      int framesPerFlush) {
+    if (!isSupportedFrameDuration(frameDurationMs)) {
+      throw new IllegalArgumentException("Unsupported frame duration: " + frameDurationMs + "ms");
+    }
+    if (framesPerFlush < 1) {
+      throw new IllegalArgumentException("Must flush at least every frame: " + framesPerFlush);
+    }
+    mSink = sink;
+    mCodec = codec;
+    mConfig = config;
+    mFrameDurationMs = frameDurationMs;
+    mFramesPerFlush = framesPerFlush;
+  }
+
+  private static boolean isSupportedFrameDuration(int frameDurationMs) {
+    for (int duration : FRAME_DURATIONS_MS) {
+      if (duration == frameDurationMs) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /** @return True if actively recording. False otherwise. */
@@ -57,37 +124,48 @@ public class AudioRecorder {
           public void run() {
             setThreadPriority(THREAD_PRIORITY_AUDIO);
 
-            Buffer buffer = new Buffer();
+            // A higher rate than the codec needs would only cost bandwidth.
+            Buffer buffer = new Buffer(mConfig, mCodec);
+            short[] chunk = new short[buffer.sampleRate * READ_DURATION_MS / 1000];
             AudioRecord record =
                 new AudioRecord(
                     MediaRecorder.AudioSource.DEFAULT,
                     buffer.sampleRate,
                     AudioFormat.CHANNEL_IN_MONO,
                     AudioFormat.ENCODING_PCM_16BIT,
-                    buffer.size);
+                    // Room for a chunk being read while the next one is recorded.
+                    Math.max(buffer.size, 2 * 2 * chunk.length));
 
             if (record.getState() != AudioRecord.STATE_INITIALIZED) {
               Log.w(TAG, "Failed to start recording");
               mAlive = false;
+              mSink.close();
               return;
             }
 
+            AudioRingBuffer ring =
+                new AudioRingBuffer(buffer.sampleRate * RING_DURATION_MS / 1000);
+            EncodeThread encodeThread = new EncodeThread(ring, buffer.sampleRate);
+            encodeThread.start();
+
             record.startRecording();
 
-            // While we're running, we'll read the bytes from the AudioRecord and write them
-            // to our output stream.
+            // While we're running, we'll read the samples from the AudioRecord and hand them to
+            // the encoding thread.
             try {
               while (isRecording()) {
-                int len = record.read(buffer.data, 0, buffer.size);
-                if (len >= 0 && len <= buffer.size) {
-                  mOutputStream.write(buffer.data, 0, len);
-                  mOutputStream.flush();
+                int len = record.read(chunk, 0, chunk.length);
+                if (len > 0 && len <= chunk.length) {
+                  if (encodeThread.startNanos == 0) {
+                    // The read returns as the last sample of the chunk is captured.
+                    encodeThread.startNanos =
+                        System.nanoTime() - len * 1000000000L / buffer.sampleRate;
+                  }
+                  ring.write(chunk, 0, len);
                 } else {
                   Log.w(TAG, "Unexpected length returned: " + len);
                 }
               }
-            } catch (IOException e) {
-              Log.e(TAG, "Exception with recording stream", e);
             } finally {
               stopInternal();
               try {
@@ -96,6 +174,16 @@ public class AudioRecorder {
                 Log.e(TAG, "Failed to stop AudioRecord", e);
               }
               record.release();
+
+              ring.close();
+              joinQuietly(encodeThread);
+              if (ring.getOverwrittenSamples() > 0) {
+                Log.w(
+                    TAG,
+                    String.format(
+                        "Dropped %d ms of audio the encoder fell behind on",
+                        ring.getOverwrittenSamples() * 1000 / buffer.sampleRate));
+              }
             }
           }
         };
@@ -104,25 +192,107 @@ public class AudioRecorder {
 
   private void stopInternal() {
     mAlive = false;
-    try {
-      mOutputStream.close();
-    } catch (IOException e) {
-      Log.e(TAG, "Failed to close output stream", e);
-    }
   }
 
   /** Stops recording audio. */
   public void stop() {
     stopInternal();
+    joinQuietly(mThread);
+  }
+
+  private static void joinQuietly(Thread thread) {
     try {
-      mThread.join();
+      thread.join();
     } catch (InterruptedException e) {
       Log.e(TAG, "Interrupted while joining AudioRecorder thread", e);
       Thread.currentThread().interrupt();
     }
   }
 
-  private static class Buffer extends AudioBuffer {
+  /**
+   * Encodes the recorded audio a frame at a time, and writes it to the sink. Finishes the frames
+   * left once the ring is closed, and then closes the sink.
+   */
+  private class EncodeThread extends Thread {
+    private final AudioRingBuffer mRing;
+    private final int mSampleRate;
+
+    /** When the first sample was captured, from {@link System#nanoTime()}, or 0 until then. */
+    volatile long startNanos;
+
+    EncodeThread(AudioRingBuffer ring, int sampleRate) {
+      mRing = ring;
+      mSampleRate = sampleRate;
+    }
+
+    @Override
+    public void run() {
+      setThreadPriority(THREAD_PRIORITY_AUDIO);
+
+      // Opus, for one, only works at some sample rates. IMA ADPCM works at all of them.
+      AudioCodec codec = mCodec.supportsSampleRate(mSampleRate) ? mCodec : AudioCodecs.IMA_ADPCM;
+      AudioCodec.Encoder encoder = null;
+      try {
+        encoder = codec.newEncoder(mSampleRate);
+        short[] frame = new short[mSampleRate * mFrameDurationMs / 1000];
+        byte[] packet = new byte[encoder.getMaxEncodedSize(frame.length)];
+        VoiceActivityDetector detector =
+            Constants.VOICE_ACTIVITY_DETECTION ? new VoiceActivityDetector(mSampleRate) : null;
+        mSink.open(codec.getName(), mSampleRate);
+
+        int unflushed = 0;
+        int frames = 0;
+        int silentFrames = 0;
+        LatencyStats stats = LatencyStats.get();
+        long position;
+        while ((position = mRing.read(frame, frame.length)) >= 0) {
+          long readNanos = System.nanoTime();
+          long captureNanos = startNanos + position * 1000000000L / mSampleRate;
+          stats.record(LatencyStats.Stage.CAPTURE, readNanos - captureNanos);
+          frames++;
+          if (detector != null && !detector.isSpeech(frame, frame.length)) {
+            mSink.writeComfortNoise(
+                frame.length, detector.getNoiseDbfs(), position, captureNanos);
+            silentFrames++;
+            unflushed++;
+          } else {
+            int size = encoder.encode(frame, 0, frame.length, packet);
+            if (size > 0) {
+              mSink.write(packet, size, position, captureNanos);
+              unflushed++;
+            }
+          }
+          stats.record(LatencyStats.Stage.ENCODE, System.nanoTime() - readNanos);
+          if (unflushed == mFramesPerFlush) {
+            mSink.flush();
+            unflushed = 0;
+          }
+        }
+        Log.d(TAG, String.format("Sent %d of %d frames as comfort noise", silentFrames, frames));
+      } catch (IOException e) {
+        Log.e(TAG, "Exception with recording stream", e);
+      } catch (InterruptedException e) {
+        Log.e(TAG, "Interrupted while encoding", e);
+      } finally {
+        // Also stops recording if the sink failed.
+        stopInternal();
+        mSink.close();
+        if (encoder != null) {
+          encoder.release();
+        }
+      }
+    }
+  }
+
+  static class Buffer extends AudioBuffer {
+    Buffer(AudioConfig config) {
+      super(config);
+    }
+
+    Buffer(AudioConfig config, AudioCodec codec) {
+      super(config, codec);
+    }
+
     @Override
     protected boolean validSize(int size) {
       return size != AudioRecord.ERROR && size != AudioRecord.ERROR_BAD_VALUE;
@@ -0,0 +1,110 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * A fixed amount of audio, written and read in chunks of any size. Lets audio be captured in
+ * small reads while it's taken out in whole frames, on another thread.
+ *
+ * <p>Writing never blocks: if the reader falls behind and the buffer is full, the oldest samples
+ * are overwritten. Each read says where its samples were in the audio written, so the reader can
+ * tell what it missed.
+ *
+ * <p>Thread safe.
+ */
+public class AudioRingBuffer {
+  private final short[] mSamples;
+
+  /** The number of samples written, ever. */
+  private long mWritePosition;
+
+  /** The number of samples read or overwritten, ever. */
+  private long mReadPosition;
+
+  private long mOverwrittenSamples;
+
+  /** True once no more samples will be written. */
+  private boolean mClosed;
+
+  /** @param capacity The most samples buffered. */
+  public AudioRingBuffer(int capacity) {
+    mSamples = new short[capacity];
+  }
+
+  /** Adds samples, overwriting the oldest if there's no room. */
+  public synchronized void write(short[] pcm, int offset, int length) {
+    if (length > mSamples.length) {
+      // Only the end of it would survive anyway.
+      offset += length - mSamples.length;
+      mWritePosition += length - mSamples.length;
+      length = mSamples.length;
+    }
+
+    int start = (int) (mWritePosition % mSamples.length);
+    int first = Math.min(length, mSamples.length - start);
+    System.arraycopy(pcm, offset, mSamples, start, first);
+    System.arraycopy(pcm, offset + first, mSamples, 0, length - first);
+    mWritePosition += length;
+
+    long overflow = mWritePosition - mReadPosition - mSamples.length;
+    if (overflow > 0) {
+      mReadPosition += overflow;
+      mOverwrittenSamples += overflow;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Waits until there are enough samples, and reads them.
+   *
+   * @param out Receives the samples.
+   * @param length The number of samples to read. At most the capacity.
+   * @return The position of the first sample read among all those written, or -1 once the buffer
+   *     is closed with fewer samples left.
+   */
+  public synchronized long read(short[] out, int length) throws InterruptedException {
+    while (mWritePosition - mReadPosition < length) {
+      if (mClosed) {
+        return -1;
+      }
+      wait();
+    }
+
+    long position = mReadPosition;
+    int start = (int) (position % mSamples.length);
+    int first = Math.min(length, mSamples.length - start);
+    System.arraycopy(mSamples, start, out, 0, first);
+    System.arraycopy(mSamples, 0, out, first, length - first);
+    mReadPosition += length;
+    return position;
+  }
+
+  /**
+   * Reads what's there, up to {@code length} samples, without waiting.
+   *
+   * @return The number of samples read.
+   */
+  public synchronized int poll(short[] out, int offset, int length) {
+    length = (int) Math.min(length, mWritePosition - mReadPosition);
+    int start = (int) (mReadPosition % mSamples.length);
+    int first = Math.min(length, mSamples.length - start);
+    System.arraycopy(mSamples, start, out, offset, first);
+    System.arraycopy(mSamples, 0, out, offset + first, length - first);
+    mReadPosition += length;
+    return length;
+  }
+
+  /** @return The number of samples waiting to be read. */
+  public synchronized int available() {
+    return (int) (mWritePosition - mReadPosition);
+  }
+
+  /** No more samples will be written. Samples already buffered can still be read. */
+  public synchronized void close() {
+    mClosed = true;
+    notifyAll();
+  }
+
+  /** @return The samples overwritten before they were read. */
+  public synchronized long getOverwrittenSamples() {
+    return mOverwrittenSamples;
+  }
+}
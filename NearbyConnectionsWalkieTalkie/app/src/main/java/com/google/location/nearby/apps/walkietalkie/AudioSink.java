@@ -0,0 +1,42 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.io.IOException;
+
+/** Where {@link AudioRecorder} sends the encoded audio. */
+public interface AudioSink {
+  /**
+   * Called once, before the first frame.
+   *
+   * @param codecName The codec the frames are encoded with.
+   * @param sampleRate The sample rate of the audio.
+   */
+  void open(String codecName, int sampleRate) throws IOException;
+
+  /**
+   * Adds an encoded frame to those to be sent on the next {@link #flush()}. The packet is copied.
+   *
+   * @param position The position of the frame's first sample in the recording.
+   * @param captureNanos When the frame's first sample was captured, from {@link
+   *     System#nanoTime()}.
+   */
+  void write(byte[] packet, int length, long position, long captureNanos) throws IOException;
+
+  /**
+   * Adds a {@link ComfortNoise} marker in place of a frame with only background noise, to be sent
+   * on the next {@link #flush()}.
+   *
+   * @param samples The length of the frame.
+   * @param noiseDbfs The noise level, in dB of full scale.
+   */
+  void writeComfortNoise(int samples, double noiseDbfs, long position, long captureNanos)
+      throws IOException;
+
+  /** Sends the frames written since the last flush. */
+  void flush() throws IOException;
+
+  /**
+   * Sends any frames not yet flushed, and ends the recording. Called once, after the last frame,
+   * even if the sink was never opened.
+   */
+  void close();
+}
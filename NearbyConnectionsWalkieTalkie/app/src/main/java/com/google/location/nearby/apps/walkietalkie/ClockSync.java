@@ -0,0 +1,221 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.PAYLOAD_PING;
+import static com.google.location.nearby.apps.walkietalkie.Constants.PAYLOAD_PONG;
+
+import com.google.android.gms.nearby.connection.Payload;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds how far each connected device's clock is from ours, so the times it sends can be read on
+ * our clock. Both clocks are {@link System#nanoTime()}.
+ *
+ * <p>A sync sends a few pings, one after another is answered, each holding the time it was sent.
+ * The answer adds when the ping arrived and when the answer left, on the other device's clock. As
+ * with NTP, half the round trip is taken to be each way, so the answers that took the least time
+ * give the best estimate: the one of the last few with the shortest round trip is used.
+ *
+ * <p>Payloads:
+ *
+ * <ul>
+ *   <li>{@link Constants#PAYLOAD_PING}: when the ping was sent, as a long.
+ *   <li>{@link Constants#PAYLOAD_PONG}: the ping's time, followed by when it arrived and when the
+ *       answer was sent, as longs.
+ * </ul>
+ */
+public class ClockSync {
+  /** Sends payloads to a connected endpoint. */
+  public interface Sender {
+    void send(String endpointId, Payload payload);
+  }
+
+  /** How many pings a sync sends. */
+  private static final int PINGS_PER_SYNC = 5;
+
+  /** How many of the latest answers the estimate is picked from. */
+  private static final int MAX_SAMPLES = 8;
+
+  private final Sender mSender;
+
+  /** The endpoints synced with, by id. */
+  private final Map<String, Peer> mPeers = new HashMap<>();
+
+  public ClockSync(Sender sender) {
+    mSender = sender;
+  }
+
+  /** @return True if the payload was sent by a {@link ClockSync}. */
+  public static boolean isClockPayload(byte[] payload) {
+    return payload.length > 0 && (payload[0] == PAYLOAD_PING || payload[0] == PAYLOAD_PONG);
+  }
+
+  /**
+   * @return A time to send for {@link #toLocalNanos}, in microseconds. Wraps every 71 minutes.
+   */
+  public static int toMicros(long nanos) {
+    return (int) (nanos / 1000);
+  }
+
+  /** Syncs with an endpoint, anew if it was before, e.g. in case either clock drifted. */
+  public synchronized void sync(String endpointId) {
+    Peer peer = mPeers.get(endpointId);
+    if (peer == null) {
+      peer = new Peer();
+      mPeers.put(endpointId, peer);
+    }
+    peer.pingsLeft = PINGS_PER_SYNC;
+    ping(endpointId, peer);
+  }
+
+  public void onReceive(String endpointId, byte[] payload) throws IOException {
+    long receivedNanos = System.nanoTime();
+    DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1));
+    switch (payload[0]) {
+      case PAYLOAD_PING:
+        long pingNanos = in.readLong();
+        mSender.send(endpointId, Payload.fromBytes(createPong(pingNanos, receivedNanos)));
+        break;
+
+      case PAYLOAD_PONG:
+        long sentNanos = in.readLong();
+        long arrivedNanos = in.readLong();
+        long answeredNanos = in.readLong();
+        long roundTripNanos = (receivedNanos - sentNanos) - (answeredNanos - arrivedNanos);
+        long offsetNanos = ((arrivedNanos - sentNanos) + (answeredNanos - receivedNanos)) / 2;
+        synchronized (this) {
+          Peer peer = mPeers.get(endpointId);
+          if (peer != null) {
+            peer.add(offsetNanos, roundTripNanos);
+            if (peer.pingsLeft > 0) {
+              ping(endpointId, peer);
+            }
+          }
+        }
+        break;
+
+      default:
+        throw new IOException("Not a clock payload: " + payload[0]);
+    }
+  }
+
+  public synchronized void onEndpointDisconnected(String endpointId) {
+    mPeers.remove(endpointId);
+  }
+
+  /**
+   * Reads a time an endpoint sent on our clock.
+   *
+   * @param remoteMicros The time, from {@link #toMicros} on the endpoint. Must be within half an
+   *     hour or so of now.
+   * @return The time on our clock, or 0 if the endpoint's clock isn't known yet.
+   */
+  public synchronized long toLocalNanos(String endpointId, int remoteMicros) {
+    Peer peer = mPeers.get(endpointId);
+    if (peer == null || peer.samples == 0) {
+      return 0;
+    }
+    long offsetNanos = peer.getOffsetNanos();
+    // Put back the bits lost to wrapping, from what the endpoint's clock reads about now.
+    long nowMicros = (System.nanoTime() + offsetNanos) / 1000;
+    long micros = nowMicros + (remoteMicros - (int) nowMicros);
+    return micros * 1000 - offsetNanos;
+  }
+
+  /**
+   * Writes a line per endpoint with how far its clock is from ours, and the round trip.
+   *
+   * @param prefix Written before each line, e.g. to indent.
+   */
+  public synchronized void dump(String prefix, PrintWriter writer) {
+    for (Map.Entry<String, Peer> entry : mPeers.entrySet()) {
+      Peer peer = entry.getValue();
+      if (peer.samples == 0) {
+        writer.println(prefix + entry.getKey() + ": not synced");
+      } else {
+        writer.println(
+            String.format(
+                "%s%s: clock %+.1f ms, round trip %.1f ms",
+                prefix,
+                entry.getKey(),
+                peer.getOffsetNanos() / 1000000.0,
+                peer.getRoundTripNanos() / 1000000.0));
+      }
+    }
+  }
+
+  private void ping(String endpointId, Peer peer) {
+    peer.pingsLeft--;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(PAYLOAD_PING);
+      out.writeLong(System.nanoTime());
+    } catch (IOException e) {
+      // Can't happen when writing to memory.
+      throw new IllegalStateException(e);
+    }
+    mSender.send(endpointId, Payload.fromBytes(bytes.toByteArray()));
+  }
+
+  private static byte[] createPong(long pingNanos, long receivedNanos) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(PAYLOAD_PONG);
+      out.writeLong(pingNanos);
+      out.writeLong(receivedNanos);
+      out.writeLong(System.nanoTime());
+    } catch (IOException e) {
+      // Can't happen when writing to memory.
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** An endpoint synced with. */
+  private static class Peer {
+    /** The latest answers' offsets and round trips, oldest overwritten first. */
+    final long[] offsetNanos = new long[MAX_SAMPLES];
+
+    final long[] roundTripNanos = new long[MAX_SAMPLES];
+
+    int samples;
+    int next;
+    int pingsLeft;
+
+    void add(long offset, long roundTrip) {
+      offsetNanos[next] = offset;
+      roundTripNanos[next] = roundTrip;
+      next = (next + 1) % MAX_SAMPLES;
+      samples = Math.min(samples + 1, MAX_SAMPLES);
+    }
+
+    /** @return The index of the answer with the shortest round trip. */
+    int best() {
+      int best = 0;
+      for (int i = 1; i < samples; i++) {
+        if (roundTripNanos[i] < roundTripNanos[best]) {
+          best = i;
+        }
+      }
+      return best;
+    }
+
+    /** @return How far the endpoint's clock is ahead of ours. */
+    long getOffsetNanos() {
+      return offsetNanos[best()];
+    }
+
+    long getRoundTripNanos() {
+      return roundTripNanos[best()];
+    }
+  }
+}
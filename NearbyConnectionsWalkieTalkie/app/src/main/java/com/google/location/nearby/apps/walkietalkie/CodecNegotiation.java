@@ -0,0 +1,93 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.PAYLOAD_CODECS;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the {@link AudioCodec} to record with. Once connected, devices send each other the codecs
+ * they support with {@link #createOffer()}. A recording goes to every connected device, so it's
+ * encoded with the best codec they all support. Devices whose offer hasn't arrived yet are assumed
+ * to support only the {@link AudioCodecs#BASELINE} codecs.
+ *
+ * <p>The receiver learns the codec from the stream itself, so only the sender needs this.
+ */
+public class CodecNegotiation {
+  /** The codecs each connected endpoint supports, by endpoint id. */
+  private final Map<String, List<String>> mEndpointCodecs = new HashMap<>();
+
+  /** @return A payload listing the codecs this device supports, best first. */
+  public static byte[] createOffer() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      List<AudioCodec> codecs = AudioCodecs.getSupportedCodecs();
+      out.writeByte(PAYLOAD_CODECS);
+      out.writeByte(codecs.size());
+      for (AudioCodec codec : codecs) {
+        out.writeUTF(codec.getName());
+      }
+    } catch (IOException e) {
+      // Can't happen when writing to memory.
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** @return True if the payload was created by {@link #createOffer()}. */
+  public static boolean isOffer(byte[] payload) {
+    return payload.length > 0 && payload[0] == PAYLOAD_CODECS;
+  }
+
+  public void onEndpointConnected(String endpointId) {
+    if (!mEndpointCodecs.containsKey(endpointId)) {
+      mEndpointCodecs.put(endpointId, AudioCodecs.BASELINE);
+    }
+  }
+
+  public void onEndpointDisconnected(String endpointId) {
+    mEndpointCodecs.remove(endpointId);
+  }
+
+  /** Records the codecs an endpoint supports, from the payload it sent. */
+  public void onOffer(String endpointId, byte[] offer) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(offer));
+    if (in.readByte() != PAYLOAD_CODECS) {
+      throw new IOException("Not a codec offer");
+    }
+    int count = in.readUnsignedByte();
+    List<String> codecs = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      codecs.add(in.readUTF());
+    }
+    mEndpointCodecs.put(endpointId, codecs);
+  }
+
+  /** @return The best codec every connected endpoint supports. */
+  public AudioCodec choose() {
+    for (AudioCodec codec : AudioCodecs.getSupportedCodecs()) {
+      if (isSupportedByAll(codec.getName())) {
+        return codec;
+      }
+    }
+    // Everyone supports it, even if they didn't say so.
+    return AudioCodecs.PCM;
+  }
+
+  private boolean isSupportedByAll(String codec) {
+    for (List<String> codecs : mEndpointCodecs.values()) {
+      if (!codecs.contains(codec)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
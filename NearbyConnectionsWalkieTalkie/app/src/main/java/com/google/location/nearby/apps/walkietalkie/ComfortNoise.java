@@ -0,0 +1,63 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.Random;
+
+/**
+ * Stands in for frames with nothing but background noise. Rather than the frame, the sender sends
+ * a marker saying how long it was and how loud the noise was, and the receiver plays made-up noise
+ * as loud in its place. Dead silence in between words would sound like the line dropped.
+ *
+ * <p>Senders write a frame as a 2 byte length and the packet. A marker is written in its place as
+ * {@link #MARKER_FLAG} with {@link #MARKER_SIZE} as the length, followed by the frame's length in
+ * samples, as an unsigned short, and the noise level, as an unsigned byte of dB below full scale.
+ * Encoded frames are always shorter than {@link #MARKER_FLAG}.
+ */
+public class ComfortNoise {
+  /** Set in the length of a marker. */
+  public static final int MARKER_FLAG = 0x8000;
+
+  /** The bytes of a marker after its length. */
+  public static final int MARKER_SIZE = 3;
+
+  /** The noise level written for noise quieter than can be written. */
+  private static final int MIN_LEVEL_DBFS = -127;
+
+  private final Random mRandom = new Random();
+
+  /** @return True if a 2 byte length read from a sender is a marker's. */
+  public static boolean isMarker(int length) {
+    return (length & MARKER_FLAG) != 0;
+  }
+
+  /**
+   * Writes the marker for a frame, after its length.
+   *
+   * @return The number of bytes written, {@link #MARKER_SIZE}.
+   */
+  public static int writeMarker(byte[] out, int offset, int samples, double noiseDbfs) {
+    int level = (int) Math.round(-Math.max(noiseDbfs, MIN_LEVEL_DBFS));
+    out[offset] = (byte) (samples >> 8);
+    out[offset + 1] = (byte) samples;
+    out[offset + 2] = (byte) level;
+    return MARKER_SIZE;
+  }
+
+  /** @return The length in samples of the frame a marker stands in for. */
+  public static int readSamples(byte[] marker, int offset) {
+    return ((marker[offset] & 0xFF) << 8) | (marker[offset + 1] & 0xFF);
+  }
+
+  /** @return The noise level of the frame a marker stands in for, in dB of full scale. */
+  public static int readNoiseDbfs(byte[] marker, int offset) {
+    return -(marker[offset + 2] & 0xFF);
+  }
+
+  /** Fills a frame with noise of the given level, in dB of full scale. */
+  public void generate(short[] pcm, int length, int noiseDbfs) {
+    double rms = Short.MAX_VALUE * Math.pow(10, noiseDbfs / 20.0);
+    for (int i = 0; i < length; i++) {
+      double sample = mRandom.nextGaussian() * rms;
+      pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+    }
+  }
+}
@@ -33,11 +33,13 @@ import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
 
@@ -74,9 +76,10 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
 
   /**
    * The devices we are currently connected to. For advertisers, this may be large. For discoverers,
-   * there will only be one entry in this map.
+   * there will only be one entry in this map. Concurrent so {@link #send(Payload)} works from any
+   * thread.
    */
-  private final Map<String, Endpoint> mEstablishedConnections = new HashMap<>();
+  private final Map<String, Endpoint> mEstablishedConnections = new ConcurrentHashMap<>();
 
   /**
    * True if we are asking a discovered device to connect to us. While we ask, we cannot ask another
@@ -137,15 +140,24 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
       new PayloadCallback() {
         @Override
         public void onPayloadReceived(String endpointId, Payload payload) {
-          logD(String.format("onPayloadReceived(endpointId=%s, payload=%s)", endpointId, payload));
+          // Bytes payloads may come many times a second, e.g. one per audio frame.
+          if (payload.getType() != Payload.Type.BYTES) {
+            logD(
+                String.format(
+                    "onPayloadReceived(endpointId=%s, payload=%s)", endpointId, payload));
+          }
           onReceive(mEstablishedConnections.get(endpointId), payload);
         }
 
         @Override
         public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
-          logD(
-              String.format(
-                  "onPayloadTransferUpdate(endpointId=%s, update=%s)", endpointId, update));
+          // Only failures; there's an update for every chunk of a stream and every bytes payload.
+          if (update.getStatus() != PayloadTransferUpdate.Status.IN_PROGRESS
+              && update.getStatus() != PayloadTransferUpdate.Status.SUCCESS) {
+            logD(
+                String.format(
+                    "onPayloadTransferUpdate(endpointId=%s, update=%s)", endpointId, update));
+          }
         }
       };
 
@@ -442,7 +454,7 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   }
 
   /**
-   * Sends a {@link Payload} to all currently connected endpoints.
+   * Sends a {@link Payload} to all currently connected endpoints. May be called from any thread.
    *
    * @param payload The data you want to send.
    */
@@ -450,6 +462,16 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
     send(payload, mEstablishedConnections.keySet());
   }
 
+  /**
+   * Sends a {@link Payload} to one connected endpoint. May be called from any thread.
+   *
+   * @param payload The data you want to send.
+   * @param endpointId The endpoint to send it to.
+   */
+  protected void send(Payload payload, String endpointId) {
+    send(payload, Collections.singleton(endpointId));
+  }
+
   private void send(Payload payload, Set<String> endpoints) {
     mConnectionsClient
         .sendPayload(new ArrayList<>(endpoints), payload)
@@ -4,4 +4,50 @@ package com.google.location.nearby.apps.walkietalkie;
 public class Constants {
   /** A tag for logging. Use 'adb logcat -s WalkieTalkie' to follow the logs. */
   public static final String TAG = "WalkieTalkie";
+
+  /**
+   * If true, audio is sent a frame at a time as BYTES payloads, with {@link FramedAudioSink}.
+   * Otherwise it's sent as a STREAM payload, with {@link StreamAudioSink}. Either is played.
+   */
+  public static final boolean FRAMED_AUDIO = true;
+
+  /**
+   * The length of the frames audio is encoded and sent in: 10, 20 or 40 ms. Shorter frames get
+   * to the listener sooner, longer ones cost less per second of audio.
+   */
+  public static final int FRAME_DURATION_MS = 20;
+
+  /**
+   * How many frames are sent together. 1 sends each frame as soon as it's encoded. More add a
+   * frame's worth of delay each, but send less often.
+   */
+  public static final int FRAMES_PER_FLUSH = 1;
+
+  /**
+   * If true, frames with nothing but background noise are sent as {@link ComfortNoise} markers, a
+   * few bytes each, rather than encoded. See {@link VoiceActivityDetector}.
+   */
+  public static final boolean VOICE_ACTIVITY_DETECTION = true;
+
+  /*
+   * The first byte of each BYTES payload, saying what it holds.
+   */
+
+  /** The codecs the sender supports. See {@link CodecNegotiation}. */
+  public static final byte PAYLOAD_CODECS = 1;
+
+  /** The start of a recording sent with {@link FramedAudioSink}. */
+  public static final byte PAYLOAD_AUDIO_START = 2;
+
+  /** A frame of a recording sent with {@link FramedAudioSink}. */
+  public static final byte PAYLOAD_AUDIO_FRAME = 3;
+
+  /** The end of a recording sent with {@link FramedAudioSink}. */
+  public static final byte PAYLOAD_AUDIO_END = 4;
+
+  /** Asks for the receiver's clock. See {@link ClockSync}. */
+  public static final byte PAYLOAD_PING = 5;
+
+  /** The answer to a {@link #PAYLOAD_PING}, with the sender's clock. See {@link ClockSync}. */
+  public static final byte PAYLOAD_PONG = 6;
 }
@@ -0,0 +1,200 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.PAYLOAD_AUDIO_END;
+import static com.google.location.nearby.apps.walkietalkie.Constants.PAYLOAD_AUDIO_FRAME;
+import static com.google.location.nearby.apps.walkietalkie.Constants.PAYLOAD_AUDIO_START;
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Puts recordings sent by {@link FramedAudioSink} back together, and passes their frames to an
+ * {@link AudioPlayer} each. Frames out of sequence are dropped, and the player conceals missing
+ * ones. Must be used on one thread.
+ *
+ * <p>The times the sender stamps frames with are read on our clock with {@link ClockSync}, which
+ * is synced again whenever a recording starts.
+ */
+public class FramedAudioReceiver {
+  /** Creates the players for new recordings. */
+  public interface Listener {
+    /**
+     * A recording started. Returns the started player to play it with, or null to ignore it.
+     *
+     * @param endpointId The sender.
+     */
+    @Nullable
+    AudioPlayer onStreamStarted(String endpointId, String codecName, int sampleRate);
+  }
+
+  private final Listener mListener;
+
+  private final ClockSync mClockSync;
+
+  /** The recordings being received, by endpoint id and recording id. */
+  private final Map<String, Stream> mStreams = new HashMap<>();
+
+  public FramedAudioReceiver(Listener listener, ClockSync clockSync) {
+    mListener = listener;
+    mClockSync = clockSync;
+  }
+
+  /** @return True if the payload was sent by a {@link FramedAudioSink}. */
+  public static boolean isAudio(byte[] payload) {
+    return payload.length >= 2
+        && (payload[0] == PAYLOAD_AUDIO_START
+            || payload[0] == PAYLOAD_AUDIO_FRAME
+            || payload[0] == PAYLOAD_AUDIO_END);
+  }
+
+  public void onReceive(String endpointId, byte[] payload) throws IOException {
+    String key = endpointId + '/' + payload[1];
+    switch (payload[0]) {
+      case PAYLOAD_AUDIO_START:
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(payload, 2, payload.length - 2));
+        String codecName = in.readUTF();
+        int sampleRate = in.readInt();
+        // A recording with the same id that didn't end was cut short.
+        end(mStreams.remove(key));
+        // Either clock may have drifted since the last recording.
+        mClockSync.sync(endpointId);
+        AudioPlayer player = mListener.onStreamStarted(endpointId, codecName, sampleRate);
+        if (player != null) {
+          mStreams.put(key, new Stream(endpointId, player));
+        }
+        break;
+
+      case PAYLOAD_AUDIO_FRAME:
+        Stream stream = mStreams.get(key);
+        if (stream == null) {
+          // Its start was lost, or we ignored it.
+          return;
+        }
+        if (payload.length < FramedAudioSink.FRAME_HEADER_SIZE) {
+          throw new IOException("Audio frame too short: " + payload.length);
+        }
+        int sequence = readUnsignedShort(payload, 2);
+        if (stream.accept(sequence)) {
+          // Only the first frame has its position and capture time; the others follow on from it.
+          long position = readInt(payload, 4) & 0xFFFFFFFFL;
+          long captureNanos = mClockSync.toLocalNanos(endpointId, readInt(payload, 8));
+          long writtenNanos = mClockSync.toLocalNanos(endpointId, readInt(payload, 12));
+          if (writtenNanos != 0) {
+            LatencyStats.get().record(LatencyStats.Stage.SEND, System.nanoTime() - writtenNanos);
+          }
+          int offset = FramedAudioSink.FRAME_HEADER_SIZE;
+          while (offset + 2 <= payload.length) {
+            int length = readUnsignedShort(payload, offset);
+            boolean marker = ComfortNoise.isMarker(length);
+            length &= ~ComfortNoise.MARKER_FLAG;
+            offset += 2;
+            if (offset + length > payload.length) {
+              throw new IOException("Audio frame truncated");
+            }
+            if (marker) {
+              stream.player.receiveComfortNoise(position, captureNanos, payload, offset);
+            } else {
+              stream.player.receive(position, captureNanos, payload, offset, length);
+            }
+            offset += length;
+            position = -1;
+            captureNanos = 0;
+          }
+        }
+        break;
+
+      case PAYLOAD_AUDIO_END:
+        Stream ended = mStreams.remove(key);
+        if (ended != null && payload.length >= 4) {
+          ended.countMissing(readUnsignedShort(payload, 2));
+        }
+        end(ended);
+        break;
+
+      default:
+        throw new IOException("Not an audio payload: " + payload[0]);
+    }
+  }
+
+  /** Ends the recordings from an endpoint that's gone. */
+  public void onEndpointDisconnected(String endpointId) {
+    for (Iterator<Stream> it = mStreams.values().iterator(); it.hasNext(); ) {
+      Stream stream = it.next();
+      if (stream.endpointId.equals(endpointId)) {
+        it.remove();
+        end(stream);
+      }
+    }
+  }
+
+  private static void end(@Nullable Stream stream) {
+    if (stream == null) {
+      return;
+    }
+    stream.player.endOfStream();
+    Log.d(
+        TAG,
+        String.format(
+            "Received %d payloads from %s, %d missing, %d out of order",
+            stream.received, stream.endpointId, stream.missing, stream.outOfOrder));
+  }
+
+  private static int readUnsignedShort(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFF) << 24)
+        | ((bytes[offset + 1] & 0xFF) << 16)
+        | ((bytes[offset + 2] & 0xFF) << 8)
+        | (bytes[offset + 3] & 0xFF);
+  }
+
+  /** A recording being received. */
+  private static class Stream {
+    final String endpointId;
+    final AudioPlayer player;
+
+    /** The sequence number expected next. */
+    int nextSequence;
+
+    int received;
+    int missing;
+    int outOfOrder;
+
+    Stream(String endpointId, AudioPlayer player) {
+      this.endpointId = endpointId;
+      this.player = player;
+    }
+
+    /** Counts the frame, and returns whether it's newer than those before it. */
+    boolean accept(int sequence) {
+      if (!countMissing(sequence)) {
+        // Behind the last one: late or duplicated.
+        outOfOrder++;
+        return false;
+      }
+      received++;
+      nextSequence = (sequence + 1) & 0xFFFF;
+      return true;
+    }
+
+    /** Counts the frames skipped before this sequence number. Returns false if it's behind. */
+    boolean countMissing(int sequence) {
+      int skipped = (sequence - nextSequence) & 0xFFFF;
+      if (skipped >= 0x8000) {
+        return false;
+      }
+      missing += skipped;
+      return true;
+    }
+  }
+}
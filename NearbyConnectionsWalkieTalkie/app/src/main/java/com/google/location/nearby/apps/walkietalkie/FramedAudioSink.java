@@ -0,0 +1,125 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.PAYLOAD_AUDIO_END;
+import static com.google.location.nearby.apps.walkietalkie.Constants.PAYLOAD_AUDIO_FRAME;
+import static com.google.location.nearby.apps.walkietalkie.Constants.PAYLOAD_AUDIO_START;
+
+import com.google.android.gms.nearby.connection.Payload;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the audio as small BYTES {@link Payload}s, one per flush, which Nearby Connections delivers
+ * as soon as it can rather than buffering like a stream. {@link FramedAudioReceiver} puts the
+ * recording back together, and knows when each frame was recorded and whether any went missing.
+ *
+ * <p>Each payload starts with its type and the id of the recording, one byte each, so recordings
+ * following each other can't be mixed up:
+ *
+ * <ul>
+ *   <li>{@link Constants#PAYLOAD_AUDIO_START}: the codec's name (as written by {@link
+ *       DataOutputStream#writeUTF(String)}) and the sample rate, as an int.
+ *   <li>{@link Constants#PAYLOAD_AUDIO_FRAME}: the payload's sequence number, as an unsigned short
+ *       that wraps around; the position of its first sample in the recording, as an int; when the
+ *       first frame's first sample was recorded and when the frame was written to the sink, from
+ *       {@link ClockSync#toMicros}; and one or more encoded frames, each as a 2 byte length and the
+ *       packet, or as a {@link ComfortNoise} marker.
+ *   <li>{@link Constants#PAYLOAD_AUDIO_END}: the sequence number the next payload would have had.
+ * </ul>
+ *
+ * Numbers are big endian.
+ */
+public class FramedAudioSink implements AudioSink {
+  /** The bytes before the first frame of a {@link Constants#PAYLOAD_AUDIO_FRAME} payload. */
+  static final int FRAME_HEADER_SIZE = 16;
+
+  /** Sends payloads to the endpoints listening to us. Called from the recording thread. */
+  public interface Sender {
+    void send(Payload payload);
+  }
+
+  private static final AtomicInteger sNextStreamId = new AtomicInteger();
+
+  private final Sender mSender;
+  private final byte mStreamId = (byte) sNextStreamId.getAndIncrement();
+
+  /** The sequence number of the next payload. */
+  private int mSequence;
+
+  /** The frames written since the last flush, with their header. */
+  private final ByteArrayOutputStream mBatch = new ByteArrayOutputStream();
+
+  private final DataOutputStream mBatchOut = new DataOutputStream(mBatch);
+
+  private int mBatchFrames;
+
+  private final byte[] mMarker = new byte[ComfortNoise.MARKER_SIZE];
+
+  public FramedAudioSink(Sender sender) {
+    mSender = sender;
+  }
+
+  @Override
+  public void open(String codecName, int sampleRate) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(PAYLOAD_AUDIO_START);
+    out.writeByte(mStreamId);
+    out.writeUTF(codecName);
+    out.writeInt(sampleRate);
+    mSender.send(Payload.fromBytes(bytes.toByteArray()));
+  }
+
+  @Override
+  public void write(byte[] packet, int length, long position, long captureNanos)
+      throws IOException {
+    startFrame(position, captureNanos);
+    mBatchOut.writeShort(length);
+    mBatchOut.write(packet, 0, length);
+  }
+
+  @Override
+  public void writeComfortNoise(int samples, double noiseDbfs, long position, long captureNanos)
+      throws IOException {
+    startFrame(position, captureNanos);
+    int size = ComfortNoise.writeMarker(mMarker, 0, samples, noiseDbfs);
+    mBatchOut.writeShort(ComfortNoise.MARKER_FLAG | size);
+    mBatchOut.write(mMarker, 0, size);
+  }
+
+  /** Adds a frame to the batch, starting the batch's payload if it's the first. */
+  private void startFrame(long position, long captureNanos) throws IOException {
+    if (mBatchFrames == 0) {
+      mBatch.reset();
+      mBatchOut.writeByte(PAYLOAD_AUDIO_FRAME);
+      mBatchOut.writeByte(mStreamId);
+      mBatchOut.writeShort(mSequence);
+      mBatchOut.writeInt((int) position);
+      // Lets the listener time each part of the trip. See LatencyStats.
+      mBatchOut.writeInt(ClockSync.toMicros(captureNanos));
+      mBatchOut.writeInt(ClockSync.toMicros(System.nanoTime()));
+    }
+    mBatchFrames++;
+  }
+
+  @Override
+  public void flush() {
+    if (mBatchFrames == 0) {
+      return;
+    }
+    // Nearby Connections keeps the array until it's sent, so each payload needs its own.
+    mSender.send(Payload.fromBytes(mBatch.toByteArray()));
+    mSequence = (mSequence + 1) & 0xFFFF;
+    mBatchFrames = 0;
+  }
+
+  @Override
+  public void close() {
+    flush();
+    mSender.send(
+        Payload.fromBytes(
+            new byte[] {PAYLOAD_AUDIO_END, mStreamId, (byte) (mSequence >> 8), (byte) mSequence}));
+  }
+}
@@ -0,0 +1,77 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.content.Context;
+import android.support.v7.app.AlertDialog;
+import android.widget.LinearLayout;
+import android.widget.SeekBar;
+import android.widget.TextView;
+import com.google.location.nearby.apps.walkietalkie.ConnectionsActivity.Endpoint;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Lets the user set how loud each connected endpoint is played, with a slider per endpoint from
+ * silent to twice as loud. Changes apply to the {@link AudioMixer} as the slider moves.
+ */
+public class GainDialog {
+  /** The loudest gain the sliders go to. */
+  private static final float MAX_GAIN = 2f;
+
+  /** Slider steps per unit of gain. */
+  private static final int STEPS_PER_GAIN = 100;
+
+  private GainDialog() {}
+
+  /** Shows the dialog, with the endpoints sorted by name. */
+  public static void show(
+      Context context, final AudioMixer mixer, Collection<Endpoint> connectedEndpoints) {
+    List<Endpoint> endpoints = new ArrayList<>(connectedEndpoints);
+    Collections.sort(
+        endpoints,
+        new Comparator<Endpoint>() {
+          @Override
+          public int compare(Endpoint a, Endpoint b) {
+            return a.getName().compareTo(b.getName());
+          }
+        });
+
+    int padding = (int) (16 * context.getResources().getDisplayMetrics().density);
+    LinearLayout layout = new LinearLayout(context);
+    layout.setOrientation(LinearLayout.VERTICAL);
+    layout.setPadding(padding, padding, padding, 0);
+    for (final Endpoint endpoint : endpoints) {
+      TextView name = new TextView(context);
+      name.setText(endpoint.getName());
+      layout.addView(name);
+
+      SeekBar slider = new SeekBar(context);
+      slider.setMax((int) (MAX_GAIN * STEPS_PER_GAIN));
+      slider.setProgress(Math.round(mixer.getGain(endpoint.getId()) * STEPS_PER_GAIN));
+      slider.setOnSeekBarChangeListener(
+          new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+              if (fromUser) {
+                mixer.setGain(endpoint.getId(), (float) progress / STEPS_PER_GAIN);
+              }
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {}
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {}
+          });
+      layout.addView(slider);
+    }
+
+    new AlertDialog.Builder(context)
+        .setTitle(R.string.gain_title)
+        .setView(layout)
+        .setPositiveButton(android.R.string.ok, null)
+        .show();
+  }
+}
@@ -0,0 +1,161 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.io.IOException;
+
+/**
+ * IMA ADPCM, which codes each 16-bit sample as a 4-bit step from the previous one for a 4:1
+ * compression. It has no lookahead, so it adds no latency, and is cheap enough for any device.
+ *
+ * <p>Each packet starts with the predicted sample and step index the frame was coded from, so a
+ * packet decodes on its own even if the previous one was lost. The 3 byte header is followed by
+ * one nibble per sample, low nibble first.
+ */
+public class ImaAdpcmCodec implements AudioCodec {
+  public static final String NAME = "ima-adpcm";
+
+  private static final int HEADER_SIZE = 3;
+
+  private static final int[] INDEX_TABLE = {
+    -1, -1, -1, -1, 2, 4, 6, 8,
+    -1, -1, -1, -1, 2, 4, 6, 8
+  };
+
+  private static final int[] STEP_TABLE = {
+    7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66,
+    73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371, 408,
+    449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+    2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630,
+    9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794,
+    32767
+  };
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public boolean supportsSampleRate(int sampleRate) {
+    return true;
+  }
+
+  @Override
+  public AudioCodec.Encoder newEncoder(int sampleRate) {
+    return new Encoder();
+  }
+
+  @Override
+  public AudioCodec.Decoder newDecoder(int sampleRate) {
+    return new Decoder();
+  }
+
+  /** The coder state, which the encoder and decoder update identically for every sample. */
+  private static class State {
+    int mPredictor;
+    int mIndex;
+
+    /** Updates the state with a coded step and returns the new sample. */
+    int update(int nibble) {
+      int step = STEP_TABLE[mIndex];
+      int delta = step >> 3;
+      if ((nibble & 4) != 0) {
+        delta += step;
+      }
+      if ((nibble & 2) != 0) {
+        delta += step >> 1;
+      }
+      if ((nibble & 1) != 0) {
+        delta += step >> 2;
+      }
+      mPredictor += (nibble & 8) != 0 ? -delta : delta;
+      mPredictor = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mPredictor));
+      mIndex = Math.max(0, Math.min(STEP_TABLE.length - 1, mIndex + INDEX_TABLE[nibble]));
+      return mPredictor;
+    }
+  }
+
+  private static class Encoder extends State implements AudioCodec.Encoder {
+    @Override
+    public int getMaxEncodedSize(int samples) {
+      return HEADER_SIZE + (samples + 1) / 2;
+    }
+
+    @Override
+    public int encode(short[] pcm, int offset, int length, byte[] out) {
+      out[0] = (byte) mPredictor;
+      out[1] = (byte) (mPredictor >> 8);
+      out[2] = (byte) mIndex;
+
+      int position = HEADER_SIZE;
+      for (int i = 0; i < length; i++) {
+        int nibble = quantize(pcm[offset + i]);
+        update(nibble);
+        if ((i & 1) == 0) {
+          out[position] = (byte) nibble;
+        } else {
+          out[position++] |= (byte) (nibble << 4);
+        }
+      }
+      return getMaxEncodedSize(length);
+    }
+
+    /** Returns the step that best approximates the sample from the current prediction. */
+    private int quantize(int sample) {
+      int diff = sample - mPredictor;
+      int nibble = 0;
+      if (diff < 0) {
+        nibble = 8;
+        diff = -diff;
+      }
+      int step = STEP_TABLE[mIndex];
+      if (diff >= step) {
+        nibble |= 4;
+        diff -= step;
+      }
+      step >>= 1;
+      if (diff >= step) {
+        nibble |= 2;
+        diff -= step;
+      }
+      step >>= 1;
+      if (diff >= step) {
+        nibble |= 1;
+      }
+      return nibble;
+    }
+
+    @Override
+    public void release() {}
+  }
+
+  private static class Decoder extends State implements AudioCodec.Decoder {
+    @Override
+    public int getMaxDecodedSamples(int packetSize) {
+      return Math.max(0, 2 * (packetSize - HEADER_SIZE));
+    }
+
+    @Override
+    public int decode(byte[] packet, int offset, int length, short[] pcm) throws IOException {
+      if (length < HEADER_SIZE) {
+        throw new IOException("ADPCM packet too short: " + length);
+      }
+      mPredictor = (short) ((packet[offset] & 0xFF) | (packet[offset + 1] << 8));
+      mIndex = packet[offset + 2] & 0xFF;
+      if (mIndex >= STEP_TABLE.length) {
+        throw new IOException("Bad ADPCM step index " + mIndex);
+      }
+
+      // An odd frame leaves the last high nibble unused, so it's decoded as an extra sample.
+      // Encoders only send even frames, so this doesn't happen in practice.
+      int samples = 0;
+      for (int i = offset + HEADER_SIZE; i < offset + length; i++) {
+        pcm[samples++] = (short) update(packet[i] & 0x0F);
+        pcm[samples++] = (short) update((packet[i] >> 4) & 0x0F);
+      }
+      return samples;
+    }
+
+    @Override
+    public void release() {}
+  }
+}
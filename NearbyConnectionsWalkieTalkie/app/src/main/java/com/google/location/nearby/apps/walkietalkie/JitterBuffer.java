@@ -0,0 +1,333 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.Arrays;
+
+/**
+ * Smooths out the uneven arrival of audio frames before they're played, adding as little delay as
+ * the link allows.
+ *
+ * <p>Frames are put in as they arrive, and taken out at the pace of playback. Playback starts once
+ * enough frames are buffered to ride out the arrival jitter seen so far, which is the furthest any
+ * recent frame arrived behind the earliest one, relative to when it was recorded. The target
+ * grows as soon as a frame is late and shrinks slowly once the link calms down.
+ *
+ * <p>If no frame is there when one is needed, the previous frame is repeated, fading out, until
+ * the next one arrives. Frames missing from the middle, found from the position of the frames
+ * around them, are concealed the same way. After a burst leaves more frames buffered than needed,
+ * the oldest are dropped to catch up.
+ *
+ * <p>Thread safe. Typically one thread puts frames while another takes them.
+ */
+public class JitterBuffer {
+  /** The most frames buffered. Further frames push out the oldest. */
+  private static final int CAPACITY = 32;
+
+  /** The largest target, in frames. */
+  private static final int MAX_TARGET_FRAMES = 25;
+
+  /** Frames beyond the target that are tolerated before dropping to catch up. */
+  private static final int CATCH_UP_MARGIN_FRAMES = 2;
+
+  /**
+   * How much of the measured jitter is forgotten per frame. About 3.5 seconds to halve with 20 ms
+   * frames.
+   */
+  private static final double JITTER_DECAY = 1 - 1 / 256.0;
+
+  /** How much each concealed frame is quieter than the one before. */
+  private static final float CONCEALMENT_FADE = 0.5f;
+
+  /** Concealed frames after which playback waits to buffer up again. */
+  private static final int MAX_CONCEALED_FRAMES = 5;
+
+  private final int mSampleRate;
+
+  private final short[][] mFrames = new short[CAPACITY][];
+  private final int[] mLengths = new int[CAPACITY];
+  /** Whether each frame was lost and is to be concealed. */
+  private final boolean[] mMissing = new boolean[CAPACITY];
+  /** When each frame was put, from {@link System#nanoTime()}. */
+  private final long[] mPutNanos = new long[CAPACITY];
+  /** When each frame's first sample was recorded, or 0 if unknown. */
+  private final long[] mCaptureNanos = new long[CAPACITY];
+  /** Index of the oldest frame. */
+  private int mHead;
+  private int mCount;
+
+  /** The last frame played, for concealment. */
+  private short[] mLastFrame = new short[0];
+  private int mLastLength;
+
+  /** Frames concealed in a row. */
+  private int mConcealed;
+
+  /** When the frame last taken was put, or 0 if it was concealed. */
+  private long mTakenPutNanos;
+
+  /** When the frame last taken was recorded, or 0 if unknown or it was concealed. */
+  private long mTakenCaptureNanos;
+
+  /** True once enough frames were buffered to start playing. */
+  private boolean mPrimed;
+
+  /** True once no more frames will be put. */
+  private boolean mEnded;
+
+  /** The position of the sample after the last frame put, or -1 before the first. */
+  private long mNextPosition = -1;
+
+  /** The smallest arrival time less recording time seen, in ns. */
+  private long mMinTransitNanos = Long.MAX_VALUE;
+
+  /** The largest recent lateness relative to mMinTransitNanos, decaying, in ns. */
+  private double mJitterNanos;
+
+  private int mTargetFrames = 1;
+
+  private int mUnderruns;
+  private int mConcealedFrames;
+  private int mDroppedFrames;
+  private int mLostFrames;
+  private int mLateFrames;
+
+  public JitterBuffer(int sampleRate) {
+    mSampleRate = sampleRate;
+  }
+
+  /**
+   * Adds a frame, copying its samples.
+   *
+   * @param position The position of the frame's first sample in the recording. Frames are
+   *     expected in order; a gap before this one is concealed, and a frame older than the last one
+   *     put is dropped.
+   * @param arrivalNanos When the frame arrived, from {@link System#nanoTime()}.
+   * @param captureNanos When the frame's first sample was recorded, on the same clock, or 0 if
+   *     unknown.
+   */
+  public synchronized void put(
+      short[] pcm, int length, long position, long arrivalNanos, long captureNanos) {
+    if (mNextPosition >= 0 && position < mNextPosition) {
+      mLateFrames++;
+      return;
+    }
+    if (mNextPosition >= 0) {
+      // One missing frame per frame-length of the gap, up to a buffer full.
+      long gap = position - mNextPosition;
+      for (int i = 0; gap > 0 && i < CAPACITY; i++, gap -= length) {
+        add(null, (int) Math.min(gap, length), 0);
+        mLostFrames++;
+      }
+    }
+    mNextPosition = position + length;
+
+    updateJitter(length, position, arrivalNanos);
+    add(pcm, length, captureNanos);
+    notifyAll();
+  }
+
+  /** Appends a frame, or a missing one if {@code pcm} is null. */
+  private void add(short[] pcm, int length, long captureNanos) {
+    if (mCount == CAPACITY) {
+      dropOldest();
+    }
+    int index = (mHead + mCount) % CAPACITY;
+    mMissing[index] = pcm == null;
+    mLengths[index] = length;
+    mPutNanos[index] = System.nanoTime();
+    mCaptureNanos[index] = captureNanos;
+    if (pcm != null) {
+      if (mFrames[index] == null || mFrames[index].length < length) {
+        mFrames[index] = new short[length];
+      }
+      System.arraycopy(pcm, 0, mFrames[index], 0, length);
+    }
+    mCount++;
+  }
+
+  private void updateJitter(int length, long position, long arrivalNanos) {
+    long recordedNanos = position * 1000000000L / mSampleRate;
+    long transitNanos = arrivalNanos - recordedNanos;
+    mMinTransitNanos = Math.min(mMinTransitNanos, transitNanos);
+
+    long lateNanos = transitNanos - mMinTransitNanos;
+    mJitterNanos = Math.max(lateNanos, mJitterNanos * JITTER_DECAY);
+
+    long frameNanos = Math.max(1, length * 1000000000L / mSampleRate);
+    // Enough frames to cover the jitter, plus the one being played.
+    int targetFrames = (int) Math.ceil(mJitterNanos / frameNanos) + 1;
+    mTargetFrames = Math.min(targetFrames, MAX_TARGET_FRAMES);
+  }
+
+  /** No more frames will be put. Frames already buffered can still be taken. */
+  public synchronized void end() {
+    mEnded = true;
+    notifyAll();
+  }
+
+  /**
+   * Returns the next frame to play, or a concealment frame if it hasn't arrived. Waits while
+   * buffering up to the target.
+   *
+   * @param out Receives the samples. Must be as large as the largest frame put.
+   * @return The number of samples in {@code out}, or -1 once the buffer ended and is empty.
+   */
+  public synchronized int take(short[] out) throws InterruptedException {
+    int length;
+    while ((length = poll(out)) == 0) {
+      wait();
+    }
+    return length;
+  }
+
+  /**
+   * Like {@link #take(short[])}, but returns 0 rather than waiting while buffering up to the
+   * target.
+   */
+  public synchronized int poll(short[] out) {
+    if (!mPrimed) {
+      if (mCount >= mTargetFrames || (mEnded && mCount > 0)) {
+        mPrimed = true;
+      } else {
+        return mEnded ? -1 : 0;
+      }
+    }
+
+    // Catch up after a burst.
+    while (mCount > mTargetFrames + CATCH_UP_MARGIN_FRAMES) {
+      dropOldest();
+    }
+
+    if (mCount > 0 && mMissing[mHead]) {
+      // Lost on the way; conceal it for as long as it was.
+      int length = mLengths[mHead];
+      mHead = (mHead + 1) % CAPACITY;
+      mCount--;
+      return conceal(out, length);
+    }
+
+    if (mCount > 0) {
+      int length = mLengths[mHead];
+      System.arraycopy(mFrames[mHead], 0, out, 0, length);
+      mTakenPutNanos = mPutNanos[mHead];
+      mTakenCaptureNanos = mCaptureNanos[mHead];
+      mHead = (mHead + 1) % CAPACITY;
+      mCount--;
+
+      if (mConcealed > 0) {
+        // Fade back in from where the concealment left off.
+        fade(out, length, (float) Math.pow(CONCEALMENT_FADE, mConcealed), 1);
+        mConcealed = 0;
+      }
+      if (mLastFrame.length < length) {
+        mLastFrame = new short[length];
+      }
+      System.arraycopy(out, 0, mLastFrame, 0, length);
+      mLastLength = length;
+      return length;
+    }
+
+    if (mEnded) {
+      return -1;
+    }
+
+    if (mConcealed == MAX_CONCEALED_FRAMES) {
+      // The link stalled; wait for it to fill the buffer again.
+      mPrimed = false;
+      mConcealed = 0;
+      return poll(out);
+    }
+
+    if (mConcealed == 0) {
+      mUnderruns++;
+    }
+    return conceal(out, mLastLength);
+  }
+
+  /** Writes the last frame played, repeated to the given length and fading out further. */
+  private int conceal(short[] out, int length) {
+    mConcealedFrames++;
+    mTakenPutNanos = 0;
+    mTakenCaptureNanos = 0;
+    if (mLastLength == 0) {
+      // Nothing played yet: silence.
+      Arrays.fill(out, 0, length, (short) 0);
+    }
+    for (int i = 0; mLastLength > 0 && i < length; i += mLastLength) {
+      System.arraycopy(mLastFrame, 0, out, i, Math.min(mLastLength, length - i));
+    }
+    fade(
+        out,
+        length,
+        (float) Math.pow(CONCEALMENT_FADE, mConcealed),
+        (float) Math.pow(CONCEALMENT_FADE, mConcealed + 1));
+    mConcealed++;
+    return length;
+  }
+
+  private void dropOldest() {
+    mHead = (mHead + 1) % CAPACITY;
+    mCount--;
+    mDroppedFrames++;
+  }
+
+  /** Scales the samples by a gain going linearly from {@code from} to {@code to}. */
+  private static void fade(short[] pcm, int length, float from, float to) {
+    float step = (to - from) / length;
+    float gain = from;
+    for (int i = 0; i < length; i++) {
+      pcm[i] = (short) (pcm[i] * gain);
+      gain += step;
+    }
+  }
+
+  /**
+   * @return When the frame last taken was put, from {@link System#nanoTime()}, or 0 if it was
+   *     concealed.
+   */
+  public synchronized long getTakenPutNanos() {
+    return mTakenPutNanos;
+  }
+
+  /**
+   * @return When the first sample of the frame last taken was recorded, or 0 if unknown or it was
+   *     concealed.
+   */
+  public synchronized long getTakenCaptureNanos() {
+    return mTakenCaptureNanos;
+  }
+
+  /** @return The frames buffered before playback starts, to ride out the jitter. */
+  public synchronized int getTargetFrames() {
+    return mTargetFrames;
+  }
+
+  /** @return The frames currently buffered. */
+  public synchronized int getDepth() {
+    return mCount;
+  }
+
+  /** @return The times a frame wasn't there in time to be played. */
+  public synchronized int getUnderruns() {
+    return mUnderruns;
+  }
+
+  /** @return The frames played by repeating the previous one. */
+  public synchronized int getConcealedFrames() {
+    return mConcealedFrames;
+  }
+
+  /** @return The frames dropped to catch up. */
+  public synchronized int getDroppedFrames() {
+    return mDroppedFrames;
+  }
+
+  /** @return The frames missing between the frames put. */
+  public synchronized int getLostFrames() {
+    return mLostFrames;
+  }
+
+  /** @return The frames dropped for arriving after a later one. */
+  public synchronized int getLateFrames() {
+    return mLateFrames;
+  }
+}
@@ -0,0 +1,169 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+/**
+ * Measures how long audio takes from the talker's mouth to the listener's ear, stage by stage, as
+ * a histogram per {@link Stage}. Every part of the pipeline records into the one instance, from
+ * whichever thread it runs on.
+ *
+ * <p>Stages measured across devices rely on {@link ClockSync} to compare the talker's clock with
+ * ours, and are left out until it has.
+ */
+public class LatencyStats {
+  /** The parts of the trip from mouth to ear, in order. */
+  public enum Stage {
+    /** From a frame's first sample being recorded until it's read to be encoded. */
+    CAPTURE,
+    /** From a frame being read until it's encoded and written to the sink. */
+    ENCODE,
+    /** From a frame being written to the sink until it arrives at the listener. */
+    SEND,
+    /** From a frame arriving until it's decoded into the jitter buffer. */
+    RECEIVE,
+    /** From a frame being put in the jitter buffer until it's taken out to be mixed. */
+    BUFFER,
+    /** From a frame being taken out to be mixed until it's heard. */
+    PLAYBACK,
+    /** From a frame's first sample being recorded until it's heard: all of the above. */
+    TOTAL
+  }
+
+  /** The width of each bucket, in ms. */
+  private static final int BUCKET_MS = 1;
+
+  /** The buckets per histogram. Latencies past the last fall in it. */
+  private static final int BUCKETS = 1000;
+
+  private static final LatencyStats sInstance = new LatencyStats();
+
+  private final Histogram[] mHistograms = new Histogram[Stage.values().length];
+
+  LatencyStats() {
+    for (int i = 0; i < mHistograms.length; i++) {
+      mHistograms[i] = new Histogram();
+    }
+  }
+
+  /** @return The stats the whole app records into. */
+  public static LatencyStats get() {
+    return sInstance;
+  }
+
+  /** Records that a frame spent the given time in a stage. */
+  public void record(Stage stage, long nanos) {
+    mHistograms[stage.ordinal()].add(nanos);
+  }
+
+  /** @return The histogram of a stage. */
+  public Histogram getHistogram(Stage stage) {
+    return mHistograms[stage.ordinal()];
+  }
+
+  /** Forgets everything recorded, e.g. before trying a change. */
+  public void reset() {
+    for (Histogram histogram : mHistograms) {
+      histogram.reset();
+    }
+  }
+
+  /**
+   * Writes a line per stage with its count, mean, percentiles and max, in ms.
+   *
+   * @param prefix Written before each line, e.g. to indent.
+   */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.println(
+        prefix
+            + String.format(
+                "%-9s %7s %6s %6s %6s %6s %6s",
+                "ms", "frames", "mean", "p50", "p90", "p99", "max"));
+    for (Stage stage : Stage.values()) {
+      Histogram histogram = getHistogram(stage);
+      synchronized (histogram) {
+        writer.println(
+            prefix
+                + String.format(
+                    "%-9s %7d %6.1f %6d %6d %6d %6d",
+                    stage.name().toLowerCase(),
+                    histogram.getCount(),
+                    histogram.getMeanMs(),
+                    histogram.getPercentileMs(50),
+                    histogram.getPercentileMs(90),
+                    histogram.getPercentileMs(99),
+                    histogram.getMaxMs()));
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringWriter string = new StringWriter();
+    PrintWriter writer = new PrintWriter(string);
+    dump("", writer);
+    writer.flush();
+    return string.toString();
+  }
+
+  /** The latencies of one stage, in buckets of {@link #BUCKET_MS}. Thread safe. */
+  public static class Histogram {
+    private final int[] mBuckets = new int[BUCKETS];
+    private int mCount;
+    private long mSumNanos;
+    private long mMaxNanos;
+
+    /** Adds a latency. Negative ones, from clocks compared slightly wrong, count as 0. */
+    public synchronized void add(long nanos) {
+      nanos = Math.max(0, nanos);
+      int bucket = (int) Math.min(BUCKETS - 1, nanos / 1000000 / BUCKET_MS);
+      mBuckets[bucket]++;
+      mCount++;
+      mSumNanos += nanos;
+      mMaxNanos = Math.max(mMaxNanos, nanos);
+    }
+
+    public synchronized void reset() {
+      Arrays.fill(mBuckets, 0);
+      mCount = 0;
+      mSumNanos = 0;
+      mMaxNanos = 0;
+    }
+
+    /** @return The latencies added. */
+    public synchronized int getCount() {
+      return mCount;
+    }
+
+    /** @return The mean latency, in ms, or 0 if none were added. */
+    public synchronized double getMeanMs() {
+      return mCount == 0 ? 0 : mSumNanos / 1000000.0 / mCount;
+    }
+
+    /** @return The largest latency, in ms. */
+    public synchronized int getMaxMs() {
+      return (int) (mMaxNanos / 1000000);
+    }
+
+    /**
+     * @return The latency the given percent of those added were at or below, in ms, to the top of
+     *     its bucket. 0 if none were added.
+     */
+    public synchronized int getPercentileMs(int percent) {
+      if (mCount == 0) {
+        return 0;
+      }
+      // The rank of the latency wanted, from 1.
+      long rank = Math.max(1, ((long) mCount * percent + 99) / 100);
+      int seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += mBuckets[i];
+        if (seen >= rank) {
+          return Math.min((i + 1) * BUCKET_MS, getMaxMs());
+        }
+      }
+      return getMaxMs();
+    }
+  }
+}
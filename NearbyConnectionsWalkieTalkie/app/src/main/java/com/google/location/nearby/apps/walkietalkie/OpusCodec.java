@@ -0,0 +1,312 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * Opus through the platform {@link MediaCodec}, for about 24 kbps at good quality. Only offered
+ * on devices with both an Opus encoder and decoder, which Android has from Q (API 29).
+ *
+ * <p>The platform decoder always outputs 48 kHz, so Opus is only used when recording at that
+ * rate. Frames must be 2.5, 5, 10, 20, 40 or 60 ms long.
+ */
+@TargetApi(29)
+public class OpusCodec implements AudioCodec {
+  public static final String NAME = "opus";
+
+  /** {@code MediaFormat.MIMETYPE_AUDIO_OPUS}, which is new in API 29. */
+  private static final String MIME_TYPE = "audio/opus";
+
+  private static final int SAMPLE_RATE = 48000;
+  private static final int BIT_RATE = 24000;
+
+  /** The largest Opus packet, per RFC 6716. */
+  private static final int MAX_PACKET_SIZE = 1275;
+
+  /** How long to wait for the codec. At most a frame, so it can't fall behind the recording. */
+  private static final long TIMEOUT_US = 20000;
+
+  /** The most frames kept for a codec that has no input buffer free, 200 ms at 20 ms a frame. */
+  private static final int MAX_PENDING_INPUT = 10;
+
+  /** The decoder needs the Ogg Opus identification header, even though there's no Ogg stream. */
+  private static final int OPUS_HEAD_SIZE = 19;
+
+  /** The decoder discards this much audio when starting from an arbitrary packet. */
+  private static final long SEEK_PRE_ROLL_NS = 80000000;
+
+  /** @return True if this device can both encode and decode Opus. */
+  public static boolean isAvailable() {
+    return Build.VERSION.SDK_INT >= 29 && hasCodec(true) && hasCodec(false);
+  }
+
+  private static boolean hasCodec(boolean encoder) {
+    for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+      MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+      if (info.isEncoder() != encoder) {
+        continue;
+      }
+      for (String type : info.getSupportedTypes()) {
+        if (type.equalsIgnoreCase(MIME_TYPE)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public boolean supportsSampleRate(int sampleRate) {
+    return sampleRate == SAMPLE_RATE;
+  }
+
+  @Override
+  public AudioCodec.Encoder newEncoder(int sampleRate) throws IOException {
+    MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, 1);
+    format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+    MediaCodec codec = MediaCodec.createEncoderByType(MIME_TYPE);
+    codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    codec.start();
+    return new Encoder(codec, sampleRate);
+  }
+
+  @Override
+  public AudioCodec.Decoder newDecoder(int sampleRate) throws IOException {
+    MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, 1);
+    format.setByteBuffer("csd-0", createOpusHead(sampleRate));
+    // No pre-skip: the first few ms of encoder warm up are played rather than delayed.
+    format.setByteBuffer("csd-1", toByteBuffer(0));
+    format.setByteBuffer("csd-2", toByteBuffer(SEEK_PRE_ROLL_NS));
+    MediaCodec codec = MediaCodec.createDecoderByType(MIME_TYPE);
+    codec.configure(format, null, null, 0);
+    codec.start();
+    return new Decoder(codec);
+  }
+
+  private static ByteBuffer createOpusHead(int sampleRate) {
+    ByteBuffer head = ByteBuffer.allocate(OPUS_HEAD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    head.put(new byte[] {'O', 'p', 'u', 's', 'H', 'e', 'a', 'd'});
+    head.put((byte) 1); // Version
+    head.put((byte) 1); // Channels
+    head.putShort((short) 0); // Pre-skip
+    head.putInt(sampleRate);
+    head.putShort((short) 0); // Output gain
+    head.put((byte) 0); // Channel mapping family
+    head.flip();
+    return head;
+  }
+
+  private static ByteBuffer toByteBuffer(long value) {
+    ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+    buffer.putLong(value);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Feeds frames to the codec and takes everything it outputs, without blocking for long.
+   *
+   * <p>A frame the codec has no input buffer for yet is kept, in order, and fed on a later call
+   * rather than dropped, up to {@link #MAX_PENDING_INPUT} frames. Every output buffer ready is
+   * copied out and released, so a codec that produces more than one for a frame never falls
+   * behind. Codec config buffers aren't audio and are skipped. Frames and outputs are copied into
+   * buffers that are reused, so nothing is allocated once the stream is going.
+   */
+  private abstract static class Codec {
+    final MediaCodec mCodec;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private long mPresentationTimeUs;
+
+    /** Frames not fed to the codec yet, oldest first. */
+    private final ArrayDeque<Frame> mPendingInput = new ArrayDeque<>();
+
+    /** Output taken from the codec, oldest first, for the subclass to consume. */
+    final ArrayDeque<ByteBuffer> mOutput = new ArrayDeque<>();
+
+    private final ArrayDeque<Frame> mFreeInput = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> mFreeOutput = new ArrayDeque<>();
+
+    Codec(MediaCodec codec) {
+      mCodec = codec;
+    }
+
+    /** @return An empty frame holding at least {@code size} bytes, to pass to {@link #process}. */
+    Frame obtainInput(int size) {
+      Frame frame = mFreeInput.poll();
+      if (frame == null) {
+        frame = new Frame();
+      }
+      frame.data = obtain(frame.data, size);
+      return frame;
+    }
+
+    /**
+     * Queues a frame, with its data flipped ready to read, then feeds the codec all the queued
+     * frames it has buffers for and takes all the output it has ready into {@link #mOutput}.
+     * Waits up to {@link #TIMEOUT_US} for output only if there's none to return yet.
+     */
+    void process(Frame frame, long durationUs) {
+      frame.durationUs = durationUs;
+      if (mPendingInput.size() == MAX_PENDING_INPUT) {
+        Log.w(TAG, "Audio codec stalled, dropping a frame");
+        mFreeInput.add(mPendingInput.poll());
+      }
+      mPendingInput.add(frame);
+      feedInput();
+
+      long timeoutUs = mOutput.isEmpty() ? TIMEOUT_US : 0;
+      while (true) {
+        int outputIndex = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+        if (outputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+          break;
+        } else if (outputIndex < 0) {
+          // The output format or buffers changed; neither affects us.
+          continue;
+        }
+        if ((mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+          ByteBuffer output = mCodec.getOutputBuffer(outputIndex);
+          output.position(mInfo.offset);
+          output.limit(mInfo.offset + mInfo.size);
+          ByteBuffer copy = obtain(mFreeOutput.poll(), mInfo.size);
+          copy.put(output);
+          copy.flip();
+          mOutput.add(copy);
+        }
+        mCodec.releaseOutputBuffer(outputIndex, false);
+        timeoutUs = 0;
+      }
+
+      // Taking output may have freed input buffers.
+      feedInput();
+    }
+
+    /** Gives back an output buffer taken from {@link #mOutput}, to be reused. */
+    void recycleOutput(ByteBuffer output) {
+      mFreeOutput.add(output);
+    }
+
+    private void feedInput() {
+      while (!mPendingInput.isEmpty()) {
+        int inputIndex = mCodec.dequeueInputBuffer(0);
+        if (inputIndex < 0) {
+          return;
+        }
+        Frame frame = mPendingInput.poll();
+        ByteBuffer input = mCodec.getInputBuffer(inputIndex);
+        input.clear();
+        int size = frame.data.remaining();
+        input.put(frame.data);
+        mCodec.queueInputBuffer(inputIndex, 0, size, mPresentationTimeUs, 0);
+        mPresentationTimeUs += frame.durationUs;
+        mFreeInput.add(frame);
+      }
+    }
+
+    /** @return {@code buffer} cleared, or a new one if it's null or smaller than {@code size}. */
+    private static ByteBuffer obtain(ByteBuffer buffer, int size) {
+      if (buffer == null || buffer.capacity() < size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+      }
+      buffer.clear();
+      return buffer;
+    }
+
+    public void release() {
+      mCodec.stop();
+      mCodec.release();
+    }
+  }
+
+  /** A frame of input waiting for the codec. */
+  private static class Frame {
+    ByteBuffer data;
+    long durationUs;
+  }
+
+  /**
+   * Returns one packet per frame, so each still goes out with the position of a frame. After a
+   * frame the codec had no output for, the packets that follow are a frame behind.
+   */
+  private static class Encoder extends Codec implements AudioCodec.Encoder {
+    private final int mSampleRate;
+
+    Encoder(MediaCodec codec, int sampleRate) {
+      super(codec);
+      mSampleRate = sampleRate;
+    }
+
+    @Override
+    public int getMaxEncodedSize(int samples) {
+      return MAX_PACKET_SIZE;
+    }
+
+    @Override
+    public int encode(short[] pcm, int offset, int length, byte[] out) {
+      Frame frame = obtainInput(length * 2);
+      frame.data.asShortBuffer().put(pcm, offset, length);
+      frame.data.limit(length * 2);
+      process(frame, length * 1000000L / mSampleRate);
+      ByteBuffer output = mOutput.poll();
+      if (output == null) {
+        return 0;
+      }
+      int size = Math.min(output.remaining(), out.length);
+      output.get(out, 0, size);
+      recycleOutput(output);
+      return size;
+    }
+  }
+
+  /** Returns all the audio decoded so far that fits, so none is left waiting in the decoder. */
+  private static class Decoder extends Codec implements AudioCodec.Decoder {
+    Decoder(MediaCodec codec) {
+      super(codec);
+    }
+
+    @Override
+    public int getMaxDecodedSamples(int packetSize) {
+      // 120 ms, the longest a packet can be.
+      return SAMPLE_RATE * 120 / 1000;
+    }
+
+    @Override
+    public int decode(byte[] packet, int offset, int length, short[] pcm) {
+      Frame frame = obtainInput(length);
+      frame.data.put(packet, offset, length);
+      frame.data.flip();
+      // Packets don't carry their duration in a form worth parsing here; timestamps only need
+      // to increase.
+      process(frame, 20000);
+      int samples = 0;
+      ByteBuffer output;
+      while ((output = mOutput.peek()) != null) {
+        int available = output.remaining() / 2;
+        if (samples > 0 && samples + available > pcm.length) {
+          // The rest is returned with the next packet.
+          break;
+        }
+        int count = Math.min(available, pcm.length - samples);
+        output.asShortBuffer().get(pcm, samples, count);
+        samples += count;
+        recycleOutput(mOutput.poll());
+      }
+      return samples;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/** Sends audio uncompressed, as 16-bit little endian samples. Supported by every device. */
+public class PcmCodec implements AudioCodec {
+  public static final String NAME = "pcm";
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public boolean supportsSampleRate(int sampleRate) {
+    return true;
+  }
+
+  @Override
+  public Encoder newEncoder(int sampleRate) {
+    return new Encoder() {
+      @Override
+      public int getMaxEncodedSize(int samples) {
+        return samples * 2;
+      }
+
+      @Override
+      public int encode(short[] pcm, int offset, int length, byte[] out) {
+        for (int i = 0; i < length; i++) {
+          short sample = pcm[offset + i];
+          out[2 * i] = (byte) sample;
+          out[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return length * 2;
+      }
+
+      @Override
+      public void release() {}
+    };
+  }
+
+  @Override
+  public Decoder newDecoder(int sampleRate) {
+    return new Decoder() {
+      @Override
+      public int getMaxDecodedSamples(int packetSize) {
+        return packetSize / 2;
+      }
+
+      @Override
+      public int decode(byte[] packet, int offset, int length, short[] pcm) {
+        int samples = length / 2;
+        for (int i = 0; i < samples; i++) {
+          pcm[i] =
+              (short) ((packet[offset + 2 * i] & 0xFF) | (packet[offset + 2 * i + 1] << 8));
+        }
+        return samples;
+      }
+
+      @Override
+      public void release() {}
+    };
+  }
+}
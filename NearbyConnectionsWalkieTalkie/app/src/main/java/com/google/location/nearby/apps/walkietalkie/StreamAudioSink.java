@@ -0,0 +1,71 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes the audio to a pipe, for a {@link com.google.android.gms.nearby.connection.Payload}
+ * stream. {@link AudioPlayer} reads it back.
+ *
+ * <p>The stream starts with the codec's name (as written by {@link
+ * DataOutputStream#writeUTF(String)}) and the sample rate (as an int), followed by each encoded
+ * frame as a 2 byte length and the packet, or as a {@link ComfortNoise} marker.
+ */
+public class StreamAudioSink implements AudioSink {
+  /** Room for a few frames; more are written in several parts. */
+  private static final int BUFFER_SIZE = 8192;
+
+  /** Buffered so the frames between flushes, with their lengths, go out in one write. */
+  private final DataOutputStream mOut;
+
+  private final byte[] mMarker = new byte[ComfortNoise.MARKER_SIZE];
+
+  /** @param file The write side of the pipe. */
+  public StreamAudioSink(ParcelFileDescriptor file) {
+    mOut =
+        new DataOutputStream(
+            new BufferedOutputStream(
+                new ParcelFileDescriptor.AutoCloseOutputStream(file), BUFFER_SIZE));
+  }
+
+  @Override
+  public void open(String codecName, int sampleRate) throws IOException {
+    mOut.writeUTF(codecName);
+    mOut.writeInt(sampleRate);
+    mOut.flush();
+  }
+
+  @Override
+  public void write(byte[] packet, int length, long position, long captureNanos)
+      throws IOException {
+    mOut.writeShort(length);
+    mOut.write(packet, 0, length);
+  }
+
+  @Override
+  public void writeComfortNoise(int samples, double noiseDbfs, long position, long captureNanos)
+      throws IOException {
+    int size = ComfortNoise.writeMarker(mMarker, 0, samples, noiseDbfs);
+    mOut.writeShort(ComfortNoise.MARKER_FLAG | size);
+    mOut.write(mMarker, 0, size);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    mOut.flush();
+  }
+
+  @Override
+  public void close() {
+    try {
+      mOut.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close output stream", e);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.Arrays;
+
+/**
+ * Tells frames of speech from frames of background noise, so silence needn't be sent.
+ *
+ * <p>A frame is speech if it's well above the background noise, or a little above it while
+ * crossing zero often, as a hiss like "s" or "f" does. The background noise level is that of the
+ * quietest frame of the last couple of seconds, as even constant talk pauses between words, so it
+ * follows the background up or down. After speech, frames are still called speech for a moment, so
+ * quiet word endings and short pauses aren't cut.
+ *
+ * <p>Not thread safe. Use one per recording.
+ */
+public class VoiceActivityDetector {
+  /** Frames quieter than this, in dB of full scale, are never speech. */
+  private static final double MIN_SPEECH_DBFS = -55;
+
+  /** How far above the background noise a frame is surely speech, in dB. */
+  private static final double SPEECH_MARGIN_DB = 10;
+
+  /** How far above the background noise a frame is speech if it also crosses zero often, in dB. */
+  private static final double UNVOICED_MARGIN_DB = 5;
+
+  /** Zero crossings per second above which a frame sounds like a hiss rather than a hum. */
+  private static final int UNVOICED_CROSSINGS_PER_SECOND = 3000;
+
+  /** How long the quietest frame counts as the background noise level. */
+  private static final int NOISE_WINDOW_MS = 2000;
+
+  /** The window is kept as this many blocks, each with its quietest frame. */
+  private static final int NOISE_WINDOW_BLOCKS = 4;
+
+  /** How long frames are still called speech after the last that was. */
+  private static final int HANGOVER_MS = 200;
+
+  private final int mSampleRate;
+
+  /** The level of the quietest frame in each of the previous blocks, in dB of full scale. */
+  private final double[] mBlockMinimums = new double[NOISE_WINDOW_BLOCKS];
+
+  /** The index of the oldest block, to be replaced next. */
+  private int mOldestBlock;
+
+  /** The level of the quietest frame in the current block so far. */
+  private double mBlockMinimum = Double.POSITIVE_INFINITY;
+
+  /** The samples in the current block so far. */
+  private long mBlockSamples;
+
+  /** The background noise level, in dB of full scale. */
+  private double mNoiseDbfs = Double.POSITIVE_INFINITY;
+
+  /** The time left before speech is over, in samples. */
+  private long mHangoverSamples;
+
+  /** @param sampleRate The sample rate of the audio. */
+  public VoiceActivityDetector(int sampleRate) {
+    mSampleRate = sampleRate;
+    Arrays.fill(mBlockMinimums, Double.POSITIVE_INFINITY);
+    // Whoever pressed the button is about to talk.
+    mHangoverSamples = (long) sampleRate * HANGOVER_MS / 1000;
+  }
+
+  /** @return True if the frame should be sent as speech, false if it's only background noise. */
+  public boolean isSpeech(short[] pcm, int length) {
+    if (length == 0) {
+      return mHangoverSamples > 0;
+    }
+
+    long sumOfSquares = 0;
+    int crossings = 0;
+    for (int i = 0; i < length; i++) {
+      sumOfSquares += pcm[i] * pcm[i];
+      if (i > 0 && (pcm[i] < 0) != (pcm[i - 1] < 0)) {
+        crossings++;
+      }
+    }
+    double dbfs = toDbfs(sumOfSquares / (double) length);
+    double crossingsPerSecond = (double) crossings * mSampleRate / length;
+
+    updateNoise(dbfs, length);
+
+    boolean speech =
+        dbfs > MIN_SPEECH_DBFS
+            && (dbfs > mNoiseDbfs + SPEECH_MARGIN_DB
+                || (dbfs > mNoiseDbfs + UNVOICED_MARGIN_DB
+                    && crossingsPerSecond > UNVOICED_CROSSINGS_PER_SECOND));
+
+    if (speech) {
+      mHangoverSamples = (long) mSampleRate * HANGOVER_MS / 1000;
+      return true;
+    }
+    mHangoverSamples = Math.max(0, mHangoverSamples - length);
+    return mHangoverSamples > 0;
+  }
+
+  private void updateNoise(double dbfs, int length) {
+    mBlockMinimum = Math.min(mBlockMinimum, dbfs);
+    mBlockSamples += length;
+    if (mBlockSamples >= (long) mSampleRate * NOISE_WINDOW_MS / NOISE_WINDOW_BLOCKS / 1000) {
+      mBlockMinimums[mOldestBlock] = mBlockMinimum;
+      mOldestBlock = (mOldestBlock + 1) % NOISE_WINDOW_BLOCKS;
+      mBlockMinimum = Double.POSITIVE_INFINITY;
+      mBlockSamples = 0;
+    }
+
+    mNoiseDbfs = Math.min(mBlockMinimum, dbfs);
+    for (double minimum : mBlockMinimums) {
+      mNoiseDbfs = Math.min(mNoiseDbfs, minimum);
+    }
+  }
+
+  /** @return The background noise level, in dB of full scale. */
+  public double getNoiseDbfs() {
+    return Double.isInfinite(mNoiseDbfs) ? MIN_SPEECH_DBFS : mNoiseDbfs;
+  }
+
+  private static double toDbfs(double meanSquare) {
+    // Digital silence is as quiet as it gets.
+    return 10 * Math.log10(Math.max(meanSquare, 1) / ((double) Short.MAX_VALUE * Short.MAX_VALUE));
+  }
+}
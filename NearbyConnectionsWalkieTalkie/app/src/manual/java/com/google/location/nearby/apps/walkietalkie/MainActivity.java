@@ -33,7 +33,11 @@ import android.widget.Toast;
 import com.google.android.gms.nearby.connection.ConnectionInfo;
 import com.google.android.gms.nearby.connection.Payload;
 import com.google.android.gms.nearby.connection.Strategy;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Random;
@@ -80,6 +84,9 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   /** Length of state change animations. */
   private static final long ANIMATION_DURATION = 600;
 
+  /** How often the latency panel is updated, in ms. */
+  private static final long LATENCY_UPDATE_INTERVAL = 1000;
+
   /**
    * This service id lets us find other nearby devices that are interested in the same thing. Our
    * sample does exactly one thing, so we hardcode the ID.
@@ -108,6 +115,19 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   /** A running log of debug messages. Only visible when DEBUG=true. */
   private TextView mDebugLogView;
 
+  /** How long audio takes to reach us, stage by stage. Only visible when DEBUG=true. */
+  private TextView mLatencyView;
+
+  /** Shows the latest {@link LatencyStats} every so often while we're started. */
+  private final Runnable mShowLatencyRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          mLatencyView.setText(LatencyStats.get().toString());
+          mLatencyView.postDelayed(this, LATENCY_UPDATE_INTERVAL);
+        }
+      };
+
   /** The SensorManager gives us access to sensors on the device. */
   private SensorManager mSensorManager;
 
@@ -133,9 +153,46 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   /** For recording audio as the user speaks. */
   @Nullable private AudioRecorder mRecorder;
 
+  /** Picks the codec to record with, from the ones our connected endpoints support. */
+  private final CodecNegotiation mCodecNegotiation = new CodecNegotiation();
+
+  /** Reads the times other users stamp their audio with on our clock. */
+  private final ClockSync mClockSync =
+      new ClockSync(
+          new ClockSync.Sender() {
+            @Override
+            public void send(String endpointId, Payload payload) {
+              MainActivity.this.send(payload, endpointId);
+            }
+          });
+
+  /** Plays the recordings other users send a frame at a time. */
+  private final FramedAudioReceiver mFramedAudioReceiver =
+      new FramedAudioReceiver(
+          new FramedAudioReceiver.Listener() {
+            @Override
+            public AudioPlayer onStreamStarted(
+                String endpointId, String codecName, int sampleRate) {
+              return startPlaying(new Player(endpointId, codecName, sampleRate));
+            }
+          },
+          mClockSync);
+
   /** For playing audio from other users nearby. */
   private final Set<AudioPlayer> mAudioPlayers = new HashSet<>();
 
+  /** Plays everyone talking at once. Made anew each start, in case the audio config changed. */
+  private AudioMixer mAudioMixer;
+
+  /** How to record and play audio on this device. */
+  private AudioConfig mAudioConfig;
+
+  /** True until this device's model was calibrated, or found not to calibrate. */
+  private boolean mNeedsCalibration;
+
+  /** Calibrating the device's audio, or null if it isn't. */
+  @Nullable private Thread mCalibrationThread;
+
   /** The phone's original media volume. */
   private int mOriginalVolume;
 
@@ -166,11 +223,34 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
 
     mPreviousStateView = (TextView) findViewById(R.id.previous_state);
     mCurrentStateView = (TextView) findViewById(R.id.current_state);
+    mCurrentStateView.setOnClickListener(
+        new View.OnClickListener() {
+          @Override
+          public void onClick(View view) {
+            // Set how loud each of the people we're connected to is.
+            if (getState() == State.CONNECTED) {
+              GainDialog.show(MainActivity.this, mAudioMixer, getConnectedEndpoints());
+            }
+          }
+        });
 
     mDebugLogView = (TextView) findViewById(R.id.debug_log);
     mDebugLogView.setVisibility(DEBUG ? View.VISIBLE : View.GONE);
     mDebugLogView.setMovementMethod(new ScrollingMovementMethod());
 
+    mLatencyView = (TextView) findViewById(R.id.latency_stats);
+    mLatencyView.setVisibility(DEBUG ? View.VISIBLE : View.GONE);
+    mLatencyView.setOnLongClickListener(
+        new View.OnLongClickListener() {
+          @Override
+          public boolean onLongClick(View view) {
+            // Start measuring afresh, e.g. after changing a setting.
+            LatencyStats.get().reset();
+            mLatencyView.setText(LatencyStats.get().toString());
+            return true;
+          }
+        });
+
     mName = generateRandomName();
 
     ((TextView) findViewById(R.id.name)).setText(mName);
@@ -196,6 +276,21 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     audioManager.setStreamVolume(
         AudioManager.STREAM_MUSIC, audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC), 0);
 
+    // Use what we found worked best on this model before, or find out for next time.
+    mAudioConfig = AudioConfig.load(this);
+    mNeedsCalibration = mAudioConfig == null;
+    if (mAudioConfig == null) {
+      mAudioConfig = AudioConfig.getDefault(this);
+    }
+
+    // Be ready to play whoever talks.
+    mAudioMixer = new AudioMixer(mAudioConfig);
+    mAudioMixer.start();
+
+    if (DEBUG) {
+      mShowLatencyRunnable.run();
+    }
+
     setState(State.DISCOVERING);
   }
 
@@ -214,6 +309,9 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     if (isPlaying()) {
       stopPlaying();
     }
+    cancelAudioCalibration();
+    mAudioMixer.stop();
+    mLatencyView.removeCallbacks(mShowLatencyRunnable);
 
     setState(State.UNKNOWN);
 
@@ -254,6 +352,13 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     Toast.makeText(
             this, getString(R.string.toast_connected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
+
+    // Tell the new endpoint which codecs we can decode. Endpoints we told before ignore it.
+    mCodecNegotiation.onEndpointConnected(endpoint.getId());
+    send(Payload.fromBytes(CodecNegotiation.createOffer()));
+
+    // Learn its clock, to time how long its audio takes to reach us.
+    mClockSync.sync(endpoint.getId());
     setState(State.CONNECTED);
   }
 
@@ -262,6 +367,9 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     Toast.makeText(
             this, getString(R.string.toast_disconnected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
+    mCodecNegotiation.onEndpointDisconnected(endpoint.getId());
+    mFramedAudioReceiver.onEndpointDisconnected(endpoint.getId());
+    mClockSync.onEndpointDisconnected(endpoint.getId());
 
     // If we lost all our endpoints, then we should reset the state of our app and go back
     // to our initial state (discovering).
@@ -319,6 +427,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
         }
         disconnectFromAllEndpoints();
         startDiscovering();
+        calibrateAudio();
         break;
       case ADVERTISING:
         if (isDiscovering()) {
@@ -326,6 +435,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
         }
         disconnectFromAllEndpoints();
         startAdvertising();
+        calibrateAudio();
         break;
       case CONNECTED:
         if (isDiscovering()) {
@@ -335,6 +445,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
           // but clear the discover runnable.
           removeCallbacks(mDiscoverRunnable);
         }
+        cancelAudioCalibration();
         break;
       case UNKNOWN:
         stopAllEndpoints();
@@ -537,25 +648,52 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   /** {@see ConnectionsActivity#onReceive(Endpoint, Payload)} */
   @Override
   protected void onReceive(Endpoint endpoint, Payload payload) {
-    if (payload.getType() == Payload.Type.STREAM) {
-      AudioPlayer player =
-          new AudioPlayer(payload.asStream().asInputStream()) {
-            @WorkerThread
+    if (payload.getType() == Payload.Type.BYTES) {
+      byte[] bytes = payload.asBytes();
+      try {
+        if (CodecNegotiation.isOffer(bytes)) {
+          mCodecNegotiation.onOffer(endpoint.getId(), bytes);
+        } else if (FramedAudioReceiver.isAudio(bytes)) {
+          mFramedAudioReceiver.onReceive(endpoint.getId(), bytes);
+        } else if (ClockSync.isClockPayload(bytes)) {
+          mClockSync.onReceive(endpoint.getId(), bytes);
+        }
+      } catch (IOException e) {
+        logW("Invalid payload from " + endpoint, e);
+      }
+    } else if (payload.getType() == Payload.Type.STREAM) {
+      startPlaying(new Player(endpoint.getId(), payload.asStream().asInputStream()));
+    }
+  }
+
+  /** Plays the given player along with any others already playing. */
+  private AudioPlayer startPlaying(AudioPlayer player) {
+    mAudioPlayers.add(player);
+    player.start();
+    return player;
+  }
+
+  /** Forgets itself once it's done playing. */
+  private class Player extends AudioPlayer {
+    Player(String endpointId, InputStream inputStream) {
+      super(mAudioMixer, endpointId, inputStream);
+    }
+
+    Player(String endpointId, String codecName, int sampleRate) {
+      super(mAudioMixer, endpointId, codecName, sampleRate);
+    }
+
+    @WorkerThread
+    @Override
+    protected void onFinish() {
+      post(
+          new Runnable() {
+            @UiThread
             @Override
-            protected void onFinish() {
-              final AudioPlayer audioPlayer = this;
-              post(
-                  new Runnable() {
-                    @UiThread
-                    @Override
-                    public void run() {
-                      mAudioPlayers.remove(audioPlayer);
-                    }
-                  });
+            public void run() {
+              mAudioPlayers.remove(Player.this);
             }
-          };
-      mAudioPlayers.add(player);
-      player.start();
+          });
     }
   }
 
@@ -573,17 +711,84 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     return !mAudioPlayers.isEmpty();
   }
 
+  /**
+   * Finds the audio config that works best on this device in the background, if it wasn't found
+   * for this model before. Only called while no one is connected, as it plays beeps and listens
+   * for them. Recordings use the config as soon as it's found; playback, from the next start.
+   */
+  private void calibrateAudio() {
+    if (!mNeedsCalibration
+        || mCalibrationThread != null
+        || !hasPermissions(this, Manifest.permission.RECORD_AUDIO)) {
+      return;
+    }
+    final Context context = getApplicationContext();
+    mCalibrationThread =
+        new Thread() {
+          @Override
+          public void run() {
+            final AudioConfig config = AudioCalibration.calibrate(context);
+            final boolean cancelled = isInterrupted();
+            final Thread thread = this;
+            post(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    if (mCalibrationThread == thread) {
+                      mCalibrationThread = null;
+                    }
+                    if (cancelled) {
+                      // Tried again the next time no one is connected.
+                      return;
+                    }
+                    // Saved for this model, even if it failed, so it isn't tried again.
+                    mNeedsCalibration = false;
+                    if (config != null) {
+                      logD("Calibrated audio: " + config);
+                      mAudioConfig = config;
+                    }
+                  }
+                });
+          }
+        };
+    mCalibrationThread.start();
+  }
+
+  /** Stops calibrating the device's audio, e.g. before it's needed for talking. */
+  private void cancelAudioCalibration() {
+    if (mCalibrationThread != null) {
+      mCalibrationThread.interrupt();
+      mCalibrationThread = null;
+    }
+  }
+
   /** Starts recording sound from the microphone and streaming it to all connected devices. */
   private void startRecording() {
     logV("startRecording()");
     try {
-      ParcelFileDescriptor[] payloadPipe = ParcelFileDescriptor.createPipe();
-
-      // Send the first half of the payload (the read side) to Nearby Connections.
-      send(Payload.fromStream(payloadPipe[0]));
+      AudioSink sink;
+      if (Constants.FRAMED_AUDIO) {
+        sink =
+            new FramedAudioSink(
+                new FramedAudioSink.Sender() {
+                  @Override
+                  public void send(Payload payload) {
+                    MainActivity.this.send(payload);
+                  }
+                });
+      } else {
+        ParcelFileDescriptor[] payloadPipe = ParcelFileDescriptor.createPipe();
+
+        // Send the first half of the payload (the read side) to Nearby Connections.
+        send(Payload.fromStream(payloadPipe[0]));
+
+        // Use the second half of the payload (the write side) in AudioRecorder.
+        sink = new StreamAudioSink(payloadPipe[1]);
+      }
 
-      // Use the second half of the payload (the write side) in AudioRecorder.
-      mRecorder = new AudioRecorder(payloadPipe[1]);
+      AudioCodec codec = mCodecNegotiation.choose();
+      logD("Recording with " + codec.getName());
+      mRecorder = new AudioRecorder(sink, codec, mAudioConfig);
       mRecorder.start();
     } catch (IOException e) {
       logE("startRecording() failed", e);
@@ -604,6 +809,25 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     return mRecorder != null && mRecorder.isRecording();
   }
 
+  /**
+   * Writes how long audio takes to reach us, stage by stage, and how far each connected device's
+   * clock is from ours. See it with {@code adb shell dumpsys activity
+   * com.google.location.nearby.apps.walkietalkie.manual/.MainActivity}, adding {@code reset} to
+   * start measuring afresh.
+   */
+  @Override
+  public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+    super.dump(prefix, fd, writer, args);
+    writer.println(prefix + "Latency:");
+    LatencyStats.get().dump(prefix + "  ", writer);
+    writer.println(prefix + "Clocks:");
+    mClockSync.dump(prefix + "  ", writer);
+    if (args != null && Arrays.asList(args).contains("reset")) {
+      LatencyStats.get().reset();
+      writer.println(prefix + "Latency reset");
+    }
+  }
+
   /** {@see ConnectionsActivity#getRequiredPermissions()} */
   @Override
   protected String[] getRequiredPermissions() {
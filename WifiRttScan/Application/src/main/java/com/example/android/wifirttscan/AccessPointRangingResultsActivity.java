@@ -20,27 +20,53 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.wifi.ScanResult;
-import android.net.wifi.rtt.RangingRequest;
 import android.net.wifi.rtt.RangingResult;
-import android.net.wifi.rtt.RangingResultCallback;
 import android.net.wifi.rtt.WifiRttManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 import androidx.appcompat.app.AppCompatActivity;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.EditText;
+import android.widget.Switch;
 import android.widget.TextView;
-import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Displays ranging information about a particular access point chosen by the user. Uses {@link
- * Handler} to trigger new requests based on
+ * Displays ranging information about a particular access point chosen by the user. All the RTT
+ * capable access points found by the last scan are ranged alongside it by a {@link
+ * RangingScheduler}.
+ *
+ * <p>Ranging, its callbacks and the statistics run on a dedicated thread, so a busy UI never
+ * slows ranging down. After each result the thread publishes a snapshot of what to display, and
+ * the UI draws the latest snapshot at most once per frame.
+ *
+ * <p>While the record switch is on, every result is also recorded to a {@link RangingLogWriter}
+ * log in the recordings directory of the app's external files, which {@code RangingReplay} in the
+ * unit tests plays back on a desktop JVM. A log is rotated once it reaches {@link
+ * #MAX_RECORDING_BYTES}, and the oldest logs are deleted once they are older than {@link
+ * #MAX_RECORDING_AGE_MILLIS} or all of them take more than {@link #MAX_RECORDINGS_BYTES}.
  */
 public class AccessPointRangingResultsActivity extends AppCompatActivity {
     private static final String TAG = "APRRActivity";
@@ -48,9 +74,23 @@ public class AccessPointRangingResultsActivity extends AppCompatActivity {
     public static final String SCAN_RESULT_EXTRA =
             "com.example.android.wifirttscan.extra.SCAN_RESULT";
 
+    // Optional list of every access point to range, including the one in SCAN_RESULT_EXTRA.
+    public static final String ACCESS_POINTS_EXTRA =
+            "com.example.android.wifirttscan.extra.ACCESS_POINTS";
+
     private static final int SAMPLE_SIZE_DEFAULT = 50;
     private static final int MILLISECONDS_DELAY_BEFORE_NEW_RANGING_REQUEST_DEFAULT = 1000;
 
+    private static final String RECORDINGS_DIRECTORY = "recordings";
+    private static final String RECORDING_EXTENSION = ".rttlog";
+
+    private static final long MAX_RECORDING_BYTES = 8 * 1024 * 1024;
+    private static final long MAX_RECORDINGS_BYTES = 64 * 1024 * 1024;
+    private static final long MAX_RECORDING_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    // Preference remembering whether the record switch is on.
+    private static final String PREFERENCE_RECORD = "record";
+
     // UI Elements.
     private TextView mSsidTextView;
     private TextView mBssidTextView;
@@ -63,41 +103,72 @@ public class AccessPointRangingResultsActivity extends AppCompatActivity {
     private TextView mSuccessesInBurstTextView;
     private TextView mSuccessRatioTextView;
     private TextView mNumberOfRequestsTextView;
+    private TextView mPositionTextView;
 
     private EditText mSampleSizeEditText;
     private EditText mMillisecondsDelayBeforeNewRangingRequestEditText;
+    private Switch mRecordSwitch;
 
     // Non UI variables.
     private ScanResult mScanResult;
     private String mMAC;
 
-    private int mNumberOfRangeRequests;
-    private int mNumberOfSuccessfulRangeRequests;
-
-    private int mMillisecondsDelayBeforeNewRangingRequest;
+    // Everything below, up to the UI snapshot, is only used on the ranging thread.
 
     // Max sample size to calculate average for
     // 1. Distance to device (getDistanceMm) over time
     // 2. Standard deviation of the measured distance to the device (getDistanceStdDevMm) over time
     // Note: A RangeRequest result already consists of the average of 7 readings from a burst,
     // so the average in (1) is the average of these averages.
-    private int mSampleSize;
-
-    // Used to loop over a list of distances to calculate averages (ensures data structure never
-    // get larger than sample size).
-    private int mStatisticRangeHistoryEndIndex;
-    private ArrayList<Integer> mStatisticRangeHistory;
-
-    // Used to loop over a list of the standard deviation of the measured distance to calculate
-    // averages  (ensures data structure never get larger than sample size).
-    private int mStatisticRangeSDHistoryEndIndex;
-    private ArrayList<Integer> mStatisticRangeSDHistory;
+    //
+    // Last samples of both, with their running averages.
+    private RollingStatistics mRangeStatistics;
+    private RollingStatistics mRangeSDStatistics;
 
     private WifiRttManager mWifiRttManager;
-    private RttRangingResultCallback mRttRangingResultCallback;
+    private RangingScheduler mRangingScheduler;
+
+    // Latest successful result for the chosen access point, and latest position.
+    private RangingResult mLastRangingResult;
+    private PositioningEngine.Position mPosition;
+
+    // Runs ranging requests, their callbacks and the statistics.
+    private HandlerThread mRangingThread;
+    private Handler mRangingHandler;
+
+    // Positions the device from the ranges of every access point on the floor plan, if there is
+    // one, on its own thread.
+    private ExecutorService mPositioningExecutor;
+    private PositioningEngine mPositioningEngine;
+    private ArrayList<RangeMeasurement> mPendingRanges = new ArrayList<>();
+
+    // Log of every result, or null if recording is off or the log couldn't be opened.
+    private RangingLogWriter mRecorder;
+
+    // Latest snapshot not drawn yet. A frame is only requested when this goes from null to a
+    // snapshot, so the UI is updated at most once per frame however fast results arrive.
+    private final AtomicReference<RangingSnapshot> mPendingSnapshot = new AtomicReference<>();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Choreographer.FrameCallback mDrawSnapshotCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    RangingSnapshot snapshot = mPendingSnapshot.getAndSet(null);
+                    if (snapshot != null) {
+                        drawSnapshot(snapshot);
+                    }
+                }
+            };
 
-    // Triggers additional RangingRequests with delay (mMillisecondsDelayBeforeNewRangingRequest).
-    final Handler mRangeRequestDelayHandler = new Handler();
+    private final Runnable mRequestFrameRunnable =
+            new Runnable() {
+                @Override
+                public void run() {
+                    Choreographer.getInstance().postFrameCallback(mDrawSnapshotCallback);
+                }
+            };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -116,6 +187,9 @@ public class AccessPointRangingResultsActivity extends AppCompatActivity {
         mSuccessesInBurstTextView = findViewById(R.id.successes_in_burst_value);
         mSuccessRatioTextView = findViewById(R.id.success_ratio_value);
         mNumberOfRequestsTextView = findViewById(R.id.number_of_requests_value);
+        mPositionTextView = findViewById(R.id.position_value);
+        mPositionTextView.setText(
+                R.string.position_unavailable_activity_access_point_ranging_results);
 
         mSampleSizeEditText = findViewById(R.id.stats_window_size_edit_value);
         mSampleSizeEditText.setText(SAMPLE_SIZE_DEFAULT + "");
@@ -125,12 +199,17 @@ public class AccessPointRangingResultsActivity extends AppCompatActivity {
         mMillisecondsDelayBeforeNewRangingRequestEditText.setText(
                 MILLISECONDS_DELAY_BEFORE_NEW_RANGING_REQUEST_DEFAULT + "");
 
+        final boolean record = getPreferences(MODE_PRIVATE).getBoolean(PREFERENCE_RECORD, false);
+        mRecordSwitch = findViewById(R.id.record_switch);
+        mRecordSwitch.setChecked(record);
+
         // Retrieve ScanResult from Intent.
         Intent intent = getIntent();
         mScanResult = intent.getParcelableExtra(SCAN_RESULT_EXTRA);
 
         if (mScanResult == null) {
             finish();
+            return;
         }
 
         mMAC = mScanResult.BSSID;
@@ -138,197 +217,403 @@ public class AccessPointRangingResultsActivity extends AppCompatActivity {
         mSsidTextView.setText(mScanResult.SSID);
         mBssidTextView.setText(mScanResult.BSSID);
 
+        mRangingThread = new HandlerThread("Ranging");
+        mRangingThread.start();
+        mRangingHandler = new Handler(mRangingThread.getLooper());
+
         mWifiRttManager = (WifiRttManager) getSystemService(Context.WIFI_RTT_RANGING_SERVICE);
-        mRttRangingResultCallback = new RttRangingResultCallback();
+        mRangingScheduler =
+                new RangingScheduler(mWifiRttManager, mRangingHandler, new RttRangingListener());
+
+        List<ScanResult> accessPoints = intent.getParcelableArrayListExtra(ACCESS_POINTS_EXTRA);
+        if (accessPoints == null) {
+            accessPoints = new ArrayList<>();
+        }
+        boolean found = false;
+        for (ScanResult accessPoint : accessPoints) {
+            found |= mMAC.equals(accessPoint.BSSID);
+        }
+        if (!found) {
+            accessPoints.add(0, mScanResult);
+        }
+        final List<ScanResult> accessPointsToRange = accessPoints;
+        mRangingHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        mRangingScheduler.setAccessPoints(accessPointsToRange);
+                        if (record) {
+                            startRecording();
+                        }
+                    }
+                });
+
+        // Positions are delivered on the ranging thread, to be published with the rest.
+        Executor rangingExecutor =
+                new Executor() {
+                    @Override
+                    public void execute(@NonNull Runnable command) {
+                        mRangingHandler.post(command);
+                    }
+                };
+        mPositioningExecutor = Executors.newSingleThreadExecutor();
+        mPositioningEngine =
+                new PositioningEngine(mPositioningExecutor, rangingExecutor, new PositionListener());
+        loadFloorPlan();
 
         // Used to store range (distance) and rangeSd (standard deviation of the measured distance)
         // history to calculate averages.
-        mStatisticRangeHistory = new ArrayList<>();
-        mStatisticRangeSDHistory = new ArrayList<>();
+        mRangeStatistics = new RollingStatistics(SAMPLE_SIZE_DEFAULT);
+        mRangeSDStatistics = new RollingStatistics(SAMPLE_SIZE_DEFAULT);
 
         resetData();
 
-        startRangingRequest();
+        startRanging();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mRangingThread != null) {
+            mRangingHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            mRangingScheduler.stop();
+                            stopRecording();
+                            // Only once no more ranging results can be submitted to it.
+                            mPositioningExecutor.shutdown();
+                        }
+                    });
+            mRangingThread.quitSafely();
+            mMainHandler.removeCallbacks(mRequestFrameRunnable);
+            Choreographer.getInstance().removeFrameCallback(mDrawSnapshotCallback);
+        }
+    }
+
+    // Reads the floor plan, if there is one, from the app's external files directory on the
+    // positioning thread.
+    private void loadFloorPlan() {
+        mPositioningExecutor.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        File file = new File(getExternalFilesDir(null), FloorPlan.FILE_NAME);
+                        try {
+                            FloorPlan floorPlan = FloorPlan.read(file);
+                            Log.d(TAG, "Floor plan with "
+                                    + floorPlan.getAccessPointCount() + " access points");
+                            mPositioningEngine.setFloorPlan(floorPlan);
+                        } catch (FileNotFoundException e) {
+                            Log.d(TAG, "No floor plan at " + file);
+                        } catch (IOException e) {
+                            Log.e(TAG, "Invalid floor plan " + file, e);
+                        }
+                    }
+                });
+    }
+
+    public void onRecordSwitchClick(View view) {
+        final boolean record = mRecordSwitch.isChecked();
+        getPreferences(MODE_PRIVATE).edit().putBoolean(PREFERENCE_RECORD, record).apply();
+        mRangingHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (record) {
+                            startRecording();
+                        } else {
+                            stopRecording();
+                        }
+                    }
+                });
+    }
+
+    // Opens a new log, on the ranging thread, after making room for it.
+    private void startRecording() {
+        if (mRecorder != null) {
+            return;
+        }
+        File directory = new File(getExternalFilesDir(null), RECORDINGS_DIRECTORY);
+        String name =
+                new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+                        + RECORDING_EXTENSION;
+        File file = new File(directory, name);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create " + directory);
+            }
+            deleteOldRecordings(directory);
+            mRecorder = new RangingLogWriter(new FileOutputStream(file));
+            Log.d(TAG, "Recording to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't record to " + file, e);
+        }
+    }
+
+    private void stopRecording() {
+        if (mRecorder != null) {
+            try {
+                mRecorder.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Recording failed", e);
+            }
+            mRecorder = null;
+        }
+    }
+
+    // Deletes the logs past MAX_RECORDING_AGE_MILLIS, then the oldest until the rest, and a new
+    // log of MAX_RECORDING_BYTES, fit in MAX_RECORDINGS_BYTES.
+    private static void deleteOldRecordings(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+        long oldestMillis = System.currentTimeMillis() - MAX_RECORDING_AGE_MILLIS;
+        long totalBytes = MAX_RECORDING_BYTES;
+        for (File file : files) {
+            if (!file.getName().endsWith(RECORDING_EXTENSION)) {
+                continue;
+            }
+            totalBytes += file.length();
+            if (file.lastModified() < oldestMillis || totalBytes > MAX_RECORDINGS_BYTES) {
+                Log.d(TAG, "Deleting old recording " + file);
+                if (!file.delete()) {
+                    Log.w(TAG, "Can't delete " + file);
+                }
+            }
+        }
+    }
+
+    // Runs on the ranging thread. Recording stops at the first error. The log is rotated between
+    // requests, so each one holds whole requests.
+    private void record(RangeMeasurement result, boolean endOfRequest) {
+        if (mRecorder == null) {
+            return;
+        }
+        try {
+            if (result != null) {
+                mRecorder.write(result);
+            }
+            if (endOfRequest) {
+                mRecorder.endRequest();
+                if (mRecorder.getBytesWritten() >= MAX_RECORDING_BYTES) {
+                    stopRecording();
+                    startRecording();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Recording failed", e);
+            stopRecording();
+        }
+    }
+
+    // Copies what the positioning and the recording need out of a result.
+    private static RangeMeasurement toRangeMeasurement(
+            ScanResult accessPoint, RangingResult rangingResult) {
+        if (rangingResult.getStatus() != RangingResult.STATUS_SUCCESS) {
+            // The other getters throw for failed results.
+            return RangeMeasurement.failure(
+                    accessPoint.BSSID, SystemClock.elapsedRealtime(), rangingResult.getStatus());
+        }
+        return new RangeMeasurement(
+                accessPoint.BSSID,
+                rangingResult.getRangingTimestampMillis(),
+                rangingResult.getStatus(),
+                rangingResult.getDistanceMm(),
+                rangingResult.getDistanceStdDevMm(),
+                rangingResult.getRssi(),
+                rangingResult.getNumSuccessfulMeasurements(),
+                rangingResult.getNumAttemptedMeasurements());
+    }
+
+    // Reads the settings from the UI, and applies them on the ranging thread.
     private void resetData() {
-        mSampleSize = Integer.parseInt(mSampleSizeEditText.getText().toString());
+        final int sampleSize =
+                Math.max(1, Integer.parseInt(mSampleSizeEditText.getText().toString()));
 
-        mMillisecondsDelayBeforeNewRangingRequest =
+        final int millisecondsDelayBeforeNewRangingRequest =
                 Integer.parseInt(
                         mMillisecondsDelayBeforeNewRangingRequestEditText.getText().toString());
 
-        mNumberOfSuccessfulRangeRequests = 0;
-        mNumberOfRangeRequests = 0;
+        mRangingHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        mRangingScheduler.setMinInterval(millisecondsDelayBeforeNewRangingRequest);
+                        mRangingScheduler.reset();
 
-        mStatisticRangeHistoryEndIndex = 0;
-        mStatisticRangeHistory.clear();
+                        mRangeStatistics.setCapacity(sampleSize);
+                        mRangeStatistics.clear();
 
-        mStatisticRangeSDHistoryEndIndex = 0;
-        mStatisticRangeSDHistory.clear();
+                        mRangeSDStatistics.setCapacity(sampleSize);
+                        mRangeSDStatistics.clear();
+                    }
+                });
     }
 
-    private void startRangingRequest() {
+    private void startRanging() {
         // Permission for fine location should already be granted via MainActivity (you can't get
         // to this class unless you already have permission. If they get to this class, then disable
         // fine location permission, we kick them back to main activity.
         if (ActivityCompat.checkSelfPermission(this, permission.ACCESS_FINE_LOCATION)
                 != PackageManager.PERMISSION_GRANTED) {
             finish();
+            return;
         }
 
-        mNumberOfRangeRequests++;
-
-        RangingRequest rangingRequest =
-                new RangingRequest.Builder().addAccessPoint(mScanResult).build();
-
-        mWifiRttManager.startRanging(
-                rangingRequest, getApplication().getMainExecutor(), mRttRangingResultCallback);
+        mRangingHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        mRangingScheduler.start();
+                    }
+                });
     }
 
-    // Calculates average distance based on stored history.
-    private float getDistanceMean() {
-        float distanceSum = 0;
+    public void onResetButtonClick(View view) {
+        resetData();
+    }
 
-        for (int distance : mStatisticRangeHistory) {
-            distanceSum += distance;
+    // Captures what the UI shows, on the ranging thread, and requests a frame to draw it if one
+    // isn't pending already.
+    private void publishSnapshot() {
+        int numberOfRangeRequests = mRangingScheduler.getRequestCount(mMAC);
+        float successRatio =
+                numberOfRangeRequests > 0
+                        ? ((float) mRangingScheduler.getSuccessCount(mMAC)
+                                        / (float) numberOfRangeRequests)
+                                * 100
+                        : 0;
+        RangingSnapshot snapshot =
+                new RangingSnapshot(
+                        mLastRangingResult,
+                        mRangeStatistics.getMean(),
+                        mRangeSDStatistics.getMean(),
+                        successRatio,
+                        numberOfRangeRequests,
+                        mPosition);
+        if (mPendingSnapshot.getAndSet(snapshot) == null) {
+            mMainHandler.post(mRequestFrameRunnable);
         }
-
-        return distanceSum / mStatisticRangeHistory.size();
     }
 
-    // Adds distance to history. If larger than sample size value, loops back over and replaces the
-    // oldest distance record in the list.
-    private void addDistanceToHistory(int distance) {
+    private void drawSnapshot(RangingSnapshot snapshot) {
+        RangingResult rangingResult = snapshot.rangingResult;
+        if (rangingResult != null) {
+            mRangeTextView.setText((rangingResult.getDistanceMm() / 1000f) + "");
+            mRangeMeanTextView.setText((snapshot.distanceMean / 1000f) + "");
 
-        if (mStatisticRangeHistory.size() >= mSampleSize) {
+            mRangeSDTextView.setText((rangingResult.getDistanceStdDevMm() / 1000f) + "");
+            mRangeSDMeanTextView.setText((snapshot.distanceStdDevMean / 1000f) + "");
 
-            if (mStatisticRangeHistoryEndIndex >= mSampleSize) {
-                mStatisticRangeHistoryEndIndex = 0;
-            }
-
-            mStatisticRangeHistory.set(mStatisticRangeHistoryEndIndex, distance);
-            mStatisticRangeHistoryEndIndex++;
-
-        } else {
-            mStatisticRangeHistory.add(distance);
+            mRssiTextView.setText(rangingResult.getRssi() + "");
+            mSuccessesInBurstTextView.setText(
+                    rangingResult.getNumSuccessfulMeasurements()
+                            + "/"
+                            + rangingResult.getNumAttemptedMeasurements());
         }
-    }
 
-    // Calculates standard deviation of the measured distance based on stored history.
-    private float getStandardDeviationOfDistanceMean() {
-        float distanceSdSum = 0;
-
-        for (int distanceSd : mStatisticRangeSDHistory) {
-            distanceSdSum += distanceSd;
+        mSuccessRatioTextView.setText(snapshot.successRatio + "%");
+        mNumberOfRequestsTextView.setText(snapshot.numberOfRangeRequests + "");
+
+        PositioningEngine.Position position = snapshot.position;
+        if (position != null) {
+            mPositionTextView.setText(
+                    getString(
+                            R.string.position_value_activity_access_point_ranging_results,
+                            position.x,
+                            position.y,
+                            position.accuracy));
         }
-
-        return distanceSdSum / mStatisticRangeHistory.size();
     }
 
-    // Adds standard deviation of the measured distance to history. If larger than sample size
-    // value, loops back over and replaces the oldest distance record in the list.
-    private void addStandardDeviationOfDistanceToHistory(int distanceSd) {
-
-        if (mStatisticRangeSDHistory.size() >= mSampleSize) {
-
-            if (mStatisticRangeSDHistoryEndIndex >= mSampleSize) {
-                mStatisticRangeSDHistoryEndIndex = 0;
-            }
-
-            mStatisticRangeSDHistory.set(mStatisticRangeSDHistoryEndIndex, distanceSd);
-            mStatisticRangeSDHistoryEndIndex++;
-
-        } else {
-            mStatisticRangeSDHistory.add(distanceSd);
+    // Everything the UI shows, captured at one point in time on the ranging thread.
+    private static class RangingSnapshot {
+        final RangingResult rangingResult;
+        final float distanceMean;
+        final float distanceStdDevMean;
+        final float successRatio;
+        final int numberOfRangeRequests;
+        final PositioningEngine.Position position;
+
+        RangingSnapshot(
+                RangingResult rangingResult,
+                float distanceMean,
+                float distanceStdDevMean,
+                float successRatio,
+                int numberOfRangeRequests,
+                PositioningEngine.Position position) {
+            this.rangingResult = rangingResult;
+            this.distanceMean = distanceMean;
+            this.distanceStdDevMean = distanceStdDevMean;
+            this.successRatio = successRatio;
+            this.numberOfRangeRequests = numberOfRangeRequests;
+            this.position = position;
         }
     }
 
-    public void onResetButtonClick(View view) {
-        resetData();
-    }
-
-    // Class that handles callbacks for all RangingRequests and issues new RangingRequests.
-    private class RttRangingResultCallback extends RangingResultCallback {
-
-        private void queueNextRangingRequest() {
-            mRangeRequestDelayHandler.postDelayed(
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            startRangingRequest();
-                        }
-                    },
-                    mMillisecondsDelayBeforeNewRangingRequest);
-        }
+    // Receives the results for every access point ranged, on the ranging thread, and keeps the
+    // statistics of the one chosen by the user.
+    private class RttRangingListener implements RangingScheduler.Listener {
 
         @Override
         public void onRangingFailure(int code) {
             Log.d(TAG, "onRangingFailure() code: " + code);
-            queueNextRangingRequest();
         }
 
         @Override
-        public void onRangingResults(@NonNull List<RangingResult> list) {
-            Log.d(TAG, "onRangingResults(): " + list);
-
-            // Because we are only requesting RangingResult for one access point (not multiple
-            // access points), this will only ever be one. (Use loops when requesting RangingResults
-            // for multiple access points.)
-            if (list.size() == 1) {
-
-                RangingResult rangingResult = list.get(0);
-
-                if (mMAC.equals(rangingResult.getMacAddress().toString())) {
+        public void onRangingResult(
+                @NonNull ScanResult accessPoint, @NonNull RangingResult rangingResult) {
+            Log.d(TAG, "onRangingResult(): " + rangingResult);
 
-                    if (rangingResult.getStatus() == RangingResult.STATUS_SUCCESS) {
+            RangeMeasurement rangeMeasurement = toRangeMeasurement(accessPoint, rangingResult);
+            mPendingRanges.add(rangeMeasurement);
+            record(rangeMeasurement, false);
 
-                        mNumberOfSuccessfulRangeRequests++;
-
-                        mRangeTextView.setText((rangingResult.getDistanceMm() / 1000f) + "");
-                        addDistanceToHistory(rangingResult.getDistanceMm());
-                        mRangeMeanTextView.setText((getDistanceMean() / 1000f) + "");
-
-                        mRangeSDTextView.setText(
-                                (rangingResult.getDistanceStdDevMm() / 1000f) + "");
-                        addStandardDeviationOfDistanceToHistory(
-                                rangingResult.getDistanceStdDevMm());
-                        mRangeSDMeanTextView.setText(
-                                (getStandardDeviationOfDistanceMean() / 1000f) + "");
-
-                        mRssiTextView.setText(rangingResult.getRssi() + "");
-                        mSuccessesInBurstTextView.setText(
-                                rangingResult.getNumSuccessfulMeasurements()
-                                        + "/"
-                                        + rangingResult.getNumAttemptedMeasurements());
+            if (!mMAC.equals(accessPoint.BSSID)) {
+                return;
+            }
 
-                        float successRatio =
-                                ((float) mNumberOfSuccessfulRangeRequests
-                                                / (float) mNumberOfRangeRequests)
-                                        * 100;
-                        mSuccessRatioTextView.setText(successRatio + "%");
+            if (rangingResult.getStatus() == RangingResult.STATUS_SUCCESS) {
+                mLastRangingResult = rangingResult;
+                mRangeStatistics.add(rangingResult.getDistanceMm());
+                mRangeSDStatistics.add(rangingResult.getDistanceStdDevMm());
 
-                        mNumberOfRequestsTextView.setText(mNumberOfRangeRequests + "");
+            } else if (rangingResult.getStatus()
+                    == RangingResult.STATUS_RESPONDER_DOES_NOT_SUPPORT_IEEE80211MC) {
+                Log.d(TAG, "RangingResult failed (AP doesn't support IEEE80211 MC.");
 
-                    } else if (rangingResult.getStatus()
-                            == RangingResult.STATUS_RESPONDER_DOES_NOT_SUPPORT_IEEE80211MC) {
-                        Log.d(TAG, "RangingResult failed (AP doesn't support IEEE80211 MC.");
+            } else {
+                Log.d(TAG, "RangingResult failed.");
+            }
 
-                    } else {
-                        Log.d(TAG, "RangingResult failed.");
-                    }
+            publishSnapshot();
+        }
 
-                } else {
-                    Toast.makeText(
-                                    getApplicationContext(),
-                                    R.string
-                                            .mac_mismatch_message_activity_access_point_ranging_results,
-                                    Toast.LENGTH_LONG)
-                            .show();
-                }
+        @Override
+        public void onRangingComplete() {
+            record(null, true);
+            if (!mPendingRanges.isEmpty()) {
+                mPositioningEngine.submit(mPendingRanges);
+                mPendingRanges = new ArrayList<>();
             }
+        }
+    }
+
+    // Receives positions on the ranging thread.
+    private class PositionListener implements PositioningEngine.Listener {
 
-            queueNextRangingRequest();
+        @Override
+        public void onPosition(PositioningEngine.Position position) {
+            mPosition = position;
+            publishSnapshot();
         }
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.wifirttscan;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Positions of the access points in a building, in meters, in a frame chosen by whoever
+ * surveyed it.
+ *
+ * <p>The file is plain text, one access point per line as {@code <bssid> <x> <y> [<z>]}, with the
+ * height z defaulting to 0. A {@code height <z>} line sets the height at which the device is
+ * assumed to be held, 1 meter by default. Everything after a '#' is a comment.
+ *
+ * <pre>
+ * # Second floor, origin at the north-west corner.
+ * height 1.2
+ * 00:11:22:33:44:55  3.5  12.0  2.8
+ * 00:11:22:33:44:66 21.0   4.5  2.8
+ * </pre>
+ */
+public class FloorPlan {
+
+    // Name of the floor plan file in the app's external files directory.
+    public static final String FILE_NAME = "floor_plan.txt";
+
+    private static final double DEFAULT_DEVICE_HEIGHT = 1;
+
+    private final HashMap<String, double[]> mAccessPoints = new HashMap<>();
+
+    private double mDeviceHeight = DEFAULT_DEVICE_HEIGHT;
+
+    public static FloorPlan read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(new InputStreamReader(in, "UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    public static FloorPlan read(Reader reader) throws IOException {
+        FloorPlan floorPlan = new FloorPlan();
+        BufferedReader lines = new BufferedReader(reader);
+        int lineNumber = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields[0].equals("height") && fields.length == 2) {
+                    floorPlan.mDeviceHeight = Double.parseDouble(fields[1]);
+                } else if (fields.length == 3 || fields.length == 4) {
+                    floorPlan.addAccessPoint(
+                            fields[0],
+                            Double.parseDouble(fields[1]),
+                            Double.parseDouble(fields[2]),
+                            fields.length == 4 ? Double.parseDouble(fields[3]) : 0);
+                } else {
+                    throw new IOException(
+                            "Line " + lineNumber + ": expected <bssid> <x> <y> [<z>]");
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        return floorPlan;
+    }
+
+    public void addAccessPoint(String bssid, double x, double y, double z) {
+        mAccessPoints.put(bssid.toLowerCase(Locale.US), new double[] {x, y, z});
+    }
+
+    /**
+     * Returns {x, y, z} of an access point, or null if it isn't on the plan. The array must not
+     * be modified.
+     */
+    public double[] getLocation(String bssid) {
+        return mAccessPoints.get(bssid.toLowerCase(Locale.US));
+    }
+
+    public int getAccessPointCount() {
+        return mAccessPoints.size();
+    }
+
+    public double getDeviceHeight() {
+        return mDeviceHeight;
+    }
+}
@@ -15,10 +15,10 @@
  */
 package com.example.android.wifirttscan;
 
+import static com.example.android.wifirttscan.AccessPointRangingResultsActivity.ACCESS_POINTS_EXTRA;
 import static com.example.android.wifirttscan.AccessPointRangingResultsActivity.SCAN_RESULT_EXTRA;
 
 import android.Manifest.permission;
-import android.annotation.SuppressLint;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -26,8 +26,8 @@ import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
-import android.net.wifi.rtt.RangingRequest;
 import android.os.Bundle;
+import android.os.Handler;
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 import androidx.appcompat.app.AppCompatActivity;
@@ -46,6 +46,9 @@ import java.util.List;
 /**
  * Displays list of Access Points enabled with WifiRTT (to check distance). Requests location
  * permissions if they are not approved via secondary splash screen explaining why they are needed.
+ *
+ * <p>Once requested, the list is kept current by a {@link ScanScheduler} while the activity is in
+ * the foreground, within the platform scan throttle.
  */
 public class MainActivity extends AppCompatActivity implements ScanResultClickListener {
 
@@ -57,6 +60,7 @@ public class MainActivity extends AppCompatActivity implements ScanResultClickLi
 
     private WifiManager mWifiManager;
     private WifiScanReceiver mWifiScanReceiver;
+    private ScanScheduler mScanScheduler;
 
     private TextView mOutputTextView;
     private RecyclerView mRecyclerView;
@@ -86,6 +90,8 @@ public class MainActivity extends AppCompatActivity implements ScanResultClickLi
 
         mWifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
         mWifiScanReceiver = new WifiScanReceiver();
+        mScanScheduler =
+                new ScanScheduler(mWifiManager, new Handler(), new ScanResultsListener());
     }
 
     @Override
@@ -99,6 +105,10 @@ public class MainActivity extends AppCompatActivity implements ScanResultClickLi
 
         registerReceiver(
                 mWifiScanReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+
+        if (mLocationPermissionApproved) {
+            mScanScheduler.resume();
+        }
     }
 
     @Override
@@ -106,6 +116,7 @@ public class MainActivity extends AppCompatActivity implements ScanResultClickLi
         Log.d(TAG, "onPause()");
         super.onPause();
         unregisterReceiver(mWifiScanReceiver);
+        mScanScheduler.pause();
     }
 
     private void logToUi(final String message) {
@@ -121,13 +132,17 @@ public class MainActivity extends AppCompatActivity implements ScanResultClickLi
 
         Intent intent = new Intent(this, AccessPointRangingResultsActivity.class);
         intent.putExtra(SCAN_RESULT_EXTRA, scanResult);
+        // The other access points are ranged alongside the selected one.
+        intent.putParcelableArrayListExtra(
+                ACCESS_POINTS_EXTRA, new ArrayList<>(mAccessPointsSupporting80211mc));
         startActivity(intent);
     }
 
     public void onClickFindDistancesToAccessPoints(View view) {
         if (mLocationPermissionApproved) {
             logToUi(getString(R.string.retrieving_access_points));
-            mWifiManager.startScan();
+            // Shows the cached results right away, and scans if they are stale.
+            mScanScheduler.requestScan();
 
         } else {
             // On 23+ (M+) devices, fine location permission not granted. Request permission.
@@ -136,48 +151,46 @@ public class MainActivity extends AppCompatActivity implements ScanResultClickLi
         }
     }
 
-    private class WifiScanReceiver extends BroadcastReceiver {
-
-        private List<ScanResult> find80211mcSupportedAccessPoints(
-                @NonNull List<ScanResult> originalList) {
-            List<ScanResult> newList = new ArrayList<>();
-
-            for (ScanResult scanResult : originalList) {
+    private List<ScanResult> find80211mcSupportedAccessPoints(
+            @NonNull List<ScanResult> originalList) {
+        List<ScanResult> newList = new ArrayList<>();
 
-                if (scanResult.is80211mcResponder()) {
-                    newList.add(scanResult);
-                }
+        for (ScanResult scanResult : originalList) {
 
-                if (newList.size() >= RangingRequest.getMaxPeers()) {
-                    break;
-                }
+            // Not capped at RangingRequest.getMaxPeers(); RangingScheduler splits larger
+            // sets across requests.
+            if (scanResult.is80211mcResponder()) {
+                newList.add(scanResult);
             }
-            return newList;
         }
+        return newList;
+    }
 
-        // This is checked via mLocationPermissionApproved boolean
-        @SuppressLint("MissingPermission")
-        public void onReceive(Context context, Intent intent) {
+    private class ScanResultsListener implements ScanScheduler.Listener {
 
-            List<ScanResult> scanResults = mWifiManager.getScanResults();
+        @Override
+        public void onScanResults(List<ScanResult> scanResults) {
+            // Only updates the rows that changed. The list is shared with the adapter.
+            mAdapter.updateData(find80211mcSupportedAccessPoints(scanResults));
 
-            if (scanResults != null) {
+            logToUi(
+                    scanResults.size()
+                            + " APs discovered, "
+                            + mAccessPointsSupporting80211mc.size()
+                            + " RTT capable.");
+        }
+    }
 
-                if (mLocationPermissionApproved) {
-                    mAccessPointsSupporting80211mc = find80211mcSupportedAccessPoints(scanResults);
+    private class WifiScanReceiver extends BroadcastReceiver {
 
-                    mAdapter.swapData(mAccessPointsSupporting80211mc);
+        public void onReceive(Context context, Intent intent) {
 
-                    logToUi(
-                            scanResults.size()
-                                    + " APs discovered, "
-                                    + mAccessPointsSupporting80211mc.size()
-                                    + " RTT capable.");
+            if (mLocationPermissionApproved) {
+                mScanScheduler.onScanResultsAvailable();
 
-                } else {
-                    // TODO (jewalker): Add Snackbar regarding permissions
-                    Log.d(TAG, "Permissions not allowed.");
-                }
+            } else {
+                // TODO (jewalker): Add Snackbar regarding permissions
+                Log.d(TAG, "Permissions not allowed.");
             }
         }
     }
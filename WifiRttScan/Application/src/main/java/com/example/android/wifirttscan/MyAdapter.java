@@ -16,6 +16,7 @@
 package com.example.android.wifirttscan;
 
 import android.net.wifi.ScanResult;
+import android.text.TextUtils;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.recyclerview.widget.RecyclerView.ViewHolder;
 import android.view.LayoutInflater;
@@ -23,7 +24,9 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Displays the ssid and bssid from a list of {@link ScanResult}s including a header at the top of
@@ -67,16 +70,47 @@ public class MyAdapter extends RecyclerView.Adapter<ViewHolder> {
         }
     }
 
-    public void swapData(List<ScanResult> list) {
-
-        // Always clear with any update, as even an empty list means no WifiRtt devices were found.
-        mWifiAccessPointsWithRtt.clear();
+    /**
+     * Updates the list to the access points in the given one, matched by BSSID. Access points
+     * still present keep their place and are only rebound if their SSID changed, gone ones are
+     * removed and new ones added at the end, so the list doesn't jump around between scans.
+     */
+    public void updateData(List<ScanResult> list) {
+        Map<String, ScanResult> newAccessPoints = new HashMap<>();
+        for (ScanResult scanResult : list) {
+            newAccessPoints.put(scanResult.BSSID, scanResult);
+        }
 
-        if ((list != null) && (list.size() > 0)) {
-            mWifiAccessPointsWithRtt.addAll(list);
+        // Backwards, so removals don't shift the positions still to visit.
+        for (int i = mWifiAccessPointsWithRtt.size() - 1; i >= 0; i--) {
+            ScanResult oldScanResult = mWifiAccessPointsWithRtt.get(i);
+            // Removed from the map so only the new access points are left in it.
+            ScanResult newScanResult = newAccessPoints.remove(oldScanResult.BSSID);
+
+            if (newScanResult == null) {
+                mWifiAccessPointsWithRtt.remove(i);
+                notifyItemRemoved(i + 1);
+
+            } else {
+                // Always replaced, so a click passes on the latest result.
+                mWifiAccessPointsWithRtt.set(i, newScanResult);
+                if (!TextUtils.equals(oldScanResult.SSID, newScanResult.SSID)) {
+                    notifyItemChanged(i + 1);
+                }
+            }
         }
 
-        notifyDataSetChanged();
+        if (!newAccessPoints.isEmpty()) {
+            int start = mWifiAccessPointsWithRtt.size();
+            // In scan order, once per BSSID.
+            for (ScanResult scanResult : list) {
+                ScanResult newScanResult = newAccessPoints.remove(scanResult.BSSID);
+                if (newScanResult != null) {
+                    mWifiAccessPointsWithRtt.add(newScanResult);
+                }
+            }
+            notifyItemRangeInserted(start + 1, mWifiAccessPointsWithRtt.size() - start);
+        }
     }
 
     @Override
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.wifirttscan;
+
+/**
+ * Extended Kalman filter that tracks the horizontal position and velocity of the device from
+ * individual ranges to access points.
+ *
+ * <p>The device is modelled as moving at a constant velocity disturbed by random accelerations of
+ * about walking pace. Each range is applied on its own, linearized around the current estimate,
+ * so the filter keeps improving even when fewer than three access points answer, which a
+ * least squares fix can't do. Ranges that disagree with the estimate by more than {@link #GATE}
+ * standard deviations are rejected as multipath outliers.
+ *
+ * <p>The state is {x, y, vx, vy} in meters and meters per second. Allocates nothing. Not thread
+ * safe.
+ */
+public class PositionFilter {
+
+    private static final int N = 4;
+
+    // Spectral density of the random acceleration, in m^2/s^3.
+    private static final double ACCELERATION_NOISE = 0.5;
+
+    // Standard deviation of the velocity when the filter starts, in m/s.
+    private static final double INITIAL_SPEED_STD_DEV = 1;
+
+    // Ranges this many standard deviations away from the prediction are rejected.
+    private static final double GATE = 3;
+
+    private final double[] mState = new double[N];
+    // Row-major N x N covariance.
+    private final double[] mCovariance = new double[N * N];
+
+    private final double[] mScratch = new double[N * N];
+    private final double[] mGain = new double[N];
+
+    private boolean mInitialized;
+
+    public boolean isInitialized() {
+        return mInitialized;
+    }
+
+    /**
+     * Starts the filter at a position, at rest.
+     *
+     * @param covariance Covariance of the position as {xx, xy, yy}.
+     */
+    public void initialize(double x, double y, double[] covariance) {
+        mState[0] = x;
+        mState[1] = y;
+        mState[2] = 0;
+        mState[3] = 0;
+        for (int i = 0; i < N * N; i++) {
+            mCovariance[i] = 0;
+        }
+        mCovariance[0] = covariance[0];
+        mCovariance[1] = covariance[1];
+        mCovariance[N] = covariance[1];
+        mCovariance[N + 1] = covariance[2];
+        double speedVariance = INITIAL_SPEED_STD_DEV * INITIAL_SPEED_STD_DEV;
+        mCovariance[2 * N + 2] = speedVariance;
+        mCovariance[3 * N + 3] = speedVariance;
+        mInitialized = true;
+    }
+
+    public void reset() {
+        mInitialized = false;
+    }
+
+    /**
+     * Moves the estimate forward in time, growing its uncertainty.
+     */
+    public void predict(double seconds) {
+        if (seconds <= 0) {
+            return;
+        }
+        double t = seconds;
+        mState[0] += t * mState[2];
+        mState[1] += t * mState[3];
+
+        // P = F P F^T, with F the identity plus t in (0, 2) and (1, 3). Rows first, then columns.
+        double[] p = mCovariance;
+        for (int j = 0; j < N; j++) {
+            p[j] += t * p[2 * N + j];
+            p[N + j] += t * p[3 * N + j];
+        }
+        for (int i = 0; i < N; i++) {
+            p[i * N] += t * p[i * N + 2];
+            p[i * N + 1] += t * p[i * N + 3];
+        }
+
+        // Plus Q for white noise acceleration on each axis.
+        double q = ACCELERATION_NOISE;
+        double t2 = t * t;
+        double t3 = t2 * t;
+        for (int axis = 0; axis < 2; axis++) {
+            int position = axis;
+            int velocity = axis + 2;
+            p[position * N + position] += q * t3 / 3;
+            p[position * N + velocity] += q * t2 / 2;
+            p[velocity * N + position] += q * t2 / 2;
+            p[velocity * N + velocity] += q * t;
+        }
+    }
+
+    /**
+     * Corrects the estimate with a range to an access point.
+     *
+     * @param heightDifference Height of the access point above the device, in meters.
+     * @param range Measured distance, in meters.
+     * @param stdDev Standard deviation of the range, in meters.
+     * @return false if the range was rejected as an outlier.
+     */
+    public boolean update(
+            double apX, double apY, double heightDifference, double range, double stdDev) {
+        double dx = mState[0] - apX;
+        double dy = mState[1] - apY;
+        double predicted = Math.sqrt(dx * dx + dy * dy + heightDifference * heightDifference);
+        if (predicted < 1e-6) {
+            return false;
+        }
+        // The measurement Jacobian H is {hx, hy, 0, 0}.
+        double hx = dx / predicted;
+        double hy = dy / predicted;
+
+        // P H^T, and the innovation variance S = H P H^T + R.
+        double[] p = mCovariance;
+        double[] pht = mGain;
+        for (int i = 0; i < N; i++) {
+            pht[i] = p[i * N] * hx + p[i * N + 1] * hy;
+        }
+        double innovationVariance = hx * pht[0] + hy * pht[1] + stdDev * stdDev;
+        double innovation = range - predicted;
+        if (innovation * innovation > GATE * GATE * innovationVariance) {
+            return false;
+        }
+
+        // K = P H^T / S; x += K * innovation; P -= K (P H^T)^T.
+        for (int i = 0; i < N; i++) {
+            mState[i] += pht[i] / innovationVariance * innovation;
+        }
+        for (int i = 0; i < N; i++) {
+            double gain = pht[i] / innovationVariance;
+            for (int j = 0; j < N; j++) {
+                mScratch[i * N + j] = p[i * N + j] - gain * pht[j];
+            }
+        }
+        // Keep P symmetric against rounding.
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                p[i * N + j] = (mScratch[i * N + j] + mScratch[j * N + i]) / 2;
+            }
+        }
+        return true;
+    }
+
+    public double getX() {
+        return mState[0];
+    }
+
+    public double getY() {
+        return mState[1];
+    }
+
+    public double getSpeed() {
+        return Math.sqrt(mState[2] * mState[2] + mState[3] * mState[3]);
+    }
+
+    /**
+     * Returns the square root of the sum of the variances of x and y, a rough radius of the
+     * position's uncertainty, in meters.
+     */
+    public double getAccuracy() {
+        return Math.sqrt(Math.max(0, mCovariance[0] + mCovariance[N + 1]));
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.wifirttscan;
+
+/**
+ * Finds the horizontal position that best explains a set of ranges to access points at known
+ * positions, by weighted nonlinear least squares solved with Gauss-Newton iterations.
+ *
+ * <p>Each range is weighted by the inverse of its variance, so precise ranges pull harder. The
+ * height difference between the device and each access point is known and taken out of the
+ * range, leaving two unknowns, so at least three access points that are not in a line are
+ * needed.
+ *
+ * <p>Allocates nothing once constructed. Not thread safe.
+ */
+public class PositionSolver {
+
+    private static final int MAX_ITERATIONS = 10;
+
+    // Iterations stop once a step moves the position by less than this, in meters.
+    private static final double CONVERGENCE = 0.001;
+
+    // Determinant of the normal matrix below which the geometry can't fix the position.
+    private static final double MIN_DETERMINANT = 1e-9;
+
+    private final double[] mX;
+    private final double[] mY;
+    private final double[] mHeight;
+    private final double[] mRange;
+    private final double[] mWeight;
+    private int mCount;
+
+    private double mSolutionX;
+    private double mSolutionY;
+    private final double[] mCovariance = new double[3];
+    private double mResidual;
+
+    public PositionSolver(int maxAccessPoints) {
+        mX = new double[maxAccessPoints];
+        mY = new double[maxAccessPoints];
+        mHeight = new double[maxAccessPoints];
+        mRange = new double[maxAccessPoints];
+        mWeight = new double[maxAccessPoints];
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Adds the range to one access point. Ranges beyond the capacity given to the constructor are
+     * ignored.
+     *
+     * @param heightDifference Height of the access point above the device, in meters.
+     * @param range Measured distance, in meters.
+     * @param stdDev Standard deviation of the range, in meters; must be positive.
+     */
+    public void add(double x, double y, double heightDifference, double range, double stdDev) {
+        if (mCount == mX.length) {
+            return;
+        }
+        mX[mCount] = x;
+        mY[mCount] = y;
+        mHeight[mCount] = heightDifference;
+        mRange[mCount] = range;
+        mWeight[mCount] = 1 / (stdDev * stdDev);
+        mCount++;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Solves for the position from the ranges added since the last {@link #clear()}.
+     *
+     * @return false if there are too few ranges, or the access points are too close to a line.
+     */
+    public boolean solve() {
+        if (mCount < 3) {
+            return false;
+        }
+
+        // Start from the centroid of the access points, weighted towards the nearest.
+        double x = 0;
+        double y = 0;
+        double weightSum = 0;
+        for (int i = 0; i < mCount; i++) {
+            double weight = 1 / Math.max(mRange[i], 1);
+            x += weight * mX[i];
+            y += weight * mY[i];
+            weightSum += weight;
+        }
+        x /= weightSum;
+        y /= weightSum;
+
+        double a00 = 0;
+        double a01 = 0;
+        double a11 = 0;
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            // Normal equations A * step = b, with A = J^T W J and b = J^T W (range - predicted).
+            a00 = 0;
+            a01 = 0;
+            a11 = 0;
+            double b0 = 0;
+            double b1 = 0;
+            for (int i = 0; i < mCount; i++) {
+                double dx = x - mX[i];
+                double dy = y - mY[i];
+                double predicted = Math.sqrt(dx * dx + dy * dy + mHeight[i] * mHeight[i]);
+                if (predicted < 1e-6) {
+                    continue;
+                }
+                double jx = dx / predicted;
+                double jy = dy / predicted;
+                double weight = mWeight[i];
+                double error = mRange[i] - predicted;
+                a00 += weight * jx * jx;
+                a01 += weight * jx * jy;
+                a11 += weight * jy * jy;
+                b0 += weight * jx * error;
+                b1 += weight * jy * error;
+            }
+
+            double determinant = a00 * a11 - a01 * a01;
+            if (determinant < MIN_DETERMINANT * (a00 + a11) * (a00 + a11)) {
+                return false;
+            }
+            double stepX = (a11 * b0 - a01 * b1) / determinant;
+            double stepY = (a00 * b1 - a01 * b0) / determinant;
+            x += stepX;
+            y += stepY;
+            if (stepX * stepX + stepY * stepY < CONVERGENCE * CONVERGENCE) {
+                break;
+            }
+        }
+
+        double determinant = a00 * a11 - a01 * a01;
+        mCovariance[0] = a11 / determinant;
+        mCovariance[1] = -a01 / determinant;
+        mCovariance[2] = a00 / determinant;
+
+        double residual = 0;
+        for (int i = 0; i < mCount; i++) {
+            double dx = x - mX[i];
+            double dy = y - mY[i];
+            double error = mRange[i] - Math.sqrt(dx * dx + dy * dy + mHeight[i] * mHeight[i]);
+            residual += mWeight[i] * error * error;
+        }
+
+        mSolutionX = x;
+        mSolutionY = y;
+        mResidual = residual;
+        return true;
+    }
+
+    public double getX() {
+        return mSolutionX;
+    }
+
+    public double getY() {
+        return mSolutionY;
+    }
+
+    /**
+     * Returns the covariance of the solution as {xx, xy, yy}, in square meters. The array must
+     * not be modified.
+     */
+    public double[] getCovariance() {
+        return mCovariance;
+    }
+
+    /**
+     * Returns the weighted sum of squared range errors at the solution. Divided by the number of
+     * ranges minus two it should be close to 1; much larger values mean some ranges are off, for
+     * example because of multipath or an access point that moved.
+     */
+    public double getResidual() {
+        return mResidual;
+    }
+}
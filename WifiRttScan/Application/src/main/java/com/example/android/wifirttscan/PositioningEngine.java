@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.wifirttscan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Turns batches of ranges to access points on a {@link FloorPlan} into positions of the device.
+ *
+ * <p>Every batch first goes through {@link PositionSolver} for a least squares fix. The fix starts
+ * the {@link PositionFilter}, and restarts it if the filter rejects a whole batch, which means it
+ * has lost track; otherwise the filter is updated with each range and its estimate is reported.
+ *
+ * <p>{@link #submit(List)} and {@link #setFloorPlan(FloorPlan)} hand the work to the executor
+ * passed to the constructor, which must run tasks one at a time, and deliver positions on the
+ * callback executor. {@link #process(List)} does the same work synchronously, for running
+ * recorded sessions in tests; it uses no Android classes.
+ */
+public class PositioningEngine {
+
+    // Ranges can't be more precise than this, in meters, whatever the burst says: multipath and
+    // calibration errors don't show up in the spread within a burst.
+    private static final double MIN_RANGE_STD_DEV = 0.5;
+
+    // Largest number of ranges used in one batch.
+    private static final int MAX_RANGES = 64;
+
+    /**
+     * Receives positions, on the callback executor.
+     */
+    public interface Listener {
+        void onPosition(Position position);
+    }
+
+    /**
+     * One estimate of the device's position, in the frame of the floor plan.
+     */
+    public static class Position {
+        // Time of the newest range used, in milliseconds on the elapsed realtime clock.
+        public final long timestampMillis;
+
+        public final double x;
+        public final double y;
+
+        // Rough radius of the position's uncertainty, in meters.
+        public final double accuracy;
+
+        // Number of ranges in the batch that matched an access point on the floor plan.
+        public final int rangeCount;
+
+        public Position(long timestampMillis, double x, double y, double accuracy, int rangeCount) {
+            this.timestampMillis = timestampMillis;
+            this.x = x;
+            this.y = y;
+            this.accuracy = accuracy;
+            this.rangeCount = rangeCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "(%.2f, %.2f) +-%.2f", x, y, accuracy);
+        }
+    }
+
+    private final Executor mExecutor;
+    private final Executor mCallbackExecutor;
+    private final Listener mListener;
+
+    private final PositionSolver mSolver = new PositionSolver(MAX_RANGES);
+    private final PositionFilter mFilter = new PositionFilter();
+
+    // Ranges in the current batch that are on the floor plan, and their access points.
+    private final ArrayList<RangeMeasurement> mMatched = new ArrayList<>();
+    private final ArrayList<double[]> mLocations = new ArrayList<>();
+
+    private FloorPlan mFloorPlan;
+    private long mLastTimestampMillis;
+
+    /**
+     * @param executor Runs the positioning. Must run tasks one at a time, in order.
+     * @param callbackExecutor Runs the listener.
+     */
+    public PositioningEngine(Executor executor, Executor callbackExecutor, Listener listener) {
+        mExecutor = executor;
+        mCallbackExecutor = callbackExecutor;
+        mListener = listener;
+    }
+
+    /**
+     * Replaces the floor plan, and forgets the position.
+     */
+    public void setFloorPlan(final FloorPlan floorPlan) {
+        mExecutor.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        mFloorPlan = floorPlan;
+                        mFilter.reset();
+                    }
+                });
+    }
+
+    /**
+     * Queues a batch of ranges, typically those of one ranging request. Failed results are
+     * ignored. The list must not be modified afterwards.
+     */
+    public void submit(final List<RangeMeasurement> ranges) {
+        mExecutor.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        final Position position = process(ranges);
+                        if (position != null) {
+                            mCallbackExecutor.execute(
+                                    new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            mListener.onPosition(position);
+                                        }
+                                    });
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Updates the position with a batch of ranges, on the calling thread.
+     *
+     * @return The new position, or null if there is no floor plan or not enough ranges yet.
+     */
+    public Position process(List<RangeMeasurement> ranges) {
+        if (mFloorPlan == null) {
+            return null;
+        }
+
+        mMatched.clear();
+        mLocations.clear();
+        mSolver.clear();
+        long timestampMillis = 0;
+        double deviceHeight = mFloorPlan.getDeviceHeight();
+        for (RangeMeasurement range : ranges) {
+            double[] location = mFloorPlan.getLocation(range.bssid);
+            if (!range.isSuccess() || location == null || mMatched.size() == MAX_RANGES) {
+                continue;
+            }
+            mMatched.add(range);
+            mLocations.add(location);
+            mSolver.add(
+                    location[0],
+                    location[1],
+                    location[2] - deviceHeight,
+                    range.distanceMm / 1000.0,
+                    getStdDev(range));
+            timestampMillis = Math.max(timestampMillis, range.timestampMillis);
+        }
+        if (mMatched.isEmpty()) {
+            return null;
+        }
+
+        boolean fixed = mSolver.solve();
+        if (!mFilter.isInitialized()) {
+            if (!fixed) {
+                return null;
+            }
+            mFilter.initialize(mSolver.getX(), mSolver.getY(), mSolver.getCovariance());
+        } else {
+            mFilter.predict((timestampMillis - mLastTimestampMillis) / 1000.0);
+            int accepted = 0;
+            for (int i = 0; i < mMatched.size(); i++) {
+                RangeMeasurement range = mMatched.get(i);
+                double[] location = mLocations.get(i);
+                if (mFilter.update(
+                        location[0],
+                        location[1],
+                        location[2] - deviceHeight,
+                        range.distanceMm / 1000.0,
+                        getStdDev(range))) {
+                    accepted++;
+                }
+            }
+            if (accepted == 0 && fixed) {
+                // Every range disagreed with the filter; trust the fix instead.
+                mFilter.initialize(mSolver.getX(), mSolver.getY(), mSolver.getCovariance());
+            }
+        }
+        mLastTimestampMillis = Math.max(mLastTimestampMillis, timestampMillis);
+
+        return new Position(
+                mLastTimestampMillis,
+                mFilter.getX(),
+                mFilter.getY(),
+                mFilter.getAccuracy(),
+                mMatched.size());
+    }
+
+    private static double getStdDev(RangeMeasurement range) {
+        return Math.max(MIN_RANGE_STD_DEV, range.distanceStdDevMm / 1000.0);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.wifirttscan;
+
+/**
+ * The result of ranging to one access point, copied out of a {@link
+ * android.net.wifi.rtt.RangingResult} so the positioning and replay code runs, and can be tested,
+ * without the Android framework.
+ */
+public class RangeMeasurement {
+
+    // Same value as RangingResult.STATUS_SUCCESS. The distance fields are 0 for other statuses.
+    public static final int STATUS_SUCCESS = 0;
+
+    // MAC address of the access point.
+    public final String bssid;
+
+    // When the range was measured, in milliseconds on the elapsed realtime clock.
+    public final long timestampMillis;
+
+    public final int status;
+
+    public final int distanceMm;
+    public final int distanceStdDevMm;
+    public final int rssi;
+
+    public final int numSuccessfulMeasurements;
+    public final int numAttemptedMeasurements;
+
+    public RangeMeasurement(
+            String bssid,
+            long timestampMillis,
+            int status,
+            int distanceMm,
+            int distanceStdDevMm,
+            int rssi,
+            int numSuccessfulMeasurements,
+            int numAttemptedMeasurements) {
+        this.bssid = bssid;
+        this.timestampMillis = timestampMillis;
+        this.status = status;
+        this.distanceMm = distanceMm;
+        this.distanceStdDevMm = distanceStdDevMm;
+        this.rssi = rssi;
+        this.numSuccessfulMeasurements = numSuccessfulMeasurements;
+        this.numAttemptedMeasurements = numAttemptedMeasurements;
+    }
+
+    /**
+     * Returns a failed result, which carries no measurements.
+     */
+    public static RangeMeasurement failure(String bssid, long timestampMillis, int status) {
+        return new RangeMeasurement(bssid, timestampMillis, status, 0, 0, 0, 0, 0);
+    }
+
+    public boolean isSuccess() {
+        return status == STATUS_SUCCESS;
+    }
+
+    @Override
+    public String toString() {
+        if (!isSuccess()) {
+            return bssid + " status " + status + " @" + timestampMillis;
+        }
+        return bssid + " " + distanceMm + "+-" + distanceStdDevMm + "mm @" + timestampMillis;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.wifirttscan;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads back a log written by {@link RangingLogWriter}, one ranging request at a time.
+ *
+ * <p>A log cut short, for example because the app was killed while recording, reads normally up
+ * to the last complete result. Not thread safe.
+ */
+public class RangingLogReader implements Closeable {
+
+    private final InputStream mIn;
+
+    private final ArrayList<String> mAccessPoints = new ArrayList<>();
+
+    private long mLastTimestampMillis;
+
+    private boolean mEnded;
+
+    /**
+     * @throws IOException If the stream isn't a ranging log of a version this reader knows.
+     */
+    public RangingLogReader(InputStream in) throws IOException {
+        mIn = new BufferedInputStream(in);
+        byte[] magic = new byte[RangingLogWriter.MAGIC.length];
+        for (int i = 0; i < magic.length; i++) {
+            magic[i] = (byte) readByte();
+        }
+        if (!Arrays.equals(magic, RangingLogWriter.MAGIC)) {
+            throw new IOException("Not a ranging log");
+        }
+        int version = readByte();
+        if (version != RangingLogWriter.VERSION) {
+            throw new IOException("Unsupported ranging log version " + version);
+        }
+    }
+
+    /**
+     * Returns the results of the next ranging request, or null at the end of the log.
+     */
+    public List<RangeMeasurement> readRequest() throws IOException {
+        if (mEnded) {
+            return null;
+        }
+        ArrayList<RangeMeasurement> results = new ArrayList<>();
+        try {
+            while (true) {
+                int type = mIn.read();
+                if (type < 0) {
+                    mEnded = true;
+                    break;
+                }
+                if (type == RangingLogWriter.RECORD_END_OF_REQUEST) {
+                    return results;
+                } else if (type == RangingLogWriter.RECORD_ACCESS_POINT) {
+                    byte[] bssid = new byte[(int) readVarint()];
+                    for (int i = 0; i < bssid.length; i++) {
+                        bssid[i] = (byte) readByte();
+                    }
+                    mAccessPoints.add(new String(bssid, "UTF-8"));
+                } else if (type == RangingLogWriter.RECORD_RESULT) {
+                    results.add(readResult());
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // Truncated in the middle of a record; keep what was complete.
+            mEnded = true;
+        }
+        return results.isEmpty() ? null : results;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private RangeMeasurement readResult() throws IOException {
+        int index = (int) readVarint();
+        if (index >= mAccessPoints.size()) {
+            throw new IOException("Unknown access point " + index);
+        }
+        String bssid = mAccessPoints.get(index);
+        long timestampMillis = mLastTimestampMillis + readSigned();
+        int status = (int) readVarint();
+        if (status != RangeMeasurement.STATUS_SUCCESS) {
+            mLastTimestampMillis = timestampMillis;
+            return RangeMeasurement.failure(bssid, timestampMillis, status);
+        }
+        int distanceMm = (int) readSigned();
+        int distanceStdDevMm = (int) readVarint();
+        int rssi = (int) readSigned();
+        int numSuccessfulMeasurements = (int) readVarint();
+        int numAttemptedMeasurements = (int) readVarint();
+        mLastTimestampMillis = timestampMillis;
+        return new RangeMeasurement(
+                bssid,
+                timestampMillis,
+                status,
+                distanceMm,
+                distanceStdDevMm,
+                rssi,
+                numSuccessfulMeasurements,
+                numAttemptedMeasurements);
+    }
+
+    private int readByte() throws IOException {
+        int value = mIn.read();
+        if (value < 0) {
+            throw new EOFException();
+        }
+        return value;
+    }
+
+    private long readSigned() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.wifirttscan;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Records ranging results to a compact binary log, to be read back by {@link RangingLogReader}
+ * and replayed by {@code RangingReplay}, in the unit test sources, away from the device.
+ *
+ * <p>The log starts with the magic number "RTTL" and a version byte, followed by records that
+ * each start with a type byte:
+ *
+ * <ul>
+ *   <li>{@link #RECORD_ACCESS_POINT}: the BSSID of the next access point index, as a length and
+ *       UTF-8 bytes. Written the first time an access point appears.
+ *   <li>{@link #RECORD_RESULT}: the access point index; the time since the previous result in
+ *       milliseconds; the status; and for successful results the distance and its standard
+ *       deviation in mm, the RSSI, and the successful and attempted measurements in the burst.
+ *   <li>{@link #RECORD_END_OF_REQUEST}: the results since the previous one came from one ranging
+ *       request.
+ * </ul>
+ *
+ * <p>Numbers are unsigned LEB128 varints, with signed ones zigzag encoded first, so a typical
+ * result takes about 12 bytes.
+ *
+ * <p>Records are buffered, and flushed at the end of a request once {@link #FLUSH_RECORDS}
+ * records have been written or {@link #FLUSH_INTERVAL_MILLIS} have passed since the last flush,
+ * so a log cut short loses little and always ends with whole requests. Not thread safe.
+ */
+public class RangingLogWriter implements Closeable {
+
+    static final byte[] MAGIC = {'R', 'T', 'T', 'L'};
+    static final int VERSION = 1;
+
+    static final int RECORD_ACCESS_POINT = 1;
+    static final int RECORD_RESULT = 2;
+    static final int RECORD_END_OF_REQUEST = 3;
+
+    // Records, and time, after which the end of a request flushes the buffer.
+    static final int FLUSH_RECORDS = 256;
+    static final long FLUSH_INTERVAL_MILLIS = 5000;
+
+    private final OutputStream mOut;
+
+    private long mBytesWritten;
+    private int mUnflushedRecords;
+    private long mLastFlushNanos = System.nanoTime();
+
+    private final HashMap<String, Integer> mAccessPointIndices = new HashMap<>();
+
+    private long mLastTimestampMillis;
+
+    public RangingLogWriter(OutputStream out) throws IOException {
+        mOut = new BufferedOutputStream(out);
+        writeBytes(MAGIC);
+        writeByte(VERSION);
+    }
+
+    public void write(RangeMeasurement result) throws IOException {
+        Integer index = mAccessPointIndices.get(result.bssid);
+        if (index == null) {
+            index = mAccessPointIndices.size();
+            mAccessPointIndices.put(result.bssid, index);
+            byte[] bssid = result.bssid.getBytes("UTF-8");
+            writeByte(RECORD_ACCESS_POINT);
+            writeVarint(bssid.length);
+            writeBytes(bssid);
+            mUnflushedRecords++;
+        }
+
+        writeByte(RECORD_RESULT);
+        writeVarint(index);
+        writeSigned(result.timestampMillis - mLastTimestampMillis);
+        mLastTimestampMillis = result.timestampMillis;
+        writeVarint(result.status);
+        if (result.isSuccess()) {
+            writeSigned(result.distanceMm);
+            writeVarint(result.distanceStdDevMm);
+            writeSigned(result.rssi);
+            writeVarint(result.numSuccessfulMeasurements);
+            writeVarint(result.numAttemptedMeasurements);
+        }
+        mUnflushedRecords++;
+    }
+
+    /**
+     * Marks the end of the results of one ranging request, and flushes if it's time to.
+     */
+    public void endRequest() throws IOException {
+        writeByte(RECORD_END_OF_REQUEST);
+        mUnflushedRecords++;
+        if (mUnflushedRecords >= FLUSH_RECORDS
+                || System.nanoTime() - mLastFlushNanos >= FLUSH_INTERVAL_MILLIS * 1000000) {
+            flush();
+        }
+    }
+
+    public void flush() throws IOException {
+        mOut.flush();
+        mUnflushedRecords = 0;
+        mLastFlushNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the size of the log so far, including what is still buffered.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private void writeSigned(long value) throws IOException {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    private void writeByte(int value) throws IOException {
+        mOut.write(value);
+        mBytesWritten++;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        mOut.write(bytes);
+        mBytesWritten += bytes.length;
+    }
+}
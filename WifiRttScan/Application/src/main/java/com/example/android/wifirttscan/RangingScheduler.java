@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.wifirttscan;
+
+import android.annotation.SuppressLint;
+import android.net.wifi.ScanResult;
+import android.net.wifi.rtt.RangingRequest;
+import android.net.wifi.rtt.RangingResult;
+import android.net.wifi.rtt.RangingResultCallback;
+import android.net.wifi.rtt.WifiRttManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Ranges continuously to any number of access points, packing up to {@link
+ * RangingRequest#getMaxPeers()} of them into each {@link RangingRequest}.
+ *
+ * <p>Every access point has its own ranging interval. Access points whose distance readings are
+ * noisy, or move, are ranged as often as the minimum interval allows, so there are enough
+ * samples to average; access points whose readings are steady are ranged up to {@link
+ * #MAX_INTERVAL_FACTOR} times less often, leaving room in each request for the others. Access
+ * points that fail to range back off the same way. Each request takes the access points that are
+ * due, in round-robin order, so no access point is starved when more are due than fit.
+ *
+ * <p>Only one request runs at a time. The next one starts as soon as the previous one completes
+ * and an access point is due, but no sooner than the minimum interval after the previous one
+ * started, so slow ranging lowers the rate instead of queueing requests. Everything, including
+ * the listener callbacks, runs on the thread of the handler passed to the constructor, and all
+ * methods must be called there.
+ */
+public class RangingScheduler {
+    private static final String TAG = "RangingScheduler";
+
+    // Longest interval, as a multiple of the minimum interval.
+    private static final int MAX_INTERVAL_FACTOR = 8;
+
+    // Standard deviation of the distance (mm) at or below which an access point is ranged at the
+    // longest interval. Above it, the interval shrinks in proportion.
+    private static final float STEADY_STD_DEV_MM = 100;
+
+    // Number of distances kept per access point for its statistics.
+    private static final int DISTANCE_WINDOW = 20;
+
+    /**
+     * Receives the outcome of each request, on the handler's thread.
+     */
+    public interface Listener {
+        /**
+         * Called for each access point in a completed request, whether it ranged successfully or
+         * not.
+         */
+        void onRangingResult(@NonNull ScanResult accessPoint, @NonNull RangingResult result);
+
+        /**
+         * Called after {@link #onRangingResult} has been called for every access point in a
+         * request.
+         */
+        void onRangingComplete();
+
+        /**
+         * Called when a whole request failed. The access points in it are retried in the next
+         * request.
+         */
+        void onRangingFailure(int code);
+    }
+
+    // Ranging state of one access point.
+    private static class Responder {
+        final ScanResult scanResult;
+
+        long nextRangingTime;
+        long interval;
+
+        int requests;
+        int successes;
+
+        // Recent distances, in mm.
+        final RollingStatistics distances = new RollingStatistics(DISTANCE_WINDOW);
+
+        Responder(ScanResult scanResult) {
+            this.scanResult = scanResult;
+        }
+    }
+
+    private final WifiRttManager mWifiRttManager;
+    private final Handler mHandler;
+    private final Executor mExecutor;
+    private final Listener mListener;
+
+    private final ArrayList<Responder> mResponders = new ArrayList<>();
+    private final HashMap<String, Responder> mRespondersByMac = new HashMap<>();
+
+    // Where the round-robin search for due access points starts in mResponders.
+    private int mNextIndex;
+
+    private int mMinIntervalMillis;
+
+    private boolean mRunning;
+    private boolean mRequestPending;
+
+    // When the last request started, on the elapsed realtime clock.
+    private long mLastRequestTime;
+
+    private final Runnable mStartRequestRunnable =
+            new Runnable() {
+                @Override
+                public void run() {
+                    startRequest();
+                }
+            };
+
+    private final RangingResultCallback mRangingResultCallback =
+            new RangingResultCallback() {
+                @Override
+                public void onRangingFailure(int code) {
+                    Log.d(TAG, "onRangingFailure() code: " + code);
+                    mRequestPending = false;
+                    if (!mRunning) {
+                        return;
+                    }
+                    mListener.onRangingFailure(code);
+                    scheduleNextRequest();
+                }
+
+                @Override
+                public void onRangingResults(@NonNull List<RangingResult> list) {
+                    mRequestPending = false;
+                    if (!mRunning) {
+                        // The request was still running when stop() was called.
+                        return;
+                    }
+                    long now = SystemClock.elapsedRealtime();
+                    for (RangingResult result : list) {
+                        Responder responder =
+                                mRespondersByMac.get(result.getMacAddress().toString());
+                        if (responder == null) {
+                            // Removed by setAccessPoints() while the request was running.
+                            continue;
+                        }
+                        updateResponder(responder, result, now);
+                        mListener.onRangingResult(responder.scanResult, result);
+                    }
+                    mListener.onRangingComplete();
+                    scheduleNextRequest();
+                }
+            };
+
+    /**
+     * @param handler Runs the requests and the listener callbacks.
+     */
+    public RangingScheduler(WifiRttManager wifiRttManager, Handler handler, Listener listener) {
+        mWifiRttManager = wifiRttManager;
+        mHandler = handler;
+        mExecutor =
+                new Executor() {
+                    @Override
+                    public void execute(@NonNull Runnable command) {
+                        mHandler.post(command);
+                    }
+                };
+        mListener = listener;
+    }
+
+    /**
+     * Replaces the access points to range. Access points that were already being ranged keep
+     * their statistics and schedule; new ones are due immediately.
+     */
+    public void setAccessPoints(List<ScanResult> accessPoints) {
+        HashMap<String, Responder> previous = new HashMap<>(mRespondersByMac);
+        mResponders.clear();
+        mRespondersByMac.clear();
+        for (ScanResult scanResult : accessPoints) {
+            if (mRespondersByMac.containsKey(scanResult.BSSID)) {
+                continue;
+            }
+            Responder responder = previous.get(scanResult.BSSID);
+            if (responder == null) {
+                responder = new Responder(scanResult);
+                responder.interval = mMinIntervalMillis;
+            }
+            mResponders.add(responder);
+            mRespondersByMac.put(scanResult.BSSID, responder);
+        }
+        mNextIndex = 0;
+    }
+
+    /**
+     * Sets the shortest time between two rangings of the same access point, which is also the
+     * shortest time between the starts of two requests.
+     */
+    public void setMinInterval(int milliseconds) {
+        mMinIntervalMillis = milliseconds;
+        for (Responder responder : mResponders) {
+            responder.interval = clampInterval(responder.interval);
+        }
+    }
+
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        if (!mRequestPending) {
+            startRequest();
+        }
+    }
+
+    /**
+     * Stops ranging. The results of a request still running are dropped.
+     */
+    public void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mStartRequestRunnable);
+    }
+
+    /**
+     * Forgets the statistics of every access point and makes them all due immediately.
+     */
+    public void reset() {
+        for (Responder responder : mResponders) {
+            responder.requests = 0;
+            responder.successes = 0;
+            responder.distances.clear();
+            responder.interval = mMinIntervalMillis;
+            responder.nextRangingTime = 0;
+        }
+        if (mRunning && !mRequestPending) {
+            mHandler.removeCallbacks(mStartRequestRunnable);
+            mHandler.post(mStartRequestRunnable);
+        }
+    }
+
+    public int getAccessPointCount() {
+        return mResponders.size();
+    }
+
+    /**
+     * Returns how many requests included an access point, or 0 if it isn't being ranged.
+     */
+    public int getRequestCount(String mac) {
+        Responder responder = mRespondersByMac.get(mac);
+        return responder != null ? responder.requests : 0;
+    }
+
+    /**
+     * Returns how many requests ranged an access point successfully, or 0 if it isn't being
+     * ranged.
+     */
+    public int getSuccessCount(String mac) {
+        Responder responder = mRespondersByMac.get(mac);
+        return responder != null ? responder.successes : 0;
+    }
+
+    /**
+     * Returns the current ranging interval of an access point in milliseconds, or 0 if it isn't
+     * being ranged.
+     */
+    public long getInterval(String mac) {
+        Responder responder = mRespondersByMac.get(mac);
+        return responder != null ? responder.interval : 0;
+    }
+
+    // Permission for fine location is checked by the activities before ranging starts.
+    @SuppressLint("MissingPermission")
+    private void startRequest() {
+        if (!mRunning || mRequestPending) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        int maxPeers = RangingRequest.getMaxPeers();
+        RangingRequest.Builder builder = new RangingRequest.Builder();
+        int count = 0;
+        int size = mResponders.size();
+
+        // Take the due access points, starting after the last one ranged.
+        for (int i = 0; i < size && count < maxPeers; i++) {
+            int index = (mNextIndex + i) % size;
+            Responder responder = mResponders.get(index);
+            if (responder.nextRangingTime <= now) {
+                builder.addAccessPoint(responder.scanResult);
+                responder.requests++;
+                // Pushed back again once the result arrives; this keeps a lost result from
+                // making the access point due forever.
+                responder.nextRangingTime = now + responder.interval;
+                count++;
+                mNextIndex = (index + 1) % size;
+            }
+        }
+
+        if (count == 0) {
+            scheduleNextRequest();
+            return;
+        }
+
+        try {
+            mWifiRttManager.startRanging(builder.build(), mExecutor, mRangingResultCallback);
+            mRequestPending = true;
+            mLastRequestTime = now;
+        } catch (SecurityException e) {
+            Log.e(TAG, "Ranging not allowed", e);
+            mRunning = false;
+        }
+    }
+
+    // Waits until the next access point is due, and at least the minimum interval since the last
+    // request started.
+    private void scheduleNextRequest() {
+        if (!mRunning || mResponders.isEmpty()) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long nextRangingTime = Long.MAX_VALUE;
+        for (Responder responder : mResponders) {
+            nextRangingTime = Math.min(nextRangingTime, responder.nextRangingTime);
+        }
+        long startTime = Math.max(mLastRequestTime + mMinIntervalMillis, nextRangingTime);
+        long delay = Math.max(0, startTime - now);
+        mHandler.removeCallbacks(mStartRequestRunnable);
+        mHandler.postDelayed(mStartRequestRunnable, delay);
+    }
+
+    private void updateResponder(Responder responder, RangingResult result, long now) {
+        if (result.getStatus() != RangingResult.STATUS_SUCCESS) {
+            responder.interval = clampInterval(responder.interval * 2);
+            responder.nextRangingTime = now + responder.interval;
+            return;
+        }
+        responder.successes++;
+
+        responder.distances.add(result.getDistanceMm());
+
+        // The spread within the burst tells how noisy a single reading is; the spread between
+        // bursts also catches the access point, or this device, moving.
+        float stdDev =
+                Math.max(
+                        result.getDistanceStdDevMm(),
+                        responder.distances.getStandardDeviation());
+        long interval =
+                stdDev <= STEADY_STD_DEV_MM
+                        ? (long) mMinIntervalMillis * MAX_INTERVAL_FACTOR
+                        : (long) (mMinIntervalMillis * MAX_INTERVAL_FACTOR
+                                * STEADY_STD_DEV_MM / stdDev);
+        responder.interval = clampInterval(interval);
+        responder.nextRangingTime = now + responder.interval;
+    }
+
+    private long clampInterval(long interval) {
+        return Math.max(
+                mMinIntervalMillis,
+                Math.min(interval, (long) mMinIntervalMillis * MAX_INTERVAL_FACTOR));
+    }
+}
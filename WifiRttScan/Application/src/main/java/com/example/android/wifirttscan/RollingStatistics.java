@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.wifirttscan;
+
+/**
+ * Mean, variance and percentiles of the last few values of a series, such as the distances
+ * reported for an access point.
+ *
+ * <p>The window is a ring of ints. The mean and variance are kept with Welford's method, which
+ * stays accurate when the values are large compared to their spread, extended to remove the
+ * value leaving the window. Rounding errors from the removals are discarded by recomputing both
+ * from the ring once every window's worth of values, which keeps the cost per value constant on
+ * average.
+ *
+ * <p>Percentiles are exact, interpolated between the two closest values of the window. When any
+ * are asked for, a sorted copy of the window is kept, in which each value replaces the one
+ * leaving the window with a binary search and a shift. That is linear in the window rather than
+ * constant, but only a short memory move for windows of a few dozen values.
+ *
+ * <p>Not thread safe.
+ */
+public class RollingStatistics {
+
+    private int[] mValues;
+
+    // The values of the window in ascending order, in the first mCount elements. Only kept if
+    // there are percentiles.
+    private int[] mSorted;
+
+    // Index of the oldest value in mValues, and number of values in the window.
+    private int mStart;
+    private int mCount;
+
+    private double mMean;
+    // Sum of squared differences from the mean.
+    private double mM2;
+
+    // Values removed since the mean and M2 were last recomputed from the ring.
+    private int mRemovals;
+
+    private final float[] mPercentiles;
+
+    /**
+     * @param capacity Number of values in the window.
+     * @param percentiles Percentiles to compute, between 0 and 100, read back by index with
+     *     {@link #getPercentile(int)}.
+     */
+    public RollingStatistics(int capacity, float... percentiles) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        mValues = new int[capacity];
+        mPercentiles = new float[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            if (percentiles[i] < 0 || percentiles[i] > 100) {
+                throw new IllegalArgumentException("Invalid percentile: " + percentiles[i]);
+            }
+            mPercentiles[i] = percentiles[i] / 100;
+        }
+        mSorted = percentiles.length > 0 ? new int[capacity] : null;
+    }
+
+    /**
+     * Adds a value to the window, removing the oldest one if the window is full.
+     */
+    public void add(int value) {
+        int capacity = mValues.length;
+        if (mCount == capacity) {
+            int oldest = mValues[mStart];
+            remove(oldest);
+            if (mSorted != null) {
+                removeSorted(oldest);
+            }
+            mValues[mStart] = value;
+            mStart = (mStart + 1) % capacity;
+        } else {
+            mValues[(mStart + mCount) % capacity] = value;
+        }
+        if (mSorted != null) {
+            insertSorted(value);
+        }
+
+        mCount++;
+        double delta = value - mMean;
+        mMean += delta / mCount;
+        mM2 += delta * (value - mMean);
+
+        if (mRemovals >= capacity) {
+            recompute();
+        }
+    }
+
+    /**
+     * Empties the window.
+     */
+    public void clear() {
+        mStart = 0;
+        mCount = 0;
+        mMean = 0;
+        mM2 = 0;
+        mRemovals = 0;
+    }
+
+    /**
+     * Changes the number of values in the window. Empties the window if the capacity changes.
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        if (capacity != mValues.length) {
+            mValues = new int[capacity];
+            if (mSorted != null) {
+                mSorted = new int[capacity];
+            }
+            clear();
+        }
+    }
+
+    public int getCapacity() {
+        return mValues.length;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the most recent value, or 0 if the window is empty.
+     */
+    public int getLatest() {
+        return mCount > 0 ? mValues[(mStart + mCount - 1) % mValues.length] : 0;
+    }
+
+    /**
+     * Returns the mean of the window, or 0 if it is empty.
+     */
+    public float getMean() {
+        return (float) mMean;
+    }
+
+    /**
+     * Returns the population variance of the window, or 0 if it has fewer than two values.
+     */
+    public float getVariance() {
+        return mCount > 1 ? (float) Math.max(0, mM2 / mCount) : 0;
+    }
+
+    public float getStandardDeviation() {
+        return (float) Math.sqrt(getVariance());
+    }
+
+    /**
+     * Returns the percentile at index in the list passed to the constructor, or 0 if the window
+     * is empty.
+     */
+    public float getPercentile(int index) {
+        if (mCount == 0) {
+            return 0;
+        }
+        float rank = mPercentiles[index] * (mCount - 1);
+        int below = (int) rank;
+        if (below == mCount - 1) {
+            return mSorted[below];
+        }
+        return mSorted[below] + (rank - below) * (mSorted[below + 1] - mSorted[below]);
+    }
+
+    private void remove(int value) {
+        mCount--;
+        mRemovals++;
+        if (mCount == 0) {
+            mMean = 0;
+            mM2 = 0;
+            return;
+        }
+        double delta = value - mMean;
+        mMean -= delta / mCount;
+        mM2 -= delta * (value - mMean);
+    }
+
+    private void recompute() {
+        int capacity = mValues.length;
+        double mean = 0;
+        double m2 = 0;
+        for (int i = 0; i < mCount; i++) {
+            int value = mValues[(mStart + i) % capacity];
+            double delta = value - mean;
+            mean += delta / (i + 1);
+            m2 += delta * (value - mean);
+        }
+        mMean = mean;
+        mM2 = m2;
+        mRemovals = 0;
+    }
+
+    // mCount doesn't include the value yet.
+    private void insertSorted(int value) {
+        int index = binarySearch(value);
+        System.arraycopy(mSorted, index, mSorted, index + 1, mCount - index);
+        mSorted[index] = value;
+    }
+
+    // mCount doesn't include the value any more.
+    private void removeSorted(int value) {
+        int index = binarySearch(value);
+        System.arraycopy(mSorted, index + 1, mSorted, index, mCount - index);
+    }
+
+    // Returns the index of the first of the mCount sorted values that is at least value.
+    private int binarySearch(int value) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mSorted[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.wifirttscan;
+
+import android.annotation.SuppressLint;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the Wi-Fi scan results current within the platform scan throttle, which allows a
+ * foreground app {@link #MAX_SCANS} scans every {@link #THROTTLE_WINDOW_MILLIS}.
+ *
+ * <p>Results that are recent enough, including those of scans started by other apps, are used
+ * instead of scanning. Scans beyond the budget are deferred until it frees up rather than being
+ * rejected by the platform. While active, the results are refreshed every {@link
+ * #REFRESH_INTERVAL_MILLIS}, which the budget sustains indefinitely.
+ *
+ * <p>Must be used on the thread of the {@link Handler}, which receives the {@link
+ * WifiManager#SCAN_RESULTS_AVAILABLE_ACTION} broadcast. Location permission must be granted
+ * before calling {@link #requestScan()} or {@link #resume()}.
+ */
+public class ScanScheduler {
+    private static final String TAG = "ScanScheduler";
+
+    public static final int MAX_SCANS = 4;
+    public static final long THROTTLE_WINDOW_MILLIS = 2 * 60 * 1000;
+
+    public static final long REFRESH_INTERVAL_MILLIS = THROTTLE_WINDOW_MILLIS / MAX_SCANS;
+
+    // Cached results at most this old are shown as they are when the user asks for a scan.
+    public static final long MAX_CACHED_RESULT_AGE_MILLIS = 10 * 1000;
+
+    // The platform throttles the app, not the activity, so the history outlives activities.
+    // Elapsed realtime of the last scans started, oldest first once the ring has wrapped.
+    private static final long[] sScanTimes = new long[MAX_SCANS];
+    private static int sNextScan;
+    // Set when the platform rejected a scan the history allowed, e.g. after a process restart.
+    private static long sThrottledUntil;
+
+    /**
+     * Receives the scan results, cached or new, on the thread of the {@link Handler}.
+     */
+    public interface Listener {
+        void onScanResults(List<ScanResult> scanResults);
+    }
+
+    private final WifiManager mWifiManager;
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    // Refreshes the results while true, until paused.
+    private boolean mActive;
+
+    private final Runnable mScanRunnable =
+            new Runnable() {
+                @Override
+                public void run() {
+                    refresh(REFRESH_INTERVAL_MILLIS);
+                }
+            };
+
+    public ScanScheduler(WifiManager wifiManager, Handler handler, Listener listener) {
+        mWifiManager = wifiManager;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Delivers the cached results right away, then scans if they are older than {@link
+     * #MAX_CACHED_RESULT_AGE_MILLIS}, as soon as the budget allows. Keeps refreshing them until
+     * {@link #pause()}.
+     */
+    @SuppressLint("MissingPermission")
+    public void requestScan() {
+        mActive = true;
+        mListener.onScanResults(getScanResults());
+        refresh(MAX_CACHED_RESULT_AGE_MILLIS);
+    }
+
+    /**
+     * Resumes refreshing the results if they were requested before {@link #pause()}.
+     */
+    public void resume() {
+        if (mActive) {
+            requestScan();
+        }
+    }
+
+    public void pause() {
+        mHandler.removeCallbacks(mScanRunnable);
+    }
+
+    /**
+     * Call when {@link WifiManager#SCAN_RESULTS_AVAILABLE_ACTION} is received.
+     */
+    public void onScanResultsAvailable() {
+        mListener.onScanResults(getScanResults());
+        if (mActive) {
+            scheduleRefresh();
+        }
+    }
+
+    // Scans if the results are older than maxAgeMillis and the budget allows, otherwise waits
+    // until both are true.
+    @SuppressLint("MissingPermission")
+    private void refresh(long maxAgeMillis) {
+        mHandler.removeCallbacks(mScanRunnable);
+        long now = SystemClock.elapsedRealtime();
+        long resultsAge = now - getNewestResultTime(getScanResults());
+        long scanTime = Math.max(now + maxAgeMillis - resultsAge, getNextAllowedScanTime());
+
+        if (scanTime > now) {
+            mHandler.postDelayed(mScanRunnable, scanTime - now);
+        } else if (mWifiManager.startScan()) {
+            sScanTimes[sNextScan] = now;
+            sNextScan = (sNextScan + 1) % MAX_SCANS;
+        } else {
+            Log.d(TAG, "Scan throttled.");
+            sThrottledUntil = now + REFRESH_INTERVAL_MILLIS;
+            mHandler.postDelayed(mScanRunnable, REFRESH_INTERVAL_MILLIS);
+        }
+        // A successful scan schedules the next one when its results are available.
+    }
+
+    private void scheduleRefresh() {
+        mHandler.removeCallbacks(mScanRunnable);
+        long delay =
+                Math.max(
+                        getNewestResultTime(getScanResults()) + REFRESH_INTERVAL_MILLIS,
+                        getNextAllowedScanTime())
+                        - SystemClock.elapsedRealtime();
+        mHandler.postDelayed(mScanRunnable, Math.max(delay, 0));
+    }
+
+    private static long getNextAllowedScanTime() {
+        // The oldest of the last MAX_SCANS scans is the one to leave the window next.
+        long oldestScanTime = sScanTimes[sNextScan];
+        long nextAllowedScanTime =
+                oldestScanTime == 0 ? 0 : oldestScanTime + THROTTLE_WINDOW_MILLIS;
+        return Math.max(nextAllowedScanTime, sThrottledUntil);
+    }
+
+    @SuppressLint("MissingPermission")
+    private List<ScanResult> getScanResults() {
+        List<ScanResult> scanResults = mWifiManager.getScanResults();
+        return scanResults != null ? scanResults : Collections.<ScanResult>emptyList();
+    }
+
+    // Returns the elapsed realtime of the most recently seen access point, or 0 if there are none.
+    private static long getNewestResultTime(List<ScanResult> scanResults) {
+        long newestTimestampMicros = 0;
+        for (ScanResult scanResult : scanResults) {
+            newestTimestampMicros = Math.max(newestTimestampMicros, scanResult.timestamp);
+        }
+        return newestTimestampMicros / 1000;
+    }
+}
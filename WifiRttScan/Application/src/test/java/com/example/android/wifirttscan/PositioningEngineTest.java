@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.wifirttscan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Replays a ranging log through {@link PositioningEngine}, and with it {@link PositionSolver} and
+ * {@link PositionFilter}, and checks the positions against where the device really was.
+ *
+ * <p>walk.rttlog is a simulated session with known truth: the device stands at (5, 5) for 10
+ * seconds, walks to (15, 5) at 1 m/s and stands there for another 10 seconds, ranging all four
+ * access points of walk_floor_plan.txt every 500 ms. Ranges have a standard deviation of 0.3 m;
+ * one in twenty is a failure and one in twenty is a multipath outlier 4 to 6 m too long.
+ */
+public class PositioningEngineTest {
+
+    // Timestamp of the first request in walk.rttlog.
+    private static final long START_MILLIS = 1000000;
+
+    private static final int REQUESTS = 60;
+
+    private static final Executor DIRECT =
+            new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            };
+
+    private FloorPlan mFloorPlan;
+
+    @Before
+    public void setUp() throws IOException {
+        InputStream in = getClass().getResourceAsStream("walk_floor_plan.txt");
+        try {
+            mFloorPlan = FloorPlan.read(new InputStreamReader(in, "UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void replayedWalkConvergesAndStaysOnTrack() throws Exception {
+        final List<PositioningEngine.Position> positions = new ArrayList<>();
+        final PositioningEngine engine =
+                new PositioningEngine(
+                        DIRECT,
+                        DIRECT,
+                        new PositioningEngine.Listener() {
+                            @Override
+                            public void onPosition(PositioningEngine.Position position) {
+                                positions.add(position);
+                            }
+                        });
+        engine.setFloorPlan(mFloorPlan);
+
+        RangingLogReader reader = new RangingLogReader(getClass().getResourceAsStream(
+                "walk.rttlog"));
+        int requests;
+        try {
+            requests = new RangingReplay(reader).run(false, new RangingReplay.Listener() {
+                @Override
+                public void onRequest(List<RangeMeasurement> results) {
+                    engine.submit(results);
+                }
+            });
+        } finally {
+            reader.close();
+        }
+
+        assertEquals(REQUESTS, requests);
+        assertEquals(REQUESTS, positions.size());
+        double sumOfSquares = 0;
+        for (PositioningEngine.Position position : positions) {
+            double[] truth = getTruth(position.timestampMillis);
+            double error = Math.hypot(position.x - truth[0], position.y - truth[1]);
+            assertTrue("Off by " + error + " m at " + position, error < 1);
+            assertTrue("Accuracy " + position.accuracy, position.accuracy < 1);
+            sumOfSquares += error * error;
+        }
+        double rmsError = Math.sqrt(sumOfSquares / positions.size());
+        assertTrue("RMS error " + rmsError + " m", rmsError < 0.5);
+    }
+
+    @Test
+    public void firstPositionNeedsThreeAccessPoints() {
+        PositioningEngine engine = newEngine();
+        assertNull(engine.process(rangesFrom(5, 5, 2)));
+        PositioningEngine.Position position = engine.process(rangesFrom(5, 5, 3));
+        assertNotNull(position);
+        assertEquals(5, position.x, 0.01);
+        assertEquals(5, position.y, 0.01);
+    }
+
+    @Test
+    public void filterKeepsTrackWithTwoAccessPoints() {
+        PositioningEngine engine = newEngine();
+        engine.process(rangesFrom(5, 5, 4));
+        PositioningEngine.Position position = engine.process(rangesFrom(5, 5, 2));
+        assertNotNull(position);
+        assertEquals(5, position.x, 0.1);
+        assertEquals(5, position.y, 0.1);
+    }
+
+    @Test
+    public void solverRejectsAccessPointsInALine() {
+        PositionSolver solver = new PositionSolver(4);
+        solver.add(0, 0, 1.6, 5, 0.5);
+        solver.add(10, 0, 1.6, 6, 0.5);
+        solver.add(20, 0, 1.6, 12, 0.5);
+        assertFalse(solver.solve());
+    }
+
+    @Test
+    public void filterRejectsMultipathOutlier() {
+        PositionFilter filter = new PositionFilter();
+        filter.initialize(5, 5, new double[] {0.25, 0, 0.25});
+        double range = Math.sqrt(5 * 5 + 5 * 5 + 1.6 * 1.6);
+        assertFalse(filter.update(0, 0, 1.6, range + 5, 0.5));
+        assertTrue(filter.update(0, 0, 1.6, range + 0.2, 0.5));
+    }
+
+    private PositioningEngine newEngine() {
+        PositioningEngine engine = new PositioningEngine(DIRECT, DIRECT, null);
+        engine.setFloorPlan(mFloorPlan);
+        return engine;
+    }
+
+    // Exact ranges from (x, y) to the first count access points of the floor plan.
+    private static List<RangeMeasurement> rangesFrom(double x, double y, int count) {
+        String[] bssids = {
+            "02:00:00:00:00:01", "02:00:00:00:00:02", "02:00:00:00:00:03", "02:00:00:00:00:04"
+        };
+        double[][] locations = {{0, 0}, {20, 0}, {20, 10}, {0, 10}};
+        double height = 2.8 - 1.2;
+        RangeMeasurement[] ranges = new RangeMeasurement[count];
+        for (int i = 0; i < count; i++) {
+            double dx = x - locations[i][0];
+            double dy = y - locations[i][1];
+            double distance = Math.sqrt(dx * dx + dy * dy + height * height);
+            ranges[i] = new RangeMeasurement(
+                    bssids[i], START_MILLIS, 0, (int) Math.round(distance * 1000), 100, -60, 8, 8);
+        }
+        return Arrays.asList(ranges);
+    }
+
+    // Where the device was in walk.rttlog at a time.
+    private static double[] getTruth(long timestampMillis) {
+        double seconds = (timestampMillis - START_MILLIS) / 1000.0;
+        double x = 5 + Math.max(0, Math.min(10, seconds - 10));
+        return new double[] {x, 5};
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2018 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.wifirttscan;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Plays a ranging log back, one request at a time, either as fast as possible or with the
+ * original timing.
+ *
+ * <p>Uses no Android classes, so ranging analytics can be benchmarked and regression tested on
+ * a desktop JVM. {@link #main(String[])} runs a log through {@link RollingStatistics} and {@link
+ * PositioningEngine} as the app does, prints one CSV line per position on stdout, which is the
+ * same on every run, and a summary of each access point and the processing speed on stderr:
+ *
+ * <pre>
+ * ./gradlew :Application:compileDebugUnitTestJavaWithJavac
+ * java -cp Application/build/intermediates/javac/debug/classes:\
+ *         Application/build/intermediates/javac/debugUnitTest/classes \
+ *         com.example.android.wifirttscan.RangingReplay \
+ *         ranging.rttlog [floor_plan.txt] [--real-time]
+ * </pre>
+ */
+public class RangingReplay {
+
+    /**
+     * Receives the results of each request in the log, in order, on the thread calling {@link
+     * #run}.
+     */
+    public interface Listener {
+        void onRequest(List<RangeMeasurement> results);
+    }
+
+    private final RangingLogReader mReader;
+
+    public RangingReplay(RangingLogReader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Plays the rest of the log to the listener.
+     *
+     * @param realTime Whether to wait between requests as long as they were apart when recorded,
+     *     rather than playing them back to back.
+     * @return The number of requests played.
+     */
+    public int run(boolean realTime, Listener listener) throws IOException, InterruptedException {
+        int requests = 0;
+        long firstTimestampMillis = 0;
+        long startNanos = System.nanoTime();
+        List<RangeMeasurement> results;
+        while ((results = mReader.readRequest()) != null) {
+            if (realTime && !results.isEmpty()) {
+                long timestampMillis = results.get(0).timestampMillis;
+                if (requests == 0) {
+                    firstTimestampMillis = timestampMillis;
+                }
+                // Waits relative to the start, so the time taken by the listener doesn't add up.
+                long dueNanos = startNanos + (timestampMillis - firstTimestampMillis) * 1000000;
+                long waitMillis = (dueNanos - System.nanoTime()) / 1000000;
+                if (waitMillis > 0) {
+                    Thread.sleep(waitMillis);
+                }
+            }
+            listener.onRequest(results);
+            requests++;
+        }
+        return requests;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String logPath = null;
+        String floorPlanPath = null;
+        boolean realTime = false;
+        for (String arg : args) {
+            if (arg.equals("--real-time")) {
+                realTime = true;
+            } else if (logPath == null) {
+                logPath = arg;
+            } else if (floorPlanPath == null) {
+                floorPlanPath = arg;
+            }
+        }
+        if (logPath == null) {
+            System.err.println(
+                    "Usage: RangingReplay <ranging log> [<floor plan>] [--real-time]");
+            System.exit(2);
+        }
+
+        Analytics analytics = new Analytics(System.out);
+        if (floorPlanPath != null) {
+            analytics.mEngine.setFloorPlan(FloorPlan.read(new File(floorPlanPath)));
+        }
+
+        RangingLogReader reader = new RangingLogReader(new FileInputStream(logPath));
+        long startNanos = System.nanoTime();
+        int requests;
+        try {
+            requests = new RangingReplay(reader).run(realTime, analytics);
+        } finally {
+            reader.close();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+        analytics.printSummary(System.err);
+        System.err.printf(
+                Locale.US,
+                "%d requests, %d results in %.3f s (%.0f results/s)%n",
+                requests,
+                analytics.mResultCount,
+                seconds,
+                analytics.mResultCount / Math.max(seconds, 1e-9));
+    }
+
+    // Runs each request through the statistics and positioning the app uses, and prints the
+    // positions as CSV.
+    private static class Analytics implements Listener, PositioningEngine.Listener {
+        private final PrintStream mOut;
+        private final PositioningEngine mEngine;
+
+        // Statistics of each access point, sorted by BSSID for a stable summary.
+        private final Map<String, AccessPointSummary> mSummaries = new TreeMap<>();
+        private int mResultCount;
+
+        Analytics(PrintStream out) {
+            mOut = out;
+            Executor direct =
+                    new Executor() {
+                        @Override
+                        public void execute(Runnable command) {
+                            command.run();
+                        }
+                    };
+            mEngine = new PositioningEngine(direct, direct, this);
+        }
+
+        @Override
+        public void onRequest(List<RangeMeasurement> results) {
+            for (RangeMeasurement result : results) {
+                AccessPointSummary summary = mSummaries.get(result.bssid);
+                if (summary == null) {
+                    summary = new AccessPointSummary();
+                    mSummaries.put(result.bssid, summary);
+                }
+                summary.add(result);
+            }
+            mResultCount += results.size();
+            mEngine.submit(results);
+        }
+
+        @Override
+        public void onPosition(PositioningEngine.Position position) {
+            mOut.printf(
+                    Locale.US,
+                    "%d,%.3f,%.3f,%.3f,%d%n",
+                    position.timestampMillis,
+                    position.x,
+                    position.y,
+                    position.accuracy,
+                    position.rangeCount);
+        }
+
+        void printSummary(PrintStream out) {
+            out.println("bssid,results,success%,mean_m,sd_m,median_m,p90_m");
+            for (Map.Entry<String, AccessPointSummary> entry : mSummaries.entrySet()) {
+                AccessPointSummary summary = entry.getValue();
+                RollingStatistics distances = summary.distances;
+                out.printf(
+                        Locale.US,
+                        "%s,%d,%.1f,%.3f,%.3f,%.3f,%.3f%n",
+                        entry.getKey(),
+                        summary.results,
+                        summary.results > 0 ? 100f * summary.successes / summary.results : 0,
+                        distances.getMean() / 1000,
+                        distances.getStandardDeviation() / 1000,
+                        distances.getPercentile(0) / 1000,
+                        distances.getPercentile(1) / 1000);
+            }
+        }
+    }
+
+    // Statistics the app shows for the chosen access point, for every access point in a log.
+    private static class AccessPointSummary {
+        // Same default window as the app.
+        private static final int WINDOW = 50;
+
+        final RollingStatistics distances = new RollingStatistics(WINDOW, 50, 90);
+        int results;
+        int successes;
+
+        void add(RangeMeasurement result) {
+            results++;
+            if (result.isSuccess()) {
+                successes++;
+                distances.add(result.distanceMm);
+            }
+        }
+    }
+}